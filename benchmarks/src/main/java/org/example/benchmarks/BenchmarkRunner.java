@@ -0,0 +1,32 @@
+package org.example.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that every result comes with the allocation per operation
+ * ({@code gc.alloc.rate.norm}). It takes the usual JMH command line options, for example:
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar SingleThreadBenchmark.search -p latencyMs=0,50
+ * java -jar benchmarks/target/benchmarks.jar ConcurrentLoadBenchmark -t 64 -rf json
+ * </pre>
+ */
+public class BenchmarkRunner {
+
+    /**
+     * Runs the benchmarks selected on the command line (all of them by default).
+     *
+     * @param args The JMH command line options.
+     * @throws Exception If the options are invalid or a benchmark cannot be run.
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
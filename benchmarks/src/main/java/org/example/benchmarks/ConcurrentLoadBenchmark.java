@@ -0,0 +1,12 @@
+package org.example.benchmarks;
+
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Runs the {@link ServiceBenchmark} benchmarks from 32 threads at once, to measure the service paths under
+ * concurrent load: contention on the shared HTTP client, the executors, the circuit breakers and the rate
+ * controllers, and the latency percentiles once calls queue. Use {@code -t} to change the number of threads.
+ */
+@Threads(32)
+public class ConcurrentLoadBenchmark extends ServiceBenchmark {
+}
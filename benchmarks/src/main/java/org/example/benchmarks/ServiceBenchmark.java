@@ -0,0 +1,163 @@
+package org.example.benchmarks;
+
+import dev.langchain4j.data.embedding.Embedding;
+import org.example.ChatGPTQueryService;
+import org.example.ModelClientRegistry;
+import org.example.PineconService;
+import org.example.SDKConnectorService;
+import org.example.TokenService;
+import org.example.WebScraperService;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The benchmarks of the public service paths, run against {@link StandInServers} and a
+ * {@link StandInEmbeddingStore}. {@link SingleThreadBenchmark} runs them one call at a time and
+ * {@link ConcurrentLoadBenchmark} under concurrent load.
+ *
+ * Every benchmark is measured both as throughput and as sampled latency, whose report includes the p50, p90, p99
+ * and p99.9 percentiles; {@link BenchmarkRunner} adds the GC profiler for the allocation per operation. The latency
+ * of the stand-in services is the {@code latencyMs} parameter (default 20 ms; e.g. {@code -p latencyMs=0,50}).
+ *
+ * The response, page, embedding and SDP response caches are disabled and every call uses a different question or
+ * URL, so that each operation really goes through the HTTP client, the parsers and the resilience and rate-limit
+ * layers; the rate limits are raised far above what the stand-ins can serve. {@link #generateTkn} is the exception: it measures
+ * the cached path callers normally take, while {@link #refreshAccessToken} measures a round trip to Zoho.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = {
+        "-Xms1g", "-Xmx1g",
+        "-Dllm.cache.enabled=false",
+        "-Dscraper.cache.enabled=false",
+        "-Dembedding.cache.enabled=false",
+        "-Dsdp.cache.enabled=false",
+        "-Dratelimit.openai.requestsPerMinute=1000000000",
+        "-Dratelimit.openai.tokensPerMinute=0",
+        "-Dratelimit.openai.maxConcurrency=1024",
+        "-Dratelimit.zoho.requestsPerMinute=1000000000",
+        "-Dratelimit.zoho.maxConcurrency=1024",
+        "-Dratelimit.sdp.requestsPerMinute=1000000000",
+        "-Dratelimit.sdp.maxConcurrency=1024"
+})
+public abstract class ServiceBenchmark {
+
+    private static final String MODEL = "gpt-4o";
+    private static final String OPENAI_KEY = "sk-benchmark";
+    private static final String PINECONE_KEY = "pc-benchmark";
+    private static final String INDEX = "soporte";
+    private static final String NAMESPACE = "kb";
+    private static final String CODE = "1000.benchmark-code";
+    private static final String CLIENT_ID = "1000.BENCHMARKCLIENT";
+    private static final String CLIENT_SECRET = "benchmark-secret";
+
+    @Param("20")
+    public long latencyMs;
+
+    private StandInServers servers;
+    private String refreshToken;
+
+    /**
+     * A counter per benchmark thread, to make every question and URL different.
+     */
+    @State(Scope.Thread)
+    public static class Calls {
+        private static final AtomicLong threads = new AtomicLong();
+        private final long thread = threads.incrementAndGet();
+        private long call;
+
+        String next(String text) {
+            return text + " (" + thread + "-" + (++call) + ")";
+        }
+
+        long nextId() {
+            return thread * 1_000_000_000L + (++call);
+        }
+    }
+
+    /**
+     * Starts the stand-in servers and points the services to them. The properties are set before the first call
+     * to the services, since they are read when the service classes are initialized.
+     */
+    @Setup(Level.Trial)
+    public void startServers() throws IOException {
+        servers = StandInServers.start(latencyMs);
+        System.setProperty("openai.baseUrl", servers.openAiBaseUrl());
+        System.setProperty("zoho.accountsUrl", servers.zohoAccountsUrl());
+        ModelClientRegistry.registerEmbeddingStore(PINECONE_KEY, INDEX, NAMESPACE, new StandInEmbeddingStore(latencyMs));
+        refreshToken = TokenService.generateTkn(CODE, CLIENT_ID, CLIENT_SECRET).getString("refresh_token");
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearRecordedRequests() throws InterruptedException {
+        servers.clearRecordedRequests();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServers() throws IOException {
+        servers.close();
+    }
+
+    @Benchmark
+    public JSONObject search(Calls calls) throws Exception {
+        return ChatGPTQueryService.search(calls.next("¿Qué recomiendan los blogs para empezar una transformación digital?"),
+                MODEL, OPENAI_KEY, 256, 0.0);
+    }
+
+    @Benchmark
+    public JSONObject searchOnWebPage(Calls calls) throws Exception {
+        return ChatGPTQueryService.searchOnWebPage(calls.next("¿Qué recomiendan los blogs para empezar?"),
+                servers.webPageUrl("/blog/transformacion-digital?n=" + calls.nextId()), MODEL, OPENAI_KEY, 256, 0.0);
+    }
+
+    @Benchmark
+    public JSONObject searchVectorPinecone(Calls calls) throws Exception {
+        return PineconService.searchVectorPinecone(OPENAI_KEY, PINECONE_KEY, INDEX, NAMESPACE,
+                calls.next("No puedo conectarme a la VPN desde casa"));
+    }
+
+    @Benchmark
+    public Embedding embedPrompt(Calls calls) {
+        return PineconService.embedPrompt(OPENAI_KEY, calls.next("No puedo conectarme a la VPN desde casa"));
+    }
+
+    @Benchmark
+    public JSONObject fetchContent(Calls calls) throws Exception {
+        return WebScraperService.fetchContent(servers.webPageUrl("/blog/transformacion-digital?n=" + calls.nextId()));
+    }
+
+    @Benchmark
+    public JSONObject generateTkn() {
+        return TokenService.generateTkn(CODE, CLIENT_ID, CLIENT_SECRET);
+    }
+
+    @Benchmark
+    public JSONObject refreshAccessToken() {
+        // Under concurrent load, refreshes running at the same time share one request, as in production
+        return TokenService.refreshAccessToken(CLIENT_ID, CLIENT_SECRET, refreshToken);
+    }
+
+    @Benchmark
+    public JSONObject invokeGetTkn() throws Exception {
+        return SDKConnectorService.invokeGetTkn(servers.sdpRequestsUrl(), CODE, CLIENT_ID, CLIENT_SECRET);
+    }
+}
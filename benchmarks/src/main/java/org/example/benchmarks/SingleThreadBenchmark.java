@@ -0,0 +1,10 @@
+package org.example.benchmarks;
+
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Runs the {@link ServiceBenchmark} benchmarks one call at a time: the cost of each service path on its own.
+ */
+@Threads(1)
+public class SingleThreadBenchmark extends ServiceBenchmark {
+}
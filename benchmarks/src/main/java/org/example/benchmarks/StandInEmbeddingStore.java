@@ -0,0 +1,100 @@
+package org.example.benchmarks;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class stands in for a Pinecone namespace in the benchmarks. Pinecone is reached through its client library
+ * (gRPC), not through plain HTTP, so it cannot be replaced by a local HTTP server like the other services; instead
+ * this store is registered with {@link org.example.ModelClientRegistry#registerEmbeddingStore} and answers every
+ * search with the matches recorded in {@code /recorded/pinecone-matches.json}, after the configured latency.
+ *
+ * Each match carries a fixed pseudo-random embedding, so the near-duplicate removal and MMR of the services have
+ * real vectors to work on.
+ */
+public class StandInEmbeddingStore implements EmbeddingStore<TextSegment> {
+
+    private static final int EMBEDDING_DIMENSIONS = 1536;
+
+    private final List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>();
+    private final long latencyMillis;
+
+    /**
+     * Creates the store.
+     *
+     * @param latencyMillis How long every search waits before answering, in milliseconds.
+     */
+    public StandInEmbeddingStore(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        JSONArray recorded = new JSONArray(StandInServers.resource("pinecone-matches.json"));
+        Random random = new Random(7);
+        for (int i = 0; i < recorded.length(); i++) {
+            JSONObject match = recorded.getJSONObject(i);
+            matches.add(new EmbeddingMatch<>(match.getDouble("score"), match.getString("id"),
+                    randomEmbedding(random), TextSegment.from(match.getString("text"))));
+        }
+    }
+
+    @Override
+    public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while searching", e);
+        }
+        List<EmbeddingMatch<TextSegment>> result = new ArrayList<>();
+        for (EmbeddingMatch<TextSegment> match : matches) {
+            if (result.size() < request.maxResults() && match.score() >= request.minScore()) {
+                result.add(match);
+            }
+        }
+        return new EmbeddingSearchResult<>(result);
+    }
+
+    @Override
+    public String add(Embedding embedding) {
+        throw new UnsupportedOperationException("The stand-in store is read-only");
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        throw new UnsupportedOperationException("The stand-in store is read-only");
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment textSegment) {
+        throw new UnsupportedOperationException("The stand-in store is read-only");
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        throw new UnsupportedOperationException("The stand-in store is read-only");
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
+        throw new UnsupportedOperationException("The stand-in store is read-only");
+    }
+
+    private static Embedding randomEmbedding(Random random) {
+        float[] vector = new float[EMBEDDING_DIMENSIONS];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        Embedding embedding = Embedding.from(vector);
+        embedding.normalize();
+        return embedding;
+    }
+}
@@ -0,0 +1,229 @@
+package org.example.benchmarks;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class runs local stand-ins of the HTTP services called by the project, so that the services can be
+ * benchmarked without network access, credentials or costs:
+ * <ul>
+ *     <li>OpenAI: {@code /chat/completions} and {@code /embeddings};</li>
+ *     <li>Zoho accounts: {@code /oauth/v2/token};</li>
+ *     <li>ServiceDesk Plus: {@code /api/v3/requests};</li>
+ *     <li>a web site: any other path answers a blog article.</li>
+ * </ul>
+ * Each service has its own server (as it has its own host in production) and replays the responses recorded in
+ * {@code /recorded} after the configured latency, which stands for the time the real service takes to answer.
+ * The embedding response is generated, since a recorded one would be 1536 numbers of no interest.
+ *
+ * The servers keep every request they receive; call {@link #clearRecordedRequests()} between iterations so a long
+ * benchmark does not fill the heap with them.
+ */
+public class StandInServers implements AutoCloseable {
+
+    private static final int EMBEDDING_DIMENSIONS = 1536;
+
+    private final MockWebServer openAi = new MockWebServer();
+    private final MockWebServer zoho = new MockWebServer();
+    private final MockWebServer sdp = new MockWebServer();
+    private final MockWebServer web = new MockWebServer();
+
+    private final long latencyMillis;
+    private final String chatCompletion = resource("openai-chat-completion.json");
+    private final String embedding = embeddingResponse();
+    private final String token = resource("zoho-token.json");
+    private final String requests = resource("sdp-requests.json");
+    private final String page = resource("web-page.html");
+
+    /**
+     * Starts the servers.
+     *
+     * @param latencyMillis How long every server waits before answering, in milliseconds.
+     * @return              The running servers.
+     * @throws IOException  If a server cannot be started.
+     */
+    public static StandInServers start(long latencyMillis) throws IOException {
+        StandInServers servers = new StandInServers(latencyMillis);
+        servers.openAi.setDispatcher(servers.dispatcher(servers::openAi));
+        servers.zoho.setDispatcher(servers.dispatcher(servers::zoho));
+        servers.sdp.setDispatcher(servers.dispatcher(servers::sdp));
+        servers.web.setDispatcher(servers.dispatcher(servers::web));
+        servers.openAi.start();
+        servers.zoho.start();
+        servers.sdp.start();
+        servers.web.start();
+        return servers;
+    }
+
+    private StandInServers(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Returns the value for {@code openai.baseUrl}.
+     *
+     * @return The base URL of the OpenAI stand-in.
+     */
+    public String openAiBaseUrl() {
+        return openAi.url("/v1").toString();
+    }
+
+    /**
+     * Returns the value for {@code zoho.accountsUrl}.
+     *
+     * @return The base URL of the Zoho accounts stand-in.
+     */
+    public String zohoAccountsUrl() {
+        return zoho.url("/").toString();
+    }
+
+    /**
+     * Returns the URL of the list of requests of the ServiceDesk Plus stand-in.
+     *
+     * @return The URL of the requests endpoint.
+     */
+    public String sdpRequestsUrl() {
+        return sdp.url("/api/v3/requests").toString();
+    }
+
+    /**
+     * Returns the URL of a page of the web site stand-in. Every path answers the same article.
+     *
+     * @param path The path of the page.
+     * @return     The URL of the page.
+     */
+    public String webPageUrl(String path) {
+        return web.url(path).toString();
+    }
+
+    /**
+     * Drops the requests the servers have recorded.
+     *
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    public void clearRecordedRequests() throws InterruptedException {
+        for (MockWebServer server : new MockWebServer[]{openAi, zoho, sdp, web}) {
+            while (server.takeRequest(0, TimeUnit.MILLISECONDS) != null) {
+                // Discarded
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        openAi.shutdown();
+        zoho.shutdown();
+        sdp.shutdown();
+        web.shutdown();
+    }
+
+    private interface Handler {
+        MockResponse handle(RecordedRequest request);
+    }
+
+    private Dispatcher dispatcher(Handler handler) {
+        return new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return handler.handle(request).setHeadersDelay(latencyMillis, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+
+    private MockResponse openAi(RecordedRequest request) {
+        String path = request.getPath();
+        if (path.endsWith("/chat/completions")) {
+            return json(chatCompletion);
+        }
+        if (path.endsWith("/embeddings")) {
+            return json(embedding);
+        }
+        return new MockResponse().setResponseCode(404);
+    }
+
+    private MockResponse zoho(RecordedRequest request) {
+        if (request.getPath().startsWith("/oauth/v2/token")) {
+            return json(token);
+        }
+        return new MockResponse().setResponseCode(404);
+    }
+
+    private MockResponse sdp(RecordedRequest request) {
+        if (request.getPath().startsWith("/api/v3/requests")) {
+            return json(requests).setHeader("Content-Type", "application/vnd.manageengine.sdp.v3+json;charset=UTF-8");
+        }
+        return new MockResponse().setResponseCode(404);
+    }
+
+    private MockResponse web(RecordedRequest request) {
+        return new MockResponse()
+                .setHeader("Content-Type", "text/html; charset=utf-8")
+                .setHeader("Cache-Control", "no-store")
+                .setBody(page);
+    }
+
+    private static MockResponse json(String body) {
+        return new MockResponse()
+                .setHeader("Content-Type", "application/json")
+                .setBody(body);
+    }
+
+    /**
+     * Builds the answer of the embeddings endpoint: one normalized vector with the usual size and format.
+     */
+    private static String embeddingResponse() {
+        Random random = new Random(42);
+        double[] vector = new double[EMBEDDING_DIMENSIONS];
+        double norm = 0;
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = random.nextGaussian();
+            norm += vector[i] * vector[i];
+        }
+        norm = Math.sqrt(norm);
+
+        StringBuilder json = new StringBuilder(EMBEDDING_DIMENSIONS * 14);
+        json.append("{\"object\":\"list\",\"data\":[{\"object\":\"embedding\",\"index\":0,\"embedding\":[");
+        for (int i = 0; i < vector.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.ROOT, "%.9f", vector[i] / norm));
+        }
+        json.append("]}],\"model\":\"text-embedding-3-small\",\"usage\":{\"prompt_tokens\":12,\"total_tokens\":12}}");
+        return json.toString();
+    }
+
+    /**
+     * Reads a recorded response from the classpath.
+     *
+     * @param name The file name in {@code /recorded}.
+     * @return     The content of the file.
+     */
+    static String resource(String name) {
+        try (InputStream in = StandInServers.class.getResourceAsStream("/recorded/" + name)) {
+            if (in == null) {
+                throw new IllegalStateException("Missing recorded response: " + name);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class limits how many calls to an upstream service run at the same time, and adapts that limit
+ * to the answers of the service using AIMD (additive increase, multiplicative decrease):
+ * every successful call raises the limit a little, and a throttled call (HTTP 429) halves it and pauses
+ * new calls for the time the service asked for in its Retry-After header.
+ *
+ * When the caller reports latencies with {@link #onSuccess(long)}, the limit also follows a latency gradient:
+ * while the recent latency stays above {@link #LATENCY_TOLERANCE} times the lowest latency of the last samples,
+ * the upstream is queueing requests, and the limit is reduced by 10% instead of increased.
+ *
+ * Callers that cannot start yet wait in {@link #acquire()} or {@link #acquireAsync()}, in the order they arrived;
+ * they never fail because of the limit.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    // Minimum time between two decreases, so a burst of 429s from calls already in flight halves the limit only once
+    private static final long DECREASE_INTERVAL_MILLIS = 1000L;
+
+    // Recent latency above this multiple of the baseline latency means the upstream is overloaded
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    // The baseline is the lowest latency of this many successes
+    private static final int BASELINE_SAMPLES = 100;
+
+    // Ends the pauses requested by Retry-After when callers are waiting
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "concurrency-limiter-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+
+    private double limit;
+    private int inFlight;
+    private long pausedUntil;
+    private long lastDecrease;
+    private boolean wakeUpScheduled;
+
+    // Latency gradient
+    private double recentLatency = -1;
+    private long baselineLatency = Long.MAX_VALUE;
+    private long windowMinLatency = Long.MAX_VALUE;
+    private int windowSamples;
+
+    /**
+     * Creates a limiter that starts at its maximum limit.
+     *
+     * @param minLimit The lowest number of concurrent calls the limit can drop to (at least 1).
+     * @param maxLimit The highest number of concurrent calls allowed.
+     */
+    public AdaptiveConcurrencyLimiter(int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limits: min=" + minLimit + ", max=" + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = maxLimit;
+    }
+
+    /**
+     * Waits until a new call is allowed to start and reserves a slot for it.
+     * Every successful acquire must be followed by exactly one call to {@link #onSuccess()},
+     * {@link #onThrottled(long)} or {@link #onFailure()}.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void acquire() throws InterruptedException {
+        CompletableFuture<Void> slot = acquireAsync();
+        try {
+            slot.get();
+        } catch (InterruptedException e) {
+            // If the slot was granted meanwhile, give it back
+            if (!slot.cancel(false)) {
+                onFailure();
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Reserves a slot for a new call without blocking. The returned future completes when the call is allowed
+     * to start; cancelling it before then gives up the place in the queue.
+     * Every completed acquire must be followed by exactly one call to {@link #onSuccess()},
+     * {@link #onThrottled(long)} or {@link #onFailure()}.
+     *
+     * @return A future completed when the slot is reserved.
+     */
+    public CompletableFuture<Void> acquireAsync() {
+        lock.lock();
+        try {
+            if (waiters.isEmpty() && pausedUntil <= System.currentTimeMillis() && inFlight < (int) limit) {
+                inFlight++;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> slot = new CompletableFuture<>();
+            waiters.add(slot);
+            scheduleWakeUp();
+            slot.whenComplete((granted, error) -> {
+                if (slot.isCancelled()) {
+                    removeWaiter(slot);
+                }
+            });
+            return slot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the slot of a call that succeeded and increases the limit additively.
+     */
+    public void onSuccess() {
+        List<CompletableFuture<Void>> granted;
+        lock.lock();
+        try {
+            inFlight--;
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+            granted = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        grant(granted);
+    }
+
+    /**
+     * Releases the slot of a call that succeeded, and adapts the limit to its latency: the limit grows while the
+     * latency stays close to the baseline and shrinks by 10% when it grows beyond the tolerance.
+     *
+     * @param latencyMillis How long the call took, in milliseconds.
+     */
+    public void onSuccess(long latencyMillis) {
+        List<CompletableFuture<Void>> granted;
+        lock.lock();
+        try {
+            inFlight--;
+            recentLatency = recentLatency < 0 ? latencyMillis : 0.9 * recentLatency + 0.1 * latencyMillis;
+            windowMinLatency = Math.min(windowMinLatency, latencyMillis);
+            if (++windowSamples >= BASELINE_SAMPLES) {
+                baselineLatency = windowMinLatency;
+                windowMinLatency = Long.MAX_VALUE;
+                windowSamples = 0;
+            }
+            long baseline = Math.min(baselineLatency, windowMinLatency);
+            long now = System.currentTimeMillis();
+            if (recentLatency > LATENCY_TOLERANCE * Math.max(1, baseline)) {
+                if (now - lastDecrease >= DECREASE_INTERVAL_MILLIS) {
+                    limit = Math.max(minLimit, limit * 0.9);
+                    lastDecrease = now;
+                }
+            } else {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            granted = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        grant(granted);
+    }
+
+    /**
+     * Releases the slot of a call that was rejected because of rate limits, halves the limit,
+     * and pauses new calls for the given time.
+     *
+     * @param retryAfterMillis How long the upstream asked callers to wait, in milliseconds.
+     */
+    public void onThrottled(long retryAfterMillis) {
+        List<CompletableFuture<Void>> granted;
+        lock.lock();
+        try {
+            inFlight--;
+            long now = System.currentTimeMillis();
+            if (now - lastDecrease >= DECREASE_INTERVAL_MILLIS) {
+                limit = Math.max(minLimit, limit / 2);
+                lastDecrease = now;
+            }
+            pausedUntil = Math.max(pausedUntil, now + retryAfterMillis);
+            granted = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        grant(granted);
+    }
+
+    /**
+     * Releases the slot of a call that failed for a reason unrelated to load. The limit is not changed.
+     */
+    public void onFailure() {
+        List<CompletableFuture<Void>> granted;
+        lock.lock();
+        try {
+            inFlight--;
+            granted = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        grant(granted);
+    }
+
+    /**
+     * Returns the current number of calls allowed to run at the same time.
+     *
+     * @return The current concurrency limit.
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of calls running now.
+     *
+     * @return The calls holding a slot.
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of callers waiting for a slot.
+     *
+     * @return The length of the queue.
+     */
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeWaiter(CompletableFuture<Void> slot) {
+        lock.lock();
+        try {
+            waiters.remove(slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the waiters that can start now, in arrival order. Called with the lock held; the returned futures
+     * are completed by {@link #grant} after the lock is released.
+     */
+    private List<CompletableFuture<Void>> dispatch() {
+        List<CompletableFuture<Void>> granted = new ArrayList<>();
+        if (pausedUntil > System.currentTimeMillis()) {
+            scheduleWakeUp();
+            return granted;
+        }
+        while (!waiters.isEmpty() && inFlight < (int) limit) {
+            CompletableFuture<Void> slot = waiters.poll();
+            if (!slot.isDone()) {
+                inFlight++;
+                granted.add(slot);
+            }
+        }
+        return granted;
+    }
+
+    private void grant(List<CompletableFuture<Void>> granted) {
+        for (CompletableFuture<Void> slot : granted) {
+            if (!slot.complete(null)) {
+                // Cancelled by its caller between dispatch and now
+                onFailure();
+            }
+        }
+    }
+
+    /**
+     * Makes sure the waiters are dispatched when the current pause ends. Called with the lock held.
+     */
+    private void scheduleWakeUp() {
+        long pause = pausedUntil - System.currentTimeMillis();
+        if (pause <= 0 || wakeUpScheduled) {
+            return;
+        }
+        wakeUpScheduled = true;
+        timer.schedule(() -> {
+            List<CompletableFuture<Void>> granted;
+            lock.lock();
+            try {
+                wakeUpScheduled = false;
+                granted = dispatch();
+            } finally {
+                lock.unlock();
+            }
+            grant(granted);
+        }, pause, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,79 @@
+package org.example;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs the blocking steps of the asynchronous APIs: calls made through the langchain4j clients
+ * (embeddings, Pinecone searches, chat generation), which have no non-blocking variant, and CPU-bound work
+ * such as context selection. HTTP calls made directly with OkHttp use {@link HttpClientProvider#executeAsync}
+ * instead and need no thread while they wait.
+ *
+ * The pool has {@code async.blockingThreads} threads (default 32). Tasks beyond that wait in the queue without
+ * holding a thread, so any number of requests can be in flight.
+ */
+public class AsyncTasks {
+
+    private static final ExecutorService executor = createExecutor();
+
+    /**
+     * Returns the executor of the blocking steps.
+     *
+     * @return The shared executor.
+     */
+    public static ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Runs a blocking task on the shared executor. Cancelling the returned future skips the task if it has not
+     * started yet, and interrupts its thread otherwise; whether a running call stops then depends on the client
+     * (a blocking socket read, for example, does not).
+     *
+     * @param task The task to run.
+     * @param <T>  The type of the result.
+     * @return     A future completed with the result of the task, or exceptionally with the exception it threw.
+     */
+    public static <T> CompletableFuture<T> supply(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        FutureTask<Void> runner = new FutureTask<>(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+            return null;
+        });
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled()) {
+                runner.cancel(true);
+            }
+        });
+        try {
+            executor.execute(runner);
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private static ExecutorService createExecutor() {
+        int threads = Integer.getInteger("async.blockingThreads", 32);
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "async-blocking-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
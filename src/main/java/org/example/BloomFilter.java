@@ -0,0 +1,96 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe Bloom filter of strings, used to remember which URLs were already seen with a fixed amount
+ * of memory (about 1.2 bytes per expected entry at a 1% false positive rate).
+ *
+ * A false positive makes a new string look already seen; a string that was added is never reported as new.
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * Creates a filter sized for the expected number of entries and false positive rate.
+     *
+     * @param expectedEntries   The number of strings expected to be added.
+     * @param falsePositiveRate The acceptable probability that a new string looks already seen (e.g. 0.01).
+     */
+    public BloomFilter(long expectedEntries, double falsePositiveRate) {
+        long entries = Math.max(1, expectedEntries);
+        long bitsNeeded = (long) Math.ceil(-entries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (bitsNeeded + 63) / 64));
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = (long) words * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / entries * Math.log(2)));
+    }
+
+    /**
+     * Adds a string to the filter.
+     *
+     * @param value The string to add.
+     * @return      True if the string was not in the filter before, false if it was (or is a false positive).
+     */
+    public boolean add(String value) {
+        long[] hashes = hash(value);
+        boolean added = false;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(hashes[0] + i * hashes[1], bitCount);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            do {
+                current = bits.get(word);
+                if ((current & mask) != 0) {
+                    break;
+                }
+                added = true;
+            } while (!bits.compareAndSet(word, current, current | mask));
+        }
+        return added;
+    }
+
+    /**
+     * Indicates whether a string might have been added to the filter.
+     *
+     * @param value The string to look up.
+     * @return      False if the string was never added, true if it probably was.
+     */
+    public boolean mightContain(String value) {
+        long[] hashes = hash(value);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(hashes[0] + i * hashes[1], bitCount);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Two independent 64-bit hashes (FNV-1a followed by a MurmurHash3 finalizer with two seeds), combined by
+     * double hashing to derive every bit position.
+     */
+    private static long[] hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return new long[]{mix(h), mix(h ^ 0x9E3779B97F4A7C15L) | 1};
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,77 @@
+package org.example;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class wraps an embedding model with an {@link EmbeddingCache}. Texts found in the cache are answered
+ * without calling the model; the remaining texts are embedded together in a single call and then cached.
+ * Embeddings answered from the cache share their vector with it, so they must not be modified (e.g. normalized).
+ */
+public class CachingEmbeddingModel implements EmbeddingModel {
+
+    private final EmbeddingModel delegate;
+    private final String modelName;
+    private final EmbeddingCache cache;
+
+    /**
+     * Creates a caching wrapper around an embedding model.
+     *
+     * @param delegate  The model that computes the embeddings missing from the cache.
+     * @param modelName The model name, part of the cache key.
+     * @param cache     The cache to read from and write to.
+     */
+    public CachingEmbeddingModel(EmbeddingModel delegate, String modelName, EmbeddingCache cache) {
+        this.delegate = delegate;
+        this.modelName = modelName;
+        this.cache = cache;
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+        Embedding[] embeddings = new Embedding[textSegments.size()];
+        List<TextSegment> missing = new ArrayList<>();
+        List<Integer> missingPositions = new ArrayList<>();
+
+        for (int i = 0; i < textSegments.size(); i++) {
+            float[] vector = cache.get(modelName, textSegments.get(i).text());
+            if (vector != null) {
+                embeddings[i] = new Embedding(vector);
+            } else {
+                missing.add(textSegments.get(i));
+                missingPositions.add(i);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return Response.from(toList(embeddings));
+        }
+
+        Response<List<Embedding>> computed = delegate.embedAll(missing);
+        for (int i = 0; i < missing.size(); i++) {
+            Embedding embedding = computed.content().get(i);
+            // The cache keeps its own copy, so it is not affected if the caller modifies this embedding
+            cache.put(modelName, missing.get(i).text(), embedding.vector().clone());
+            embeddings[missingPositions.get(i)] = embedding;
+        }
+        return Response.from(toList(embeddings), computed.tokenUsage(), computed.finishReason());
+    }
+
+    @Override
+    public int dimension() {
+        return delegate.dimension();
+    }
+
+    private static List<Embedding> toList(Embedding[] embeddings) {
+        List<Embedding> list = new ArrayList<>(embeddings.length);
+        for (Embedding embedding : embeddings) {
+            list.add(embedding);
+        }
+        return list;
+    }
+}
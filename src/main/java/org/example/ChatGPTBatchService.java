@@ -0,0 +1,181 @@
+package org.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.example.ChatGPTQueryService.search;
+
+/**
+ * This class runs many prompts through the OpenAI GPT API at once.
+ *
+ * The online mode ({@link #searchAll}) sends the prompts concurrently with bounded parallelism. Each prompt goes
+ * through {@link ChatGPTQueryService#search}, so the calls share the {@link RateController} of the API key, whose
+ * limit adapts to 429 responses, and throttled or failed attempts are retried by its {@link ResilientExecutor}.
+ * The offline mode writes and reads files in the OpenAI Batch API JSONL format, for jobs that can wait for the
+ * batch to be processed.
+ */
+public class ChatGPTBatchService {
+
+    private static final String BATCH_URL = "/v1/chat/completions";
+    private static final String CUSTOM_ID_PREFIX = "request-";
+
+    /**
+     * Sends every prompt to the OpenAI GPT API concurrently and returns the results in the same order as the prompts.
+     * A prompt that fails does not stop the batch: its result holds the error instead of the content.
+     *
+     * @param prompts        The prompts to send.
+     * @param version        The version of the GPT model to use (e.g., "gpt-3.5-turbo", "gpt-4").
+     * @param apiKey         The API key for authenticating the requests to the OpenAI API.
+     * @param max_tokens     The maximum number of tokens the API should return in each response.
+     * @param temperature    The sampling temperature (higher values produce more random responses).
+     * @param maxConcurrency The maximum number of requests in flight at the same time, at least 1.
+     * @return               A JSONArray with one JSONObject per prompt, in input order. Each element has the prompt
+     *                       "index" and the same fields returned by {@link ChatGPTQueryService#search}, or an
+     *                       "exception" message if the request could not be completed.
+     * @throws InterruptedException     If the calling thread is interrupted while waiting for the results.
+     * @throws IllegalArgumentException If maxConcurrency is less than 1.
+     */
+    public static JSONArray searchAll(List<String> prompts, String version, String apiKey, int max_tokens, double temperature,
+                                      int maxConcurrency) throws InterruptedException {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1: " + maxConcurrency);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxConcurrency, Math.max(1, prompts.size())));
+
+        try {
+            List<Future<JSONObject>> futures = new ArrayList<>(prompts.size());
+            for (String prompt : prompts) {
+                futures.add(executor.submit(() -> search(prompt, version, apiKey, max_tokens, temperature)));
+            }
+
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < futures.size(); i++) {
+                JSONObject result;
+                try {
+                    result = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    result = new JSONObject();
+                    result.put("exception", "Error while processing the prompt: " + e.getCause().getMessage());
+                }
+                result.put("index", i);
+                results.put(result);
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes the prompts as an OpenAI Batch API input file (one chat completion request per line).
+     * Each line gets the custom_id {@code request-<index>}, which {@link #readBatchResults} uses to restore the order.
+     *
+     * @param prompts     The prompts to write.
+     * @param version     The version of the GPT model to use (e.g., "gpt-3.5-turbo", "gpt-4").
+     * @param max_tokens  The maximum number of tokens the API should return in each response.
+     * @param temperature The sampling temperature (higher values produce more random responses).
+     * @param file        The JSONL file to create or overwrite.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void writeBatchFile(List<String> prompts, String version, int max_tokens, double temperature, Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < prompts.size(); i++) {
+                JSONObject line = new JSONObject();
+                line.put("custom_id", CUSTOM_ID_PREFIX + i);
+                line.put("method", "POST");
+                line.put("url", BATCH_URL);
+                line.put("body", ChatGPTQueryService.buildChatBody(prompts.get(i), version, max_tokens, temperature));
+                writer.write(line.toString());
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Reads an OpenAI Batch API output (or error) file produced for a file written by {@link #writeBatchFile}
+     * and returns the results in the order of the original prompts.
+     *
+     * @param file  The JSONL output file downloaded from the Batch API.
+     * @param count The number of prompts in the original batch.
+     * @return      A JSONArray with one JSONObject per prompt, in input order, with the same fields returned by
+     *              {@link ChatGPTQueryService#search}. Prompts missing from the file get an "error" entry.
+     * @throws IOException If the file cannot be read.
+     */
+    public static JSONArray readBatchResults(Path file, int count) throws IOException {
+        JSONObject[] ordered = new JSONObject[count];
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                JSONObject entry = new JSONObject(line);
+                int index = parseIndex(entry.optString("custom_id", ""));
+                if (index < 0 || index >= count) {
+                    // Not one of the requests written by writeBatchFile
+                    continue;
+                }
+
+                JSONObject result = new JSONObject();
+                JSONObject response = entry.optJSONObject("response");
+                if (response != null) {
+                    int responseCode = response.getInt("status_code");
+                    JSONObject body = response.getJSONObject("body");
+                    result.put("responseCode", responseCode);
+                    if (responseCode == 200) {
+                        result.put("content", body.getJSONArray("choices")
+                                .getJSONObject(0)
+                                .getJSONObject("message")
+                                .getString("content"));
+                        result.put("rawResponse", body);
+                    } else {
+                        result.put("error", body.toString());
+                    }
+                } else {
+                    result.put("error", entry.isNull("error") ? "Missing response" : entry.get("error").toString());
+                }
+                ordered[index] = result;
+            }
+        }
+
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            JSONObject result = ordered[i];
+            if (result == null) {
+                result = new JSONObject();
+                result.put("error", "No result found in the batch output for " + CUSTOM_ID_PREFIX + i);
+            }
+            result.put("index", i);
+            results.put(result);
+        }
+        return results;
+    }
+
+    /**
+     * Returns the prompt index of a custom_id written by {@link #writeBatchFile}, or -1 for any other custom_id.
+     */
+    private static int parseIndex(String customId) {
+        if (!customId.startsWith(CUSTOM_ID_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(customId.substring(CUSTOM_ID_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
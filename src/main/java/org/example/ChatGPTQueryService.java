@@ -1,14 +1,27 @@
 package org.example;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-
-import dev.langchain4j.model.openai.OpenAiChatModel;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.Tokenizer;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.output.TokenUsage;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSource;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
 import static dev.langchain4j.model.openai.OpenAiChatModelName.GPT_4_O;
 import static org.example.WebScraperService.fetchContent;
 
@@ -19,69 +32,301 @@ import static org.example.WebScraperService.fetchContent;
  */
 public class ChatGPTQueryService {
 
+    private static final String CHAT_COMPLETIONS_URL = ModelClientRegistry.OPENAI_BASE_URL + "/chat/completions";
+
+    // Return the whole completion as "rawResponse" (parses the full body instead of only the needed fields)
+    private static final boolean RAW_RESPONSE = Boolean.getBoolean("openai.rawResponse");
+
+    // Hedging, retries and circuit breaker of the chat completion calls
+    private static final String CHAT_ENDPOINT = "openai.chat";
+    private static final ResilientExecutor chatEndpoint = ResilientExecutor.forEndpoint(CHAT_ENDPOINT);
+
+    // Identical requests running at the same time share one call to the API
+    private static final SingleFlight<JSONObject> chatFlight = new SingleFlight<>("chat", SingleFlight::copyJson);
+    private static final SingleFlight<JSONObject> streamFlight = new SingleFlight<>("chat.stream", SingleFlight::copyJson);
+    private static final Map<String, SharedStream> sharedStreams = new ConcurrentHashMap<>();
+
+    // Duration, outcome and tokens of the chat calls, see Metrics
+    private static final Metrics.Stage searchStage = Metrics.stage("openai.search");
+    private static final Metrics.Stage streamStage = Metrics.stage("openai.stream");
+    private static final Metrics.Stage generateStage = Metrics.stage("openai.generate");
+
     /**
      * Sends a query to the OpenAI GPT API and returns a JSON response containing the result.
+     * Successful answers are kept in the {@link ResponseCache}, and identical queries are answered from it.
+     * Identical queries sent while the first one is still running wait for its answer instead of calling the API
+     * again (see {@link SingleFlight}).
+     *
+     * The call goes through the "openai.chat" {@link ResilientExecutor}: slow attempts are hedged, failures
+     * (network errors, HTTP 429 and 5xx) are retried within the deadline, and calls are rejected with a
+     * {@link CircuitBreaker.OpenException} while the endpoint is failing. If the deadline expires after a failed
+     * answer, that answer is returned with its "error" as before.
      *
      * @param text        The input query to be processed by the OpenAI model.
      * @param version     The version of the GPT model to use (e.g., "gpt-3.5-turbo", "gpt-4").
      * @param apiKey      The API key for authenticating the request to the OpenAI API.
      * @param max_tokens  The maximum number of tokens the API should return in the response.
      * @param temperature The sampling temperature (higher values produce more random responses).
-     * @return            A JSONObject containing the API's response, including the processed content and the raw response.
+     * @return            A JSONObject containing the API's response: the processed content, its finish_reason and token usage.
      * @throws Exception  If an error occurs during the HTTP request or response parsing.
      */
     public static JSONObject search(String text, String version, String apiKey, int max_tokens, double temperature) throws Exception {
-        String url = "https://api.openai.com/v1/chat/completions";
-        HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+        // Identical queries are answered from the response cache without calling the API
+        String cacheKey = ResponseCache.exactKey(apiKey, version, temperature, max_tokens, text);
+        JSONObject cached = ResponseCache.getExact(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
 
-        con.setRequestMethod("POST");
-        con.setRequestProperty("Content-Type", "application/json");
-        con.setRequestProperty("Authorization", "Bearer " + apiKey);
+        Request request = buildChatRequest(text, version, apiKey, max_tokens, temperature, false);
 
-        JSONObject data = new JSONObject();
-        data.put("model", version);
+        long estimatedTokens = estimateTokens(text, version, max_tokens);
 
-        JSONArray messages = new JSONArray();
-        JSONObject message = new JSONObject();
-        message.put("role", "user");
-        message.put("content", text);
-        messages.put(message);
+        return searchStage.time(() -> chatFlight.execute(cacheKey, () -> chatEndpoint.execute(
+                started -> sendChatRequest(request, apiKey, estimatedTokens, cacheKey, started),
+                ChatGPTQueryService::isRetryable, ChatGPTQueryService::isThrottled, ChatGPTQueryService::retryAfterMillis)),
+                ChatGPTQueryService::outcomeOf);
+    }
 
-        data.put("messages", messages);
-        data.put("max_tokens", max_tokens);
-        data.put("temperature", temperature);
+    /**
+     * Asynchronous version of {@link #search}. The request waits in the HTTP dispatcher without holding a thread,
+     * so many queries can be in flight with few threads.
+     *
+     * @param text        The input query to be processed by the OpenAI model.
+     * @param version     The version of the GPT model to use (e.g., "gpt-3.5-turbo", "gpt-4").
+     * @param apiKey      The API key for authenticating the request to the OpenAI API.
+     * @param max_tokens  The maximum number of tokens the API should return in the response.
+     * @param temperature The sampling temperature (higher values produce more random responses).
+     * @return            A future completed with the same JSONObject returned by {@link #search}.
+     */
+    public static CompletableFuture<JSONObject> searchAsync(String text, String version, String apiKey, int max_tokens, double temperature) {
+        String cacheKey = ResponseCache.exactKey(apiKey, version, temperature, max_tokens, text);
+        JSONObject cached = ResponseCache.getExact(cacheKey);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
 
-        con.setDoOutput(true);
-        con.getOutputStream().write(data.toString().getBytes());
+        Request request = buildChatRequest(text, version, apiKey, max_tokens, temperature, false);
+        long estimatedTokens = estimateTokens(text, version, max_tokens);
+        return searchStage.timeAsync(() -> chatFlight.executeAsync(cacheKey, () -> chatEndpoint.executeAsync(
+                started -> sendChatRequest(request, apiKey, estimatedTokens, cacheKey, started),
+                ChatGPTQueryService::isRetryable, ChatGPTQueryService::isThrottled, ChatGPTQueryService::retryAfterMillis)),
+                ChatGPTQueryService::outcomeOf);
+    }
 
-        int responseCode = con.getResponseCode();
+    /**
+     * Sends a query to the OpenAI GPT API in streaming mode. The completion is read as server-sent events
+     * while it is generated, and every content fragment is passed to the listener as soon as it arrives,
+     * so the caller can show the first words long before the whole answer is ready.
+     *
+     * Identical streams requested while one is running share it: a caller that joins late first receives the
+     * content generated so far as one fragment, then the following fragments as they arrive.
+     *
+     * Streams are not retried or hedged, because fragments already passed to the listener cannot be taken back,
+     * but they respect the circuit breaker of the "openai.chat" endpoint and the {@link RateController} of the
+     * API key, and report their outcome to both.
+     *
+     * @param text        The input query to be processed by the OpenAI model.
+     * @param version     The version of the GPT model to use (e.g., "gpt-3.5-turbo", "gpt-4").
+     * @param apiKey      The API key for authenticating the request to the OpenAI API.
+     * @param max_tokens  The maximum number of tokens the API should return in the response.
+     * @param temperature The sampling temperature (higher values produce more random responses).
+     * @param listener    The listener that receives each content fragment and, at the end, the summary.
+     * @return            A JSONObject summarizing the stream: the response code, the full content, the finish_reason
+     *                    and the token usage, or the error body if the API rejected the request.
+     * @throws Exception  If an error occurs during the HTTP request or while reading the stream.
+     */
+    public static JSONObject searchStream(String text, String version, String apiKey, int max_tokens, double temperature,
+                                          ChatStreamListener listener) throws Exception {
+        // The exact cache key includes the API key, so only streams of the same account are shared
+        String key = ResponseCache.exactKey(apiKey, version, temperature, max_tokens, text);
+        while (true) {
+            SharedStream created = new SharedStream();
+            SharedStream running = sharedStreams.putIfAbsent(key, created);
+            if (running == null) {
+                created.subscribe(listener);
+                streamFlight.recordExecution();
+                try {
+                    JSONObject jsonResponse = streamStage.time(() -> readStreamThroughBreaker(
+                            buildChatRequest(text, version, apiKey, max_tokens, temperature, true),
+                            apiKey, estimateTokens(text, version, max_tokens), created), ChatGPTQueryService::outcomeOf);
+                    addUsage(streamStage, jsonResponse);
+                    sharedStreams.remove(key, created);
+                    created.complete(jsonResponse);
+                    return jsonResponse;
+                } catch (Throwable e) {
+                    sharedStreams.remove(key, created);
+                    created.fail(e);
+                    throw e;
+                }
+            }
+            // A stream that has already ended cannot be joined; start a new one
+            if (running.subscribe(listener)) {
+                streamFlight.recordCoalesced();
+                return running.await();
+            }
+        }
+    }
 
+    /**
+     * Reads a stream with {@link #readStream} if the circuit breaker of the chat endpoint allows it, once the rate
+     * controller of the API key grants a permit, and reports the outcome to both.
+     */
+    private static JSONObject readStreamThroughBreaker(Request request, String apiKey, long estimatedTokens,
+                                                      ChatStreamListener listener) throws IOException {
+        CircuitBreaker breaker = chatEndpoint.getCircuitBreaker();
+        long breakerPermit = breaker.tryAcquire();
+        if (breakerPermit == CircuitBreaker.REJECTED) {
+            throw new CircuitBreaker.OpenException(CHAT_ENDPOINT);
+        }
+        RateController.Permit permit;
+        try {
+            permit = RateController.forUpstream("openai", apiKey).acquire(estimatedTokens);
+        } catch (InterruptedException e) {
+            breaker.onCancelled(breakerPermit);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to call " + CHAT_ENDPOINT);
+        }
+        JSONObject jsonResponse;
+        try {
+            jsonResponse = readStream(request, listener);
+        } catch (IOException | RuntimeException e) {
+            permit.onFailure();
+            breaker.onFailure(breakerPermit);
+            throw e;
+        }
+        reportOutcome(permit, jsonResponse, null);
+        if (isThrottled(jsonResponse)) {
+            // The rate controller already pauses the API key; other keys can still use the endpoint
+            breaker.onCancelled(breakerPermit);
+        } else if (isRetryable(jsonResponse)) {
+            breaker.onFailure(breakerPermit);
+        } else {
+            breaker.onSuccess(breakerPermit);
+        }
+        return jsonResponse;
+    }
+
+    /**
+     * Reads a streamed chat completion, passing every content fragment to the listener, and returns its summary.
+     */
+    private static JSONObject readStream(Request request, ChatStreamListener listener) throws IOException {
         JSONObject jsonResponse = new JSONObject();
-        jsonResponse.put("responseCode", responseCode);
 
-        if (responseCode == 200) {
-            String output = new BufferedReader(new InputStreamReader(con.getInputStream())).lines()
-                    .reduce((a, b) -> a + b).get();
-            JSONObject responseJson = new JSONObject(output);
+        try (Response response = HttpClientProvider.getClient().newCall(request).execute()) {
+            int responseCode = response.code();
+            jsonResponse.put("responseCode", responseCode);
 
-            String content = responseJson.getJSONArray("choices")
-                    .getJSONObject(0)
-                    .getJSONObject("message")
-                    .getString("content");
+            if (responseCode != 200) {
+                jsonResponse.put("error", response.body().string());
+                return jsonResponse;
+            }
 
-            jsonResponse.put("content", content);
-            jsonResponse.put("rawResponse", responseJson);
-        } else {
-            BufferedReader errorReader = new BufferedReader(new InputStreamReader(con.getErrorStream()));
-            String errorResponse = errorReader.lines().reduce((a, b) -> a + b).get();
+            StringBuilder content = new StringBuilder();
+            BufferedSource source = response.body().source();
+            String line;
+            while ((line = source.readUtf8Line()) != null) {
+                // Each event is a "data: {chunk}" line; blank lines and comments only separate events
+                if (!line.startsWith("data:")) {
+                    continue;
+                }
+                String payload = line.substring(5).trim();
+                if (payload.equals("[DONE]")) {
+                    break;
+                }
+
+                // Only the delta, finish_reason and usage of each chunk are read
+                JsonStreams.ChatCompletion chunk = JsonStreams.readChatCompletion(payload);
+                if (chunk.content != null) {
+                    content.append(chunk.content);
+                    listener.onDelta(chunk.content);
+                }
+                if (chunk.finishReason != null) {
+                    jsonResponse.put("finish_reason", chunk.finishReason);
+                }
+                // With include_usage the last chunk carries the token usage and no choices
+                if (chunk.usage != null) {
+                    jsonResponse.put("usage", chunk.usage);
+                }
+            }
 
-            jsonResponse.put("error", errorResponse);
+            jsonResponse.put("content", content.toString());
         }
         return jsonResponse;
     }
 
+    /**
+     * A streamed completion shared by every caller that requested it while it was running. Fragments are passed
+     * to the subscribed listeners in order; a listener that subscribes late first receives the content so far.
+     */
+    private static class SharedStream implements ChatStreamListener {
+        private final StringBuilder content = new StringBuilder();
+        private final List<ChatStreamListener> listeners = new ArrayList<>();
+        private final CompletableFuture<JSONObject> result = new CompletableFuture<>();
+        private boolean done;
+
+        /**
+         * Adds a listener, unless the stream has already ended.
+         *
+         * @return False if the stream has ended and the listener was not added.
+         */
+        synchronized boolean subscribe(ChatStreamListener listener) {
+            if (done) {
+                return false;
+            }
+            if (content.length() > 0) {
+                listener.onDelta(content.toString());
+            }
+            listeners.add(listener);
+            return true;
+        }
+
+        @Override
+        public synchronized void onDelta(String delta) {
+            content.append(delta);
+            for (ChatStreamListener listener : listeners) {
+                listener.onDelta(delta);
+            }
+        }
+
+        void complete(JSONObject summary) {
+            List<ChatStreamListener> subscribed;
+            synchronized (this) {
+                done = true;
+                subscribed = new ArrayList<>(listeners);
+            }
+            result.complete(summary);
+            // Every listener gets its own copy of the summary
+            for (ChatStreamListener listener : subscribed) {
+                listener.onComplete(SingleFlight.copyJson(summary));
+            }
+        }
+
+        void fail(Throwable error) {
+            synchronized (this) {
+                done = true;
+            }
+            result.completeExceptionally(error);
+        }
+
+        JSONObject await() throws Exception {
+            try {
+                return SingleFlight.copyJson(result.get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+            }
+        }
+    }
+
     /**
      * Retrieves the content from a specified web page and forms a prompt to ask the OpenAI GPT API based on that content.
+     * Only the parts of the page most relevant to the question are sent, within the token budget of
+     * {@link ContextSelector} ({@code context.tokenBudget}); the response has a "context" object with the token
+     * counts of the page and of the selection.
      *
      * @param question    The question to ask, based on the web content.
      * @param webUrl      The URL of the web page from which content will be fetched.
@@ -94,14 +339,98 @@ public class ChatGPTQueryService {
      */
     public static JSONObject searchOnWebPage(String question, String webUrl, String version, String apiKey, int max_tokens, double temperature) throws Exception {
         String webContent = fetchContent(webUrl).getString("content");
-        String prompt = "Based on the following web content, answer the question: " + question + "\n\nWeb content:\n" + webContent;
-        return search(prompt, version, apiKey, max_tokens, temperature);
+        JSONObject context = ContextSelector.selectContext(question, webContent, version, ContextSelector.getTokenBudget());
+        JSONObject jsonResponse = search(webPagePrompt(question, context), version, apiKey, max_tokens, temperature);
+        jsonResponse.put("context", context);
+        return jsonResponse;
+    }
+
+    /**
+     * Asynchronous version of {@link #searchOnWebPage}. The page is downloaded while the tokenizer of the model is
+     * loaded, the context is selected on {@link AsyncTasks}, and the question is sent with {@link #searchAsync}.
+     *
+     * @param question    The question to ask, based on the web content.
+     * @param webUrl      The URL of the web page from which content will be fetched.
+     * @param version     The version of the GPT model to use (e.g., "gpt-3.5-turbo", "gpt-4").
+     * @param apiKey      The API key for authenticating the request to the OpenAI API.
+     * @param max_tokens  The maximum number of tokens the API should return in the response.
+     * @param temperature The sampling temperature (higher values produce more random responses).
+     * @return            A future completed with the same JSONObject returned by {@link #searchOnWebPage}.
+     */
+    public static CompletableFuture<JSONObject> searchOnWebPageAsync(String question, String webUrl, String version, String apiKey, int max_tokens, double temperature) {
+        CompletableFuture<JSONObject> page = WebScraperService.fetchContentAsync(webUrl);
+        CompletableFuture<Tokenizer> tokenizer = AsyncTasks.supply(() -> ContextSelector.getTokenizer(version));
+
+        return page.thenCombine(tokenizer, (fetched, loaded) -> fetched)
+                .thenApplyAsync(fetched -> ContextSelector.selectContext(question, fetched.getString("content"), version,
+                        ContextSelector.getTokenBudget()), AsyncTasks.getExecutor())
+                .thenCompose(context -> searchAsync(webPagePrompt(question, context), version, apiKey, max_tokens, temperature)
+                        .thenApply(jsonResponse -> jsonResponse.put("context", context)));
+    }
+
+    /**
+     * Builds the prompt of {@link #searchOnWebPage}, removing the selected text from the context statistics.
+     */
+    private static String webPagePrompt(String question, JSONObject context) {
+        return "Based on the following web content, answer the question: " + question + "\n\nWeb content:\n" + context.remove("context");
+    }
+
+    /**
+     * Answers a question about a long web page in two steps. First the page is split into large chunks, and the
+     * model extracts the facts relevant to the question from every chunk, with the chunks sent in parallel
+     * through {@link ChatGPTBatchService#searchAll}. Then the extracted notes, packed into the token budget of
+     * {@link ContextSelector}, are used to answer the question.
+     *
+     * The chunk size, the maximum tokens of each extraction and the number of parallel requests are read from
+     * {@code context.mapChunkTokens} (default 3000), {@code context.mapMaxTokens} (default 300) and
+     * {@code context.mapParallelism} (default 8).
+     *
+     * @param question    The question to ask, based on the web content.
+     * @param webUrl      The URL of the web page from which content will be fetched.
+     * @param version     The version of the GPT model to use (e.g., "gpt-3.5-turbo", "gpt-4").
+     * @param apiKey      The API key for authenticating the request to the OpenAI API.
+     * @param max_tokens  The maximum number of tokens the API should return in the response.
+     * @param temperature The sampling temperature (higher values produce more random responses).
+     * @return            A JSONObject containing the API's response, and a "context" object with the number of
+     *                    chunks, the chunks with relevant notes and the token counts.
+     * @throws Exception  If an error occurs during the HTTP request, web scraping, or response parsing.
+     */
+    public static JSONObject searchOnWebPageMapReduce(String question, String webUrl, String version, String apiKey, int max_tokens, double temperature) throws Exception {
+        String webContent = fetchContent(webUrl).getString("content");
+        List<String> chunks = ContextSelector.split(webContent, version, Integer.getInteger("context.mapChunkTokens", 3000));
+
+        List<String> mapPrompts = new ArrayList<>(chunks.size());
+        for (String chunk : chunks) {
+            mapPrompts.add("Extract the facts from the following excerpt of a web page that help answer the question: " + question
+                    + "\nIf the excerpt contains nothing relevant, reply only with NONE.\n\nExcerpt:\n" + chunk);
+        }
+        JSONArray mapResults = ChatGPTBatchService.searchAll(mapPrompts, version, apiKey,
+                Integer.getInteger("context.mapMaxTokens", 300), 0.0,
+                Math.max(1, Integer.getInteger("context.mapParallelism", 8)));
+
+        List<String> notes = new ArrayList<>();
+        for (int i = 0; i < mapResults.length(); i++) {
+            String note = mapResults.getJSONObject(i).optString("content", "").trim();
+            if (!note.isEmpty() && !note.equalsIgnoreCase("NONE")) {
+                notes.add(note);
+            }
+        }
+
+        JSONObject context = ContextSelector.selectChunks(question, notes, version, ContextSelector.getTokenBudget());
+        String prompt = "Based on the following notes taken from a web page, answer the question: " + question + "\n\nNotes:\n" + context.remove("context");
+        JSONObject jsonResponse = search(prompt, version, apiKey, max_tokens, temperature);
+        context.put("documentTokens", ContextSelector.countTokens(webContent, version));
+        context.put("chunks", chunks.size());
+        context.put("relevantChunks", notes.size());
+        jsonResponse.put("context", context);
+        return jsonResponse;
     }
 
     /**
      * This method searches for a prompt in Pinecone and generates a response using OpenAI's GPT-4 model.
      * It first retrieves relevant information from Pinecone and then uses that information to formulate
-     * a response based on the retrieved data.
+     * a response based on the retrieved data. Answers are kept in the semantic tier of the {@link ResponseCache},
+     * and questions similar enough to an answered one are answered from it.
      *
      * @param apiKey            The API key for accessing OpenAI's GPT-4 service.
      * @param version           The version of the OpenAI model to use (e.g., GPT-4).
@@ -115,18 +444,280 @@ public class ChatGPTQueryService {
      * @throws Exception        If an error occurs during the search or response generation process.
      */
     public static JSONObject searchOnPinecone(String apiKey, String version, Double temperature, String pineconeApiKey, String index, String nameSpace, String prompt) throws Exception {
-        OpenAiChatModel chatModel = OpenAiChatModel.builder()
-                .apiKey(apiKey)
-                .modelName(GPT_4_O)
-                .temperature(temperature)
-                .build();
-        String queryWithKnowledge =  PineconService.searchVectorPinecone(apiKey,pineconeApiKey, index, nameSpace, prompt).getString("queryWithKnowledge");
-        String responseWithKnowledge = chatModel.generate(queryWithKnowledge);
+        // Questions similar to one already answered for the same accounts, model, index and namespace reuse the cached answer
+        Embedding queryEmbedding = PineconService.embedPrompt(apiKey, prompt);
+        String cacheScope = pineconeScope(apiKey, version, temperature, pineconeApiKey, index, nameSpace);
+        JSONObject cached = ResponseCache.getSimilar(cacheScope, queryEmbedding.vector());
+        if (cached != null) {
+            return cached;
+        }
+
+        String queryWithKnowledge =  PineconService.searchVectorPinecone(pineconeApiKey, index, nameSpace, prompt, queryEmbedding).getString("queryWithKnowledge");
+        String responseWithKnowledge;
+        try {
+            responseWithKnowledge = generateAsync(apiKey, temperature, queryWithKnowledge).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
         JSONObject jsonResponse = new JSONObject();
         jsonResponse.put("responseWithKnowledge", responseWithKnowledge);
+        ResponseCache.putSimilar(cacheScope, queryEmbedding.vector(), jsonResponse);
+        return jsonResponse;
+    }
+
+    /**
+     * Asynchronous version of {@link #searchOnPinecone}. The prompt is embedded while the Pinecone store is
+     * looked up, and the embedding, search and generation steps run on {@link AsyncTasks}, so the calling thread
+     * is never blocked.
+     *
+     * @param apiKey         The API key for accessing OpenAI's GPT-4 service.
+     * @param version        The version of the OpenAI model to use (e.g., GPT-4).
+     * @param temperature    The "temperature" parameter for controlling the randomness of the OpenAI model's responses.
+     * @param pineconeApiKey The API key for accessing Pinecone's vector database service.
+     * @param index          The index to search within Pinecone.
+     * @param nameSpace      The namespace within Pinecone where the vectors are stored.
+     * @param prompt         The prompt/question for which the search is performed.
+     * @return               A future completed with the same JSONObject returned by {@link #searchOnPinecone}.
+     */
+    public static CompletableFuture<JSONObject> searchOnPineconeAsync(String apiKey, String version, Double temperature, String pineconeApiKey, String index, String nameSpace, String prompt) {
+        String cacheScope = pineconeScope(apiKey, version, temperature, pineconeApiKey, index, nameSpace);
+
+        CompletableFuture<Embedding> embedding = PineconService.embedPromptAsync(apiKey, prompt);
+        CompletableFuture<?> embeddingStore = AsyncTasks.supply(() -> ModelClientRegistry.getEmbeddingStore(pineconeApiKey, index, nameSpace));
+
+        return embedding.thenCombine(embeddingStore, (queryEmbedding, store) -> queryEmbedding)
+                .thenCompose(queryEmbedding -> {
+                    JSONObject cached = ResponseCache.getSimilar(cacheScope, queryEmbedding.vector());
+                    if (cached != null) {
+                        return CompletableFuture.completedFuture(cached);
+                    }
+                    return PineconService.searchVectorPineconeAsync(pineconeApiKey, index, nameSpace, prompt, queryEmbedding)
+                            .thenCompose(result -> generateAsync(apiKey, temperature, result.getString("queryWithKnowledge")))
+                            .thenApply(responseWithKnowledge -> {
+                                JSONObject jsonResponse = new JSONObject();
+                                jsonResponse.put("responseWithKnowledge", responseWithKnowledge);
+                                ResponseCache.putSimilar(cacheScope, queryEmbedding.vector(), jsonResponse);
+                                return jsonResponse;
+                            });
+                });
+    }
+
+    /**
+     * Builds the semantic cache scope of a Pinecone query: the answer depends on the model and temperature, the
+     * index and namespace searched, and the OpenAI and Pinecone accounts, whose keys are only kept hashed.
+     */
+    private static String pineconeScope(String apiKey, String version, Double temperature, String pineconeApiKey,
+                                        String index, String nameSpace) {
+        return Hashes.sha256Hex(Hashes.sha256Hex(apiKey) + '\u0000' + Hashes.sha256Hex(pineconeApiKey) + '\u0000'
+                + version + '\u0000' + GPT_4_O + '\u0000' + temperature + '\u0000' + index + '\u0000' + nameSpace);
+    }
+
+    /**
+     * Reads the response of a chat completion request sent by {@link #search} or {@link #searchAsync}, and caches
+     * successful answers under the given key. Only the content, finish_reason and usage are read from the body,
+     * unless {@code openai.rawResponse} is true, in which case the whole body is also returned as "rawResponse".
+     */
+    private static JSONObject readChatResponse(Response response, String cacheKey) throws IOException {
+        JSONObject jsonResponse = new JSONObject();
+        int responseCode = response.code();
+        jsonResponse.put("responseCode", responseCode);
+
+        if (responseCode == 200) {
+            if (RAW_RESPONSE) {
+                JSONObject responseJson = (JSONObject) JsonStreams.readJson(response.body().byteStream());
+                jsonResponse.put("content", responseJson.getJSONArray("choices")
+                        .getJSONObject(0)
+                        .getJSONObject("message")
+                        .getString("content"));
+                jsonResponse.put("rawResponse", responseJson);
+            } else {
+                // Only the fields returned to the caller are read from the body
+                JsonStreams.ChatCompletion completion = JsonStreams.readChatCompletion(response.body().byteStream());
+                if (completion.content == null) {
+                    throw new IOException("The chat completion has no content");
+                }
+                jsonResponse.put("content", completion.content);
+                if (completion.finishReason != null) {
+                    jsonResponse.put("finish_reason", completion.finishReason);
+                }
+                if (completion.usage != null) {
+                    jsonResponse.put("usage", completion.usage);
+                }
+                addUsage(searchStage, jsonResponse);
+            }
+            ResponseCache.putExact(cacheKey, jsonResponse);
+        } else {
+            jsonResponse.put("error", response.body().string());
+            // Rate-limited responses tell the caller how long to wait before trying again
+            String retryAfter = response.header("Retry-After");
+            if (retryAfter != null) {
+                jsonResponse.put("retryAfter", retryAfter);
+            }
+        }
         return jsonResponse;
     }
 
+    /**
+     * Sends one attempt of a chat completion request once the {@link RateController} of the API key grants it a
+     * permit, so that bursts queue on the client instead of being rejected by OpenAI. {@code started} is run when
+     * the permit is granted, so the wait for it is not counted in the latency that sets the hedge delay.
+     */
+    private static CompletableFuture<JSONObject> sendChatRequest(Request request, String apiKey, long estimatedTokens, String cacheKey,
+                                                                 Runnable started) {
+        return RateController.forUpstream("openai", apiKey).executeAsync(estimatedTokens, () -> {
+                    started.run();
+                    return HttpClientProvider.executeAsync(HttpClientProvider.getClient(), request,
+                            response -> readChatResponse(response, cacheKey));
+                },
+                ChatGPTQueryService::reportOutcome);
+    }
+
+    /**
+     * Estimates the tokens a chat completion counts against the tokens-per-minute limit: the prompt plus the
+     * largest answer allowed. If the prompt cannot be tokenized, one token per character is assumed, which is
+     * never less than the real count, so the request is still sent.
+     */
+    private static long estimateTokens(String text, String version, int max_tokens) {
+        long promptTokens;
+        try {
+            promptTokens = ContextSelector.countTokens(text, version);
+        } catch (RuntimeException e) {
+            promptTokens = text.length();
+        }
+        return promptTokens + (long) Math.max(0, max_tokens);
+    }
+
+    /**
+     * Reports the end of a chat completion to its rate controller permit: HTTP 429 pauses the API key, a success
+     * settles the tokens actually used, and anything else counts as a failure.
+     */
+    private static void reportOutcome(RateController.Permit permit, JSONObject jsonResponse, Throwable error) {
+        int responseCode = jsonResponse != null ? jsonResponse.optInt("responseCode") : 0;
+        if (responseCode == 429) {
+            permit.onThrottled(retryAfterMillis(jsonResponse));
+        } else if (error == null && responseCode == 200) {
+            JSONObject usage = jsonResponse.optJSONObject("usage");
+            permit.onSuccess(usage != null ? usage.optLong("total_tokens", -1) : -1);
+        } else {
+            permit.onFailure();
+        }
+    }
+
+    /**
+     * Names the outcome of a chat response for {@link Metrics}: its HTTP status code.
+     */
+    private static String outcomeOf(JSONObject jsonResponse) {
+        return jsonResponse.has("responseCode") ? String.valueOf(jsonResponse.get("responseCode")) : "ok";
+    }
+
+    /**
+     * Adds the prompt and completion tokens of the "usage" of a chat response to a {@link Metrics} stage.
+     */
+    private static void addUsage(Metrics.Stage stage, JSONObject jsonResponse) {
+        JSONObject usage = jsonResponse.optJSONObject("usage");
+        if (usage != null) {
+            stage.addTokens(usage.optLong("prompt_tokens", -1), usage.optLong("completion_tokens", -1));
+        }
+    }
+
+    /**
+     * Tells whether a chat response is a failure worth retrying: a timeout (408), a rate limit (429) or a
+     * server error (5xx).
+     */
+    private static boolean isRetryable(JSONObject jsonResponse) {
+        int responseCode = jsonResponse.optInt("responseCode", 200);
+        return responseCode == 408 || responseCode == 429 || responseCode >= 500;
+    }
+
+    /**
+     * Tells whether a chat response is a rate limit (429) of its API key, which the circuit breaker does not count.
+     */
+    private static boolean isThrottled(JSONObject jsonResponse) {
+        return jsonResponse.optInt("responseCode", 200) == 429;
+    }
+
+    /**
+     * Returns the wait requested by the Retry-After header of a chat response, in milliseconds, or 0.
+     */
+    private static long retryAfterMillis(JSONObject jsonResponse) {
+        return RateController.parseRetryAfter(jsonResponse.optString("retryAfter", null));
+    }
+
+    /**
+     * Generates an answer with the langchain4j chat model through the "openai.chat" {@link ResilientExecutor} and
+     * the {@link RateController} of the API key. An attempt is timed from the moment a thread runs it, after the
+     * waits for the permit and for the thread.
+     */
+    private static CompletableFuture<String> generateAsync(String apiKey, Double temperature, String prompt) {
+        ChatLanguageModel chatModel = ModelClientRegistry.getChatModel(apiKey, GPT_4_O.toString(), temperature);
+        RateController rateController = RateController.forUpstream("openai", apiKey);
+        long estimatedTokens = ContextSelector.countTokens(prompt, GPT_4_O.toString());
+        return generateStage.timeAsync(() -> chatEndpoint.executeUnhedgedAsync(started -> rateController.executeAsync(estimatedTokens,
+                () -> AsyncTasks.supply(() -> {
+                    started.run();
+                    dev.langchain4j.model.output.Response<AiMessage> response = chatModel.generate(UserMessage.from(prompt));
+                    TokenUsage usage = response.tokenUsage();
+                    if (usage != null) {
+                        generateStage.addTokens(usage.inputTokenCount() != null ? usage.inputTokenCount() : -1,
+                                usage.outputTokenCount() != null ? usage.outputTokenCount() : -1);
+                    }
+                    return response.content().text();
+                })), text -> false, text -> 0L), text -> "ok");
+    }
+
+    /**
+     * Builds the chat completion request sent by {@link #search} and {@link #searchStream}.
+     */
+    private static Request buildChatRequest(String text, String version, String apiKey, int max_tokens, double temperature,
+                                            boolean stream) {
+        // Written straight into the connection, with the same fields as buildChatBody
+        RequestBody body = JsonStreams.requestBody(json -> {
+            json.writeStartObject();
+            json.writeStringField("model", version);
+            json.writeArrayFieldStart("messages");
+            json.writeStartObject();
+            json.writeStringField("role", "user");
+            json.writeStringField("content", text);
+            json.writeEndObject();
+            json.writeEndArray();
+            json.writeNumberField("max_tokens", max_tokens);
+            json.writeNumberField("temperature", temperature);
+            if (stream) {
+                json.writeBooleanField("stream", true);
+                json.writeObjectFieldStart("stream_options");
+                json.writeBooleanField("include_usage", true);
+                json.writeEndObject();
+            }
+            json.writeEndObject();
+        });
+
+        return new Request.Builder()
+                .url(CHAT_COMPLETIONS_URL)
+                .header("Authorization", "Bearer " + apiKey)
+                .post(body)
+                .build();
+    }
+
+    /**
+     * Builds the JSON body of a chat completion request with a single user message.
+     * It is also used to write the request lines of OpenAI batch files.
+     */
+    static JSONObject buildChatBody(String text, String version, int max_tokens, double temperature) {
+        JSONObject data = new JSONObject();
+        data.put("model", version);
+
+        JSONArray messages = new JSONArray();
+        JSONObject message = new JSONObject();
+        message.put("role", "user");
+        message.put("content", text);
+        messages.put(message);
+
+        data.put("messages", messages);
+        data.put("max_tokens", max_tokens);
+        data.put("temperature", temperature);
+        return data;
+    }
+
     /**
      * Main method for testing the ChatGPTQueryService. It executes both direct queries and queries based on web content.
      * execute on console using java -cp "target/classes;target/dependency/*;target/chatgptconnection-1.0-SNAPSHOT.jar" org.example.ChatGPTQueryService
@@ -0,0 +1,26 @@
+package org.example;
+
+import org.json.JSONObject;
+
+/**
+ * This interface receives the output of a streamed chat completion
+ * (see {@link ChatGPTQueryService#searchStream}) while it is being generated.
+ */
+public interface ChatStreamListener {
+
+    /**
+     * Called for every content fragment, in order, as soon as it is received from the API.
+     *
+     * @param delta The new piece of generated text.
+     */
+    void onDelta(String delta);
+
+    /**
+     * Called once when the stream ends, with the same summary returned by the streaming call:
+     * the full content, the finish_reason and the token usage, or the error returned by the API.
+     *
+     * @param summary A JSONObject summarizing the completed stream.
+     */
+    default void onComplete(JSONObject summary) {
+    }
+}
@@ -0,0 +1,217 @@
+package org.example;
+
+import java.io.IOException;
+
+/**
+ * This class stops calls to an upstream endpoint that is failing, so that an overloaded service gets time to
+ * recover instead of receiving even more requests, and callers fail immediately instead of waiting for timeouts.
+ *
+ * The breaker is CLOSED while the endpoint works. It OPENS when the last {@code consecutiveFailures} calls failed,
+ * or when at least {@code failureRate} of the last {@code windowSize} calls failed (after {@code minCalls} calls).
+ * While it is open every call is rejected. After {@code openMillis} it becomes HALF_OPEN and lets a single probe
+ * call through: if the probe succeeds the breaker closes, otherwise it opens again.
+ *
+ * Every call allowed by {@link #tryAcquire()} must be followed by exactly one call to {@link #onSuccess(long)},
+ * {@link #onFailure(long)} or {@link #onCancelled(long)} with the permit it was given. A permit belongs to the
+ * period of the breaker in which it was given (each opening, probe and closing starts a new one), and outcomes of
+ * permits from an earlier period are ignored: a call started before the breaker opened cannot close it, or let a
+ * second probe through, by completing while the real probe is running.
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states of a breaker.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Thrown (or used to complete futures) when a call is rejected because the breaker of its endpoint is open.
+     */
+    public static class OpenException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Creates the exception for an endpoint.
+         *
+         * @param endpoint The name of the endpoint whose breaker is open.
+         */
+        public OpenException(String endpoint) {
+            super("Circuit breaker open for " + endpoint);
+        }
+    }
+
+    /** The permit returned by {@link #tryAcquire()} when the breaker rejects a call. */
+    public static final long REJECTED = -1;
+
+    private final double failureRate;
+    private final int minCalls;
+    private final int consecutiveFailures;
+    private final long openMillis;
+
+    // Outcomes of the last calls, as a ring buffer (true = failure)
+    private final boolean[] window;
+    private int windowPosition;
+    private int windowCount;
+    private int windowFailures;
+    private int failureStreak;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probeInFlight;
+    private long openings;
+    // The period of the breaker; every transition starts a new one, so permits of older periods are recognized
+    private long generation;
+
+    /**
+     * Creates a closed breaker.
+     *
+     * @param windowSize          The number of recent calls the failure rate is computed on.
+     * @param minCalls            The number of calls in the window needed before the failure rate is used.
+     * @param failureRate         The share of failed calls (0 to 1) that opens the breaker.
+     * @param consecutiveFailures The number of consecutive failures that opens the breaker.
+     * @param openMillis          How long the breaker stays open before a probe call is allowed.
+     */
+    public CircuitBreaker(int windowSize, int minCalls, double failureRate, int consecutiveFailures, long openMillis) {
+        if (windowSize < 1 || minCalls < 1 || consecutiveFailures < 1) {
+            throw new IllegalArgumentException("Invalid circuit breaker settings");
+        }
+        this.window = new boolean[windowSize];
+        this.minCalls = Math.min(minCalls, windowSize);
+        this.failureRate = failureRate;
+        this.consecutiveFailures = consecutiveFailures;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Reserves permission for a call.
+     *
+     * @return The permit to report the outcome of the call with, or {@link #REJECTED} if the breaker rejects it.
+     */
+    public synchronized long tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMillis) {
+                return REJECTED;
+            }
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probeInFlight) {
+                return REJECTED;
+            }
+            probeInFlight = true;
+            // Only the outcome of this probe may close or reopen the breaker
+            generation++;
+        }
+        return generation;
+    }
+
+    /**
+     * Records a successful call. A successful probe closes the breaker.
+     *
+     * @param permit The permit returned by {@link #tryAcquire()} for the call.
+     */
+    public synchronized void onSuccess(long permit) {
+        if (permit != generation) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            probeInFlight = false;
+            state = State.CLOSED;
+            generation++;
+            resetWindow();
+            return;
+        }
+        failureStreak = 0;
+        record(false);
+    }
+
+    /**
+     * Records a failed call: an error, a timeout or a response telling that the endpoint is overloaded.
+     * A failed probe opens the breaker again.
+     *
+     * @param permit The permit returned by {@link #tryAcquire()} for the call.
+     */
+    public synchronized void onFailure(long permit) {
+        if (permit != generation) {
+            // A call started before the breaker last changed state
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            probeInFlight = false;
+            open();
+            return;
+        }
+        failureStreak++;
+        record(true);
+        if (failureStreak >= consecutiveFailures
+                || (windowCount >= minCalls && windowFailures >= failureRate * windowCount)) {
+            open();
+        }
+    }
+
+    /**
+     * Releases the permission of a call that was abandoned before it completed (e.g. the losing attempt of a
+     * hedged request). Nothing is recorded.
+     *
+     * @param permit The permit returned by {@link #tryAcquire()} for the call.
+     */
+    public synchronized void onCancelled(long permit) {
+        if (permit == generation && state == State.HALF_OPEN) {
+            probeInFlight = false;
+        }
+    }
+
+    /**
+     * Returns the current state of the breaker.
+     *
+     * @return The state.
+     */
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * Returns how many times the breaker has opened.
+     *
+     * @return The number of openings.
+     */
+    public synchronized long getOpenings() {
+        return openings;
+    }
+
+    private void record(boolean failure) {
+        if (windowCount == window.length) {
+            if (window[windowPosition]) {
+                windowFailures--;
+            }
+        } else {
+            windowCount++;
+        }
+        window[windowPosition] = failure;
+        if (failure) {
+            windowFailures++;
+        }
+        windowPosition = (windowPosition + 1) % window.length;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        generation++;
+        openedAt = System.currentTimeMillis();
+        openings++;
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        windowPosition = 0;
+        windowCount = 0;
+        windowFailures = 0;
+        failureStreak = 0;
+    }
+}
@@ -0,0 +1,254 @@
+package org.example;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.Tokenizer;
+import dev.langchain4j.model.openai.OpenAiTokenizer;
+import org.json.JSONObject;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import static dev.langchain4j.model.openai.OpenAiChatModelName.GPT_4_O;
+
+/**
+ * This class selects the parts of a long text that are most relevant to a question, so that only they are sent
+ * to the model instead of the whole text.
+ *
+ * Tokens are counted locally with the BPE tokenizer of the model. A text that fits in the token budget is used as
+ * is; a longer one is split into chunks, the chunks are ranked against the question with BM25, and the best ones
+ * are packed into the budget and joined back in document order.
+ *
+ * Settings are read from system properties: {@code context.tokenBudget} (default 3000),
+ * {@code context.chunkTokens} (default 300) and {@code context.chunkOverlapTokens} (default 0).
+ */
+public class ContextSelector {
+
+    private static final int TOKEN_BUDGET = Integer.getInteger("context.tokenBudget", 3000);
+    private static final int CHUNK_TOKENS = Integer.getInteger("context.chunkTokens", 300);
+    private static final int CHUNK_OVERLAP_TOKENS = Integer.getInteger("context.chunkOverlapTokens", 0);
+
+    // BM25 parameters
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private static final Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+
+    private static final Map<String, Tokenizer> tokenizers = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the default token budget of the selected context ({@code context.tokenBudget}).
+     *
+     * @return The maximum number of tokens of the context.
+     */
+    public static int getTokenBudget() {
+        return TOKEN_BUDGET;
+    }
+
+    /**
+     * Returns the local tokenizer of a model. Models unknown to the tokenizer (e.g. fine-tuned or newer models)
+     * use the GPT-4o encoding.
+     *
+     * @param model The model name (e.g., "gpt-4o", "gpt-3.5-turbo").
+     * @return      The tokenizer of the model.
+     */
+    public static Tokenizer getTokenizer(String model) {
+        return tokenizers.computeIfAbsent(model, name -> {
+            try {
+                // The tokenizer only looks the model up when it first counts, so it is probed here
+                Tokenizer tokenizer = new OpenAiTokenizer(name);
+                tokenizer.estimateTokenCountInText("");
+                return tokenizer;
+            } catch (IllegalArgumentException e) {
+                return new OpenAiTokenizer(GPT_4_O);
+            }
+        });
+    }
+
+    /**
+     * Counts the tokens of a text for a model.
+     *
+     * @param text  The text.
+     * @param model The model name.
+     * @return      The number of tokens.
+     */
+    public static int countTokens(String text, String model) {
+        return getTokenizer(model).estimateTokenCountInText(text);
+    }
+
+    /**
+     * Splits a text into chunks of at most the given number of tokens, cutting at paragraph, line and sentence
+     * boundaries when possible.
+     *
+     * @param text        The text to split.
+     * @param model       The model name, which selects the tokenizer.
+     * @param chunkTokens The maximum number of tokens of a chunk.
+     * @return            The chunks, in document order.
+     */
+    public static List<String> split(String text, String model, int chunkTokens) {
+        List<String> chunks = new ArrayList<>();
+        if (text == null || text.trim().isEmpty()) {
+            return chunks;
+        }
+        int overlap = Math.min(CHUNK_OVERLAP_TOKENS, chunkTokens / 2);
+        for (TextSegment segment : DocumentSplitters.recursive(chunkTokens, overlap, getTokenizer(model))
+                .split(Document.from(text))) {
+            chunks.add(segment.text());
+        }
+        return chunks;
+    }
+
+    /**
+     * Selects the parts of a text most relevant to a question within a token budget.
+     *
+     * @param question    The question the context is selected for.
+     * @param text        The full text (e.g., the content of a web page).
+     * @param model       The model name, which selects the tokenizer.
+     * @param tokenBudget The maximum number of tokens of the selected context.
+     * @return            A JSONObject with the selected "context", the "documentTokens" of the whole text, the
+     *                    "contextTokens" of the selection, and the number of "chunks" and "selectedChunks".
+     */
+    public static JSONObject selectContext(String question, String text, String model, int tokenBudget) {
+        int documentTokens = countTokens(text, model);
+        if (documentTokens <= tokenBudget) {
+            JSONObject result = new JSONObject();
+            result.put("context", text);
+            result.put("documentTokens", documentTokens);
+            result.put("contextTokens", documentTokens);
+            result.put("chunks", 1);
+            result.put("selectedChunks", 1);
+            return result;
+        }
+
+        JSONObject result = selectChunks(question, split(text, model, Math.min(CHUNK_TOKENS, tokenBudget)), model, tokenBudget);
+        result.put("documentTokens", documentTokens);
+        return result;
+    }
+
+    /**
+     * Ranks chunks against a question with BM25 and packs the best ones into a token budget. The selected chunks
+     * are joined in their original order; "..." marks the places where chunks were left out.
+     *
+     * @param question    The question the chunks are ranked against.
+     * @param chunks      The chunks, in document order.
+     * @param model       The model name, which selects the tokenizer.
+     * @param tokenBudget The maximum number of tokens of the selected context.
+     * @return            A JSONObject with the selected "context", its "contextTokens", and the number of
+     *                    "chunks" and "selectedChunks".
+     */
+    public static JSONObject selectChunks(String question, List<String> chunks, String model, int tokenBudget) {
+        double[] scores = bm25(question, chunks);
+        Integer[] order = new Integer[chunks.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // Best score first; ties (e.g. no shared terms at all) keep document order
+        Arrays.sort(order, Comparator.<Integer>comparingDouble(i -> -scores[i]).thenComparingInt(i -> i));
+
+        Tokenizer tokenizer = getTokenizer(model);
+        boolean[] selected = new boolean[chunks.size()];
+        int contextTokens = 0;
+        int selectedChunks = 0;
+        for (int i : order) {
+            int tokens = tokenizer.estimateTokenCountInText(chunks.get(i));
+            if (contextTokens + tokens <= tokenBudget) {
+                selected[i] = true;
+                contextTokens += tokens;
+                selectedChunks++;
+            }
+        }
+
+        StringBuilder context = new StringBuilder();
+        int previous = -1;
+        for (int i = 0; i < chunks.size(); i++) {
+            if (!selected[i]) {
+                continue;
+            }
+            if (context.length() > 0) {
+                context.append(i == previous + 1 ? "\n\n" : "\n\n...\n\n");
+            }
+            context.append(chunks.get(i));
+            previous = i;
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("context", context.toString());
+        result.put("contextTokens", contextTokens);
+        result.put("chunks", chunks.size());
+        result.put("selectedChunks", selectedChunks);
+        return result;
+    }
+
+    /**
+     * Scores every chunk against the query with Okapi BM25, using the chunks themselves as the collection.
+     *
+     * @param query  The query.
+     * @param chunks The chunks to score.
+     * @return       The score of each chunk, in the same order; higher is more relevant.
+     */
+    public static double[] bm25(String query, List<String> chunks) {
+        Set<String> queryTerms = new HashSet<>(terms(query));
+        int n = chunks.size();
+        List<Map<String, Integer>> frequencies = new ArrayList<>(n);
+        Map<String, Integer> documentFrequency = new HashMap<>();
+        int[] lengths = new int[n];
+        long totalLength = 0;
+
+        for (int i = 0; i < n; i++) {
+            List<String> chunkTerms = terms(chunks.get(i));
+            lengths[i] = chunkTerms.size();
+            totalLength += chunkTerms.size();
+            Map<String, Integer> frequency = new HashMap<>();
+            for (String term : chunkTerms) {
+                if (queryTerms.contains(term)) {
+                    frequency.merge(term, 1, Integer::sum);
+                }
+            }
+            for (String term : frequency.keySet()) {
+                documentFrequency.merge(term, 1, Integer::sum);
+            }
+            frequencies.add(frequency);
+        }
+
+        double averageLength = n > 0 ? Math.max(1.0, (double) totalLength / n) : 1.0;
+        double[] scores = new double[n];
+        for (int i = 0; i < n; i++) {
+            double score = 0;
+            for (Map.Entry<String, Integer> entry : frequencies.get(i).entrySet()) {
+                int df = documentFrequency.get(entry.getKey());
+                double idf = Math.log(1 + (n - df + 0.5) / (df + 0.5));
+                double tf = entry.getValue();
+                score += idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * lengths[i] / averageLength));
+            }
+            scores[i] = score;
+        }
+        return scores;
+    }
+
+    /**
+     * Splits a text into lowercase terms without accents, so "Cómo" and "como" match.
+     */
+    private static List<String> terms(String text) {
+        String folded = DIACRITICS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+                .toLowerCase(Locale.ROOT);
+        List<String> terms = new ArrayList<>();
+        for (String term : NON_WORD.split(folded)) {
+            if (!term.isEmpty()) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+}
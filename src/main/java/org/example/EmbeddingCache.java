@@ -0,0 +1,354 @@
+package org.example;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class caches embedding vectors by (model, content hash), so text that was already embedded does not
+ * need a new call to the embedding API, even after a restart.
+ *
+ * Recently used vectors are kept on the heap in an LRU map of {@code float[]}. All vectors are also written to
+ * one memory-mapped file per model, made of fixed-width records (a 16-byte content hash followed by the vector
+ * as float32 values). The record index is rebuilt from the file when it is opened.
+ *
+ * The arrays returned by {@link #get} are shared with the cache and must not be modified.
+ *
+ * The default instance ({@link #getDefault()}) stores its files in {@code embedding.cache.dir}
+ * (default {@code ~/.chatgptconnection/embeddings}) and keeps {@code embedding.cache.heapEntries}
+ * (default 10000) vectors on the heap.
+ */
+public class EmbeddingCache {
+
+    private static final int MAGIC = 0x454D4243; // "EMBC"
+    private static final int HEADER_SIZE = 16;   // magic, dimension, record count, reserved
+    private static final int KEY_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static volatile EmbeddingCache defaultCache;
+
+    private final Path directory;
+    private final int heapEntries;
+    private final Map<String, VectorFile> files = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, float[]> heap;
+
+    private final LongAdder heapHits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a cache that stores its files in the given directory.
+     *
+     * @param directory   The directory of the memory-mapped vector files; it is created if needed.
+     * @param heapEntries The number of vectors kept on the heap.
+     */
+    public EmbeddingCache(Path directory, int heapEntries) {
+        this.directory = directory;
+        this.heapEntries = heapEntries;
+        this.heap = new LinkedHashMap<String, float[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) {
+                return size() > EmbeddingCache.this.heapEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache shared by the services, configured through system properties.
+     *
+     * @return The default embedding cache.
+     */
+    public static EmbeddingCache getDefault() {
+        EmbeddingCache cache = defaultCache;
+        if (cache == null) {
+            synchronized (EmbeddingCache.class) {
+                cache = defaultCache;
+                if (cache == null) {
+                    Path dir = Paths.get(System.getProperty("embedding.cache.dir",
+                            Paths.get(System.getProperty("user.home"), ".chatgptconnection", "embeddings").toString()));
+                    cache = new EmbeddingCache(dir, Integer.getInteger("embedding.cache.heapEntries", 10_000));
+                    defaultCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the default cache if it has been created, without creating it.
+     *
+     * @return The default embedding cache, or null.
+     */
+    static EmbeddingCache peekDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Looks up the embedding of a text.
+     *
+     * @param model The embedding model name.
+     * @param text  The embedded text.
+     * @return      The cached vector (which must not be modified), or null if the text was never embedded with the model.
+     */
+    public float[] get(String model, String text) {
+        byte[] hash = contentHash(text);
+        String heapKey = heapKey(model, hash);
+        float[] vector;
+        synchronized (heap) {
+            vector = heap.get(heapKey);
+        }
+        if (vector != null) {
+            heapHits.increment();
+            return vector;
+        }
+
+        VectorFile file = openFile(model, 0);
+        vector = file == null ? null : file.read(hash);
+        if (vector == null) {
+            misses.increment();
+            return null;
+        }
+        diskHits.increment();
+        synchronized (heap) {
+            heap.put(heapKey, vector);
+        }
+        return vector;
+    }
+
+    /**
+     * Stores the embedding of a text on the heap and in the model's vector file.
+     *
+     * @param model  The embedding model name.
+     * @param text   The embedded text.
+     * @param vector The embedding vector; the cache keeps a reference to it, so it must not be modified afterwards.
+     */
+    public void put(String model, String text, float[] vector) {
+        byte[] hash = contentHash(text);
+        synchronized (heap) {
+            heap.put(heapKey(model, hash), vector);
+        }
+        VectorFile file = openFile(model, vector.length);
+        if (file != null && file.dimension == vector.length) {
+            file.write(hash, vector);
+        }
+    }
+
+    /**
+     * Returns the hit and miss counters of the cache.
+     *
+     * @return A JSONObject with heap hits, disk hits, misses and the number of vectors on the heap.
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("heapHits", heapHits.sum());
+        stats.put("diskHits", diskHits.sum());
+        stats.put("misses", misses.sum());
+        synchronized (heap) {
+            stats.put("heapSize", heap.size());
+        }
+        return stats;
+    }
+
+    /**
+     * Flushes and closes the vector files. The heap entries are discarded.
+     */
+    public void close() {
+        for (VectorFile file : files.values()) {
+            file.close();
+        }
+        files.clear();
+        synchronized (heap) {
+            heap.clear();
+        }
+    }
+
+    /**
+     * Opens the vector file of a model. If it does not exist yet, it is created only when a dimension is given.
+     */
+    private VectorFile openFile(String model, int dimension) {
+        VectorFile file = files.get(model);
+        if (file != null) {
+            return file;
+        }
+        synchronized (files) {
+            file = files.get(model);
+            if (file != null) {
+                return file;
+            }
+            Path path = directory.resolve(model.replaceAll("[^A-Za-z0-9._-]", "_") + ".vec");
+            if (dimension == 0 && !Files.exists(path)) {
+                return null;
+            }
+            try {
+                Files.createDirectories(directory);
+                file = new VectorFile(path, dimension);
+            } catch (IOException e) {
+                // Without a usable file the cache keeps working on the heap only
+                return null;
+            }
+            files.put(model, file);
+            return file;
+        }
+    }
+
+    private static String heapKey(String model, byte[] hash) {
+        StringBuilder key = new StringBuilder(model.length() + 1 + hash.length * 2).append(model).append('\u0000');
+        for (byte b : hash) {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+
+    private static byte[] contentHash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            byte[] hash = new byte[KEY_SIZE];
+            System.arraycopy(digest, 0, hash, 0, KEY_SIZE);
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * A memory-mapped file of fixed-width vector records for one model, with its in-memory record index.
+     */
+    private static class VectorFile {
+        final int dimension;
+        final int recordSize;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final Map<ByteBuffer, Integer> index = new HashMap<>();
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private MappedByteBuffer buffer;
+        private int capacity;
+        private int count;
+
+        VectorFile(Path path, int newDimension) throws IOException {
+            raf = new RandomAccessFile(path.toFile(), "rw");
+            channel = raf.getChannel();
+
+            if (channel.size() >= HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                channel.read(header, 0);
+                header.flip();
+                if (header.getInt() != MAGIC) {
+                    raf.close();
+                    throw new IOException("Not an embedding cache file: " + path);
+                }
+                dimension = header.getInt();
+                count = header.getInt();
+            } else {
+                dimension = newDimension;
+                count = 0;
+            }
+            recordSize = KEY_SIZE + dimension * Float.BYTES;
+
+            long existing = (channel.size() - HEADER_SIZE) / Math.max(1, recordSize);
+            // Records beyond the stored count were not completely written before a crash and are ignored
+            count = (int) Math.min(count, Math.max(0, existing));
+            capacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, count)) * 2);
+            map();
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, dimension);
+            buffer.putInt(8, count);
+
+            for (int slot = 0; slot < count; slot++) {
+                byte[] key = new byte[KEY_SIZE];
+                int offset = offset(slot);
+                for (int i = 0; i < KEY_SIZE; i++) {
+                    key[i] = buffer.get(offset + i);
+                }
+                index.put(ByteBuffer.wrap(key), slot);
+            }
+        }
+
+        float[] read(byte[] hash) {
+            lock.readLock().lock();
+            try {
+                Integer slot = index.get(ByteBuffer.wrap(hash));
+                if (slot == null) {
+                    return null;
+                }
+                float[] vector = new float[dimension];
+                int offset = offset(slot) + KEY_SIZE;
+                for (int i = 0; i < dimension; i++) {
+                    vector[i] = buffer.getFloat(offset + i * Float.BYTES);
+                }
+                return vector;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void write(byte[] hash, float[] vector) {
+            lock.writeLock().lock();
+            try {
+                ByteBuffer key = ByteBuffer.wrap(hash);
+                if (index.containsKey(key)) {
+                    return;
+                }
+                if (count == capacity) {
+                    if (HEADER_SIZE + 2L * capacity * recordSize > Integer.MAX_VALUE) {
+                        // A single mapping cannot grow past 2 GB; further vectors stay on the heap only
+                        return;
+                    }
+                    capacity *= 2;
+                    map();
+                }
+                int offset = offset(count);
+                for (int i = 0; i < KEY_SIZE; i++) {
+                    buffer.put(offset + i, hash[i]);
+                }
+                offset += KEY_SIZE;
+                for (int i = 0; i < dimension; i++) {
+                    buffer.putFloat(offset + i * Float.BYTES, vector[i]);
+                }
+                index.put(key, count);
+                count++;
+                // The count is updated last, so a record is only visible after it is fully written
+                buffer.putInt(8, count);
+            } catch (IOException e) {
+                // The vector stays cached on the heap; it will be embedded again after a restart
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void close() {
+            lock.writeLock().lock();
+            try {
+                buffer.force();
+                raf.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void map() throws IOException {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * recordSize);
+        }
+
+        private int offset(int slot) {
+            return HEADER_SIZE + slot * recordSize;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.example;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+
+import java.util.List;
+
+/**
+ * This class adds embeddings to a store under ids chosen by the caller, so adding the same chunks again (e.g.
+ * when a batch is retried after a timeout, or a document is ingested twice) overwrites them instead of storing
+ * duplicates.
+ *
+ * {@link EmbeddingStore} only gained {@code addAll(ids, embeddings, embedded)} in langchain4j 0.35, and this tree
+ * is on 0.34, so the stores that support it implement {@link UpsertEmbeddingStore}: {@link HnswEmbeddingStore},
+ * {@link ReadThroughEmbeddingStore} and {@link PineconeUpsertStore} (which the registry builds for every Pinecone
+ * namespace). Any other store is rejected rather than given random ids that would duplicate the entries.
+ */
+public class EmbeddingStores {
+
+    private EmbeddingStores() {
+    }
+
+    /**
+     * Adds embeddings and their segments to a store under the given ids.
+     *
+     * @param store        The embedding store, which must implement {@link UpsertEmbeddingStore}.
+     * @param ids          The ids of the entries, one per embedding.
+     * @param embeddings   The embeddings to add.
+     * @param textSegments The text segments stored with the embeddings, one per embedding.
+     * @throws UnsupportedOperationException If the store cannot add entries under given ids.
+     */
+    public static void addAll(EmbeddingStore<TextSegment> store, List<String> ids, List<Embedding> embeddings,
+                              List<TextSegment> textSegments) {
+        if (!(store instanceof UpsertEmbeddingStore)) {
+            throw new UnsupportedOperationException(store.getClass().getName()
+                    + " cannot add entries under given ids; it would store duplicates");
+        }
+        ((UpsertEmbeddingStore) store).addAll(ids, embeddings, textSegments);
+    }
+}
@@ -0,0 +1,449 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import static dev.langchain4j.model.openai.OpenAiChatModelName.GPT_4_O;
+
+/**
+ * This class serves the services over HTTP from one long-running process, so that the JVM start-up, the class
+ * loading of langchain4j and OkHttp, the TLS connections of the shared {@link HttpClientProvider} client, the model
+ * clients of {@link ModelClientRegistry} and every cache are paid once and reused by all the requests, instead of
+ * launching a {@code main()} per call.
+ *
+ * Every endpoint takes a JSON body with the same parameters as the static method it calls, and answers with the
+ * JSONObject that method returns:
+ * <ul>
+ *     <li>{@code POST /v1/query}: {@link ChatGPTQueryService#searchAsync} (text, version, apiKey, max_tokens, temperature);</li>
+ *     <li>{@code POST /v1/query/web}: {@link ChatGPTQueryService#searchOnWebPageAsync} (question, webUrl, version,
+ *     apiKey, max_tokens, temperature);</li>
+ *     <li>{@code POST /v1/query/pinecone}: {@link ChatGPTQueryService#searchOnPineconeAsync} (apiKey, version,
+ *     temperature, pineconeApiKey, index, nameSpace, prompt);</li>
+ *     <li>{@code POST /v1/scrape}: {@link WebScraperService#fetchContentAsync} (url, includeLinks);</li>
+ *     <li>{@code POST /v1/sdp}: {@link SDKConnectorService#invokeGetTknAsync} (url, code, client_id, client_secret);</li>
+ *     <li>{@code POST /v1/sdp/invalidate}: drops cached SDP responses after a write or on a webhook event, see
+ *     {@link SdpResponseCache} (url; or endpoint and optionally id; or all);</li>
+ *     <li>{@code GET /health}, {@code GET /stats} ({@link Metrics#getStats()}) and {@code GET /metrics}
+ *     ({@link Metrics#toPrometheusText()}).</li>
+ * </ul>
+ * Requests run on virtual threads when the JVM has them (Java 21 or later), otherwise on a pool of
+ * {@code gateway.maxConcurrent} threads whose queue holds at most {@code gateway.queueSize} requests (default 1024).
+ * Beyond {@code gateway.maxConcurrent} requests in flight (default 256), when the queue is full, or when a request
+ * waited more than {@code gateway.maxQueueMs} (default 1000) for a thread, it is shed with a 503 and a Retry-After
+ * header. Every request has a deadline of {@code gateway.deadlineMs} (default 60000), which a client can shorten
+ * with the {@code X-Request-Timeout-Ms} header; when it expires a 504 is returned and the future of the call is
+ * cancelled, which aborts its asynchronous HTTP requests and skips its tasks not started yet, while a blocking call
+ * already running (e.g. a Pinecone search) finishes in the background. On shutdown new requests get a 503 while
+ * those in flight are given {@code gateway.shutdownGraceMs} (default 30000) to finish.
+ *
+ * The gateway listens on {@code gateway.host}, the loopback address 127.0.0.1 by default since it forwards the
+ * credentials it receives; set it to 0.0.0.0 to listen on every interface.
+ *
+ * Start it with {@code java -Dgateway.port=8080 -cp ... org.example.GatewayServer}.
+ */
+public class GatewayServer {
+
+    private static final String HOST = System.getProperty("gateway.host", "127.0.0.1");
+    private static final int MAX_CONCURRENT = Integer.getInteger("gateway.maxConcurrent", 256);
+    private static final int QUEUE_SIZE = Integer.getInteger("gateway.queueSize", 1024);
+    private static final long MAX_QUEUE_MILLIS = Long.getLong("gateway.maxQueueMs", 1000L);
+    private static final long DEADLINE_MILLIS = Long.getLong("gateway.deadlineMs", 60_000L);
+    private static final long SHUTDOWN_GRACE_MILLIS = Long.getLong("gateway.shutdownGraceMs", 30_000L);
+    private static final int MAX_BODY_BYTES = Integer.getInteger("gateway.maxBodyBytes", 1 << 20);
+
+    // When set, /v1/sdp only forwards the credentials to URLs starting with this prefix
+    private static final String SDP_BASE_URL = System.getProperty("gateway.sdpBaseUrl");
+
+    private static final String DEFAULT_VERSION = GPT_4_O.toString();
+
+    // Time at which the exchange run by the current thread was handed to the executor
+    private static final ThreadLocal<Long> queuedAt = new ThreadLocal<>();
+    // Set while the exchange run by the current thread is one the executor had no room for
+    private static final ThreadLocal<Boolean> rejected = new ThreadLocal<>();
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    // Answers the exchanges the executor rejected with a 503
+    private final ExecutorService shedExecutor;
+    private final Semaphore permits = new Semaphore(MAX_CONCURRENT);
+    private final Map<String, Function<JSONObject, CompletableFuture<JSONObject>>> routes = new LinkedHashMap<>();
+    private final Map<String, Metrics.Stage> stages = new LinkedHashMap<>();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private volatile boolean draining;
+
+    private GatewayServer(int port) throws IOException {
+        routes.put("/v1/query", body -> ChatGPTQueryService.searchAsync(
+                body.getString("text"), body.optString("version", DEFAULT_VERSION), body.getString("apiKey"),
+                body.optInt("max_tokens", 4000), body.optDouble("temperature", 1.0)));
+        routes.put("/v1/query/web", body -> ChatGPTQueryService.searchOnWebPageAsync(
+                body.getString("question"), body.getString("webUrl"), body.optString("version", DEFAULT_VERSION),
+                body.getString("apiKey"), body.optInt("max_tokens", 4000), body.optDouble("temperature", 1.0)));
+        routes.put("/v1/query/pinecone", body -> ChatGPTQueryService.searchOnPineconeAsync(
+                body.getString("apiKey"), body.optString("version", DEFAULT_VERSION), body.optDouble("temperature", 1.0),
+                body.getString("pineconeApiKey"), body.getString("index"), body.optString("nameSpace", ""),
+                body.getString("prompt")));
+        routes.put("/v1/scrape", body -> WebScraperService.fetchContentAsync(
+                body.getString("url"), body.optBoolean("includeLinks", false)));
+        routes.put("/v1/sdp", body -> {
+            String url = body.getString("url");
+            if (SDP_BASE_URL != null && !url.startsWith(SDP_BASE_URL)) {
+                throw new IllegalArgumentException("url must start with " + SDP_BASE_URL);
+            }
+            return SDKConnectorService.invokeGetTknAsync(url, body.getString("code"),
+                    body.getString("client_id"), body.getString("client_secret"));
+        });
+        routes.put("/v1/sdp/invalidate", body -> CompletableFuture.completedFuture(invalidateSdp(body)));
+        for (String path : routes.keySet()) {
+            stages.put(path, Metrics.stage("gateway" + path.substring("/v1".length()).replace('/', '.')));
+        }
+
+        executor = createExecutor();
+        shedExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE),
+                daemonThreads("gateway-shed-"), new ThreadPoolExecutor.CallerRunsPolicy());
+        server = HttpServer.create(new InetSocketAddress(HOST, port), Integer.getInteger("gateway.backlog", 1024));
+        server.setExecutor(timestamping(executor, shedExecutor));
+        server.createContext("/v1/", this::handleApi);
+        server.createContext("/health", exchange -> handleInfo(exchange, "application/json",
+                new JSONObject().put("status", draining ? "draining" : "ok")
+                        .put("inFlight", MAX_CONCURRENT - permits.availablePermits()).toString()));
+        server.createContext("/stats", exchange -> handleInfo(exchange, "application/json", Metrics.getStats().toString()));
+        server.createContext("/metrics", exchange -> handleInfo(exchange, "text/plain; version=0.0.4; charset=utf-8",
+                Metrics.toPrometheusText()));
+        Metrics.registerComponent("gateway", this::getStats);
+    }
+
+    /**
+     * Starts a gateway and registers a shutdown hook that stops it gracefully.
+     *
+     * @param port The port to listen on, or 0 for any free port.
+     * @return     The running gateway.
+     * @throws IOException If the port cannot be bound.
+     */
+    public static GatewayServer start(int port) throws IOException {
+        GatewayServer gateway = new GatewayServer(port);
+        gateway.server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(gateway::stop, "gateway-shutdown"));
+        return gateway;
+    }
+
+    /**
+     * Returns the port the gateway listens on.
+     *
+     * @return The port.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the gateway gracefully: new requests are refused with a 503, those in flight are given
+     * {@code gateway.shutdownGraceMs} to finish, then the listener and the threads are released.
+     * Calling it again has no effect.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        long deadline = System.currentTimeMillis() + SHUTDOWN_GRACE_MILLIS;
+        try {
+            // Every permit is back once the requests in flight have answered
+            if (permits.tryAcquire(MAX_CONCURRENT, SHUTDOWN_GRACE_MILLIS, TimeUnit.MILLISECONDS)) {
+                permits.release(MAX_CONCURRENT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Closes the listener, then lets the exchanges still queued get their 503 within what is left of the grace
+        server.stop((int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(deadline - System.currentTimeMillis())));
+        executor.shutdownNow();
+        shedExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the statistics of the gateway: the requests in flight and queued, those shed and those that exceeded
+     * their deadline, and whether it is draining.
+     *
+     * @return A JSONObject with the statistics.
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("inFlight", MAX_CONCURRENT - permits.availablePermits());
+        stats.put("maxConcurrent", MAX_CONCURRENT);
+        if (executor instanceof ThreadPoolExecutor) {
+            stats.put("queued", ((ThreadPoolExecutor) executor).getQueue().size());
+        }
+        stats.put("shed", shed.sum());
+        stats.put("timedOut", timedOut.sum());
+        stats.put("draining", draining);
+        return stats;
+    }
+
+    /**
+     * Invalidates the SDP responses named by the body of a /v1/sdp/invalidate request.
+     */
+    private static JSONObject invalidateSdp(JSONObject body) {
+        int removed;
+        if (body.has("url")) {
+            removed = SdpResponseCache.invalidate(body.getString("url"));
+        } else if (body.has("endpoint") && body.has("id")) {
+            removed = SdpResponseCache.invalidateRecord(body.getString("endpoint"), String.valueOf(body.get("id")));
+        } else if (body.has("endpoint")) {
+            removed = SdpResponseCache.invalidateEndpoint(body.getString("endpoint"));
+        } else if (body.optBoolean("all")) {
+            removed = SdpResponseCache.invalidateAll();
+        } else {
+            throw new IllegalArgumentException("Give a url, an endpoint (and id) or all");
+        }
+        JSONObject jsonResponse = new JSONObject();
+        jsonResponse.put("status", "success");
+        jsonResponse.put("removed", removed);
+        return jsonResponse;
+    }
+
+    private void handleApi(HttpExchange exchange) throws IOException {
+        long startedAt = System.nanoTime();
+        Long queuedSince = queuedAt.get();
+        try {
+            String path = exchange.getRequestURI().getPath();
+            Function<JSONObject, CompletableFuture<JSONObject>> route = routes.get(path);
+            if (route == null) {
+                send(exchange, 404, error("Unknown endpoint " + path));
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                send(exchange, 405, error("Use POST"));
+                return;
+            }
+            if (draining) {
+                exchange.getResponseHeaders().set("Connection", "close");
+                sendShed(exchange, "The gateway is shutting down");
+                return;
+            }
+            // A request the executor had no room for is shed at once; one that already waited long for a thread
+            // is likely to be abandoned by its client, so shedding it frees the thread for newer requests
+            if (rejected.get() != null
+                    || queuedSince != null && startedAt - queuedSince > TimeUnit.MILLISECONDS.toNanos(MAX_QUEUE_MILLIS)) {
+                sendShed(exchange, "The gateway is overloaded");
+                return;
+            }
+            if (!permits.tryAcquire()) {
+                sendShed(exchange, "The gateway is overloaded");
+                return;
+            }
+            Metrics.Stage stage = stages.get(path);
+            long stageStartedAt = stage.start();
+            int status = 500;
+            try {
+                long deadlineNanos = (queuedSince != null ? queuedSince : startedAt)
+                        + TimeUnit.MILLISECONDS.toNanos(deadlineMillis(exchange));
+                status = serve(exchange, route, deadlineNanos);
+            } finally {
+                permits.release();
+                stage.end(stageStartedAt, String.valueOf(status));
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads the body, calls the route and waits for its answer until the deadline.
+     *
+     * @return The HTTP status sent.
+     */
+    private int serve(HttpExchange exchange, Function<JSONObject, CompletableFuture<JSONObject>> route,
+                      long deadlineNanos) throws IOException {
+        CompletableFuture<JSONObject> future;
+        try {
+            future = route.apply(readBody(exchange));
+        } catch (JSONException | IllegalArgumentException e) {
+            return send(exchange, 400, error(e.getMessage()));
+        } catch (RuntimeException e) {
+            return send(exchange, 500, error("Exception while processing the request: " + e.getMessage()));
+        }
+        try {
+            long remaining = deadlineNanos - System.nanoTime();
+            JSONObject result = remaining > 0 ? future.get(remaining, TimeUnit.NANOSECONDS) : timeOut();
+            return send(exchange, 200, result);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            timedOut.increment();
+            return send(exchange, 504, error("The request exceeded its deadline"));
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return send(exchange, 503, error("The gateway is shutting down"));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+                    ? e.getCause().getCause() : e.getCause();
+            return send(exchange, 502, error("Exception while processing the request: " + cause.getMessage()));
+        }
+    }
+
+    private static JSONObject timeOut() throws TimeoutException {
+        throw new TimeoutException();
+    }
+
+    private static long deadlineMillis(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("X-Request-Timeout-Ms");
+        if (header != null) {
+            try {
+                return Math.min(DEADLINE_MILLIS, Math.max(0, Long.parseLong(header.trim())));
+            } catch (NumberFormatException e) {
+                // Ignored: the default deadline applies
+            }
+        }
+        return DEADLINE_MILLIS;
+    }
+
+    private void sendShed(HttpExchange exchange, String message) throws IOException {
+        shed.increment();
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        send(exchange, 503, error(message));
+    }
+
+    private static void handleInfo(HttpExchange exchange, String contentType, String body) throws IOException {
+        try {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static JSONObject readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = exchange.getRequestBody()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+                if (body.size() > MAX_BODY_BYTES) {
+                    throw new IllegalArgumentException("The body exceeds " + MAX_BODY_BYTES + " bytes");
+                }
+            }
+        }
+        return new JSONObject(new String(body.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static int send(HttpExchange exchange, int status, JSONObject body) throws IOException {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+        return status;
+    }
+
+    private static JSONObject error(String message) {
+        JSONObject jsonResponse = new JSONObject();
+        jsonResponse.put("status", "error");
+        jsonResponse.put("message", message);
+        return jsonResponse;
+    }
+
+    /**
+     * Wraps the executor so that every exchange knows when it was handed over, for the queue shedding and the deadline.
+     * An exchange the executor rejects is handed to the shed executor, which answers it with a 503: the HTTP server
+     * would otherwise drop the connection without a response.
+     */
+    private static Executor timestamping(ExecutorService executor, ExecutorService shedExecutor) {
+        return task -> {
+            long handedAt = System.nanoTime();
+            try {
+                executor.execute(() -> {
+                    queuedAt.set(handedAt);
+                    try {
+                        task.run();
+                    } finally {
+                        queuedAt.remove();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                shedExecutor.execute(() -> {
+                    rejected.set(Boolean.TRUE);
+                    try {
+                        task.run();
+                    } finally {
+                        rejected.remove();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Uses a virtual thread per request when the JVM has them; the tree targets Java 8, so they are looked up by
+     * reflection. Otherwise a pool of {@code gateway.maxConcurrent} threads with a queue of {@code gateway.queueSize}
+     * exchanges is used, and the exchanges beyond it are rejected.
+     */
+    private static ExecutorService createExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return new ThreadPoolExecutor(MAX_CONCURRENT, MAX_CONCURRENT, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(QUEUE_SIZE), daemonThreads("gateway-"));
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Starts the gateway on {@code gateway.port} (default 8080) and keeps it running until the JVM is stopped.
+     * execute on console using java -Dgateway.port=8080 -cp "target/classes;target/dependency/*;target/chatgptconnection-1.0-SNAPSHOT.jar" org.example.GatewayServer
+     *
+     * @param args Command-line arguments (not used).
+     * @throws Exception If the gateway cannot be started.
+     */
+    public static void main(String[] args) throws Exception {
+        // Loads the clients and the caches before the first request
+        HttpClientProvider.getClient();
+        Class.forName(ChatGPTQueryService.class.getName());
+        GatewayServer gateway = start(Integer.getInteger("gateway.port", 8080));
+        System.out.println("Gateway listening on port " + gateway.getPort());
+    }
+}
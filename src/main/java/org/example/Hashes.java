@@ -0,0 +1,33 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This class provides the content hashes used as cache keys and deduplication keys across the services.
+ */
+public class Hashes {
+
+    private Hashes() {
+    }
+
+    /**
+     * Returns the SHA-256 hash of a text encoded in UTF-8, as a lowercase hexadecimal string.
+     *
+     * @param value The text to hash.
+     * @return      The 64-character hexadecimal hash.
+     */
+    public static String sha256Hex(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,845 @@
+package org.example;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import dev.langchain4j.store.embedding.filter.Filter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class is an in-process {@link EmbeddingStore} that answers similarity searches from a local
+ * HNSW (Hierarchical Navigable Small World) graph, without any network call.
+ *
+ * Vectors are normalized when added and kept in one contiguous {@code float[]}, so the cosine similarity is
+ * a plain dot product over primitive arrays, written so the JIT can vectorize it. Scores are reported as
+ * relevance scores in [0, 1], like the Pinecone store. Removed entries are only marked as deleted and
+ * skipped in the results. The whole store can be saved to and loaded from a snapshot file.
+ *
+ * Searches can run concurrently; additions and removals take an exclusive lock.
+ */
+public class HnswEmbeddingStore implements UpsertEmbeddingStore {
+
+    private static final int SNAPSHOT_MAGIC = 0x484E5357; // "HNSW"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int INITIAL_CAPACITY = 1024;
+    // The largest array the JVM can allocate; the flat vector and layer 0 arrays must stay within it
+    private static final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private volatile int efSearch;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Random random = new Random(42);
+    private final Map<String, Integer> nodeById = new HashMap<>();
+
+    private static final ThreadLocal<VisitedSet> visitedSets = ThreadLocal.withInitial(VisitedSet::new);
+
+    private int dimension;
+    private int size;
+    private int capacity;
+    private float[] vectors;
+    private int[] levels;
+    // Layer 0 links of node n live at [n * (maxM0 + 1)]: the link count followed by up to maxM0 neighbors
+    private int[] layer0;
+    // Upper layer links: upper[n][level - 1] holds the link count followed by up to m neighbors
+    private int[][][] upper;
+    private String[] ids;
+    private TextSegment[] segments;
+    private boolean[] deleted;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    /**
+     * Creates a store with the default graph parameters (m = 16, efConstruction = 200, efSearch = 64).
+     */
+    public HnswEmbeddingStore() {
+        this(16, 200, 64);
+    }
+
+    /**
+     * Creates a store with the given graph parameters.
+     *
+     * @param m              The number of links per node on the upper layers (twice as many on layer 0).
+     *                       Higher values improve recall at the cost of memory and insertion time.
+     * @param efConstruction The size of the candidate list used while inserting.
+     * @param efSearch       The size of the candidate list used while searching (raised to maxResults if lower).
+     */
+    public HnswEmbeddingStore(int m, int efConstruction, int efSearch) {
+        if (m < 2) {
+            throw new IllegalArgumentException("m must be at least 2: " + m);
+        }
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.levelMultiplier = 1 / Math.log(m);
+    }
+
+    /**
+     * Sets the size of the candidate list used while searching. Higher values improve recall but are slower.
+     *
+     * @param efSearch The new candidate list size.
+     */
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    /**
+     * Returns the number of entries in the store, not counting removed ones.
+     *
+     * @return The number of searchable entries.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return nodeById.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Indicates whether an entry with the given id is in the store.
+     *
+     * @param id The entry id.
+     * @return   True if the entry exists and was not removed.
+     */
+    public boolean contains(String id) {
+        lock.readLock().lock();
+        try {
+            return nodeById.containsKey(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String add(Embedding embedding) {
+        String id = UUID.randomUUID().toString();
+        add(id, embedding, null);
+        return id;
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        add(id, embedding, null);
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment textSegment) {
+        String id = UUID.randomUUID().toString();
+        add(id, embedding, textSegment);
+        return id;
+    }
+
+    /**
+     * Adds an entry with the given id, replacing any entry that already has it.
+     *
+     * @param id          The entry id (for example the id of the same vector in Pinecone).
+     * @param embedding   The embedding to index.
+     * @param textSegment The text segment stored with the embedding, or null.
+     */
+    public void add(String id, Embedding embedding, TextSegment textSegment) {
+        lock.writeLock().lock();
+        try {
+            insert(id, embedding.vector(), textSegment);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        return addAll(embeddings, null);
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
+        List<String> newIds = new ArrayList<>(embeddings.size());
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < embeddings.size(); i++) {
+                String id = UUID.randomUUID().toString();
+                insert(id, embeddings.get(i).vector(), textSegments == null ? null : textSegments.get(i));
+                newIds.add(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return newIds;
+    }
+
+    /**
+     * Adds entries with the given ids, replacing the entries that already have them.
+     *
+     * @param ids          The entry ids, one per embedding.
+     * @param embeddings   The embeddings to index.
+     * @param textSegments The text segments stored with the embeddings, or null.
+     */
+    @Override
+    public void addAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> textSegments) {
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < embeddings.size(); i++) {
+                insert(ids.get(i), embeddings.get(i).vector(), textSegments == null ? null : textSegments.get(i));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(String id) {
+        removeAll(Collections.singletonList(id));
+    }
+
+    @Override
+    public void removeAll(Collection<String> idsToRemove) {
+        lock.writeLock().lock();
+        try {
+            for (String id : idsToRemove) {
+                Integer node = nodeById.remove(id);
+                if (node != null) {
+                    deleted[node] = true;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll(Filter filter) {
+        lock.writeLock().lock();
+        try {
+            for (int node = 0; node < size; node++) {
+                if (!deleted[node] && segments[node] != null && filter.test(segments[node].metadata())) {
+                    nodeById.remove(ids[node]);
+                    deleted[node] = true;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll() {
+        lock.writeLock().lock();
+        try {
+            nodeById.clear();
+            dimension = 0;
+            size = 0;
+            capacity = 0;
+            vectors = null;
+            entryPoint = -1;
+            maxLevel = -1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        lock.readLock().lock();
+        try {
+            if (entryPoint < 0 || nodeById.isEmpty()) {
+                return new EmbeddingSearchResult<>(Collections.<EmbeddingMatch<TextSegment>>emptyList());
+            }
+            float[] query = Vectors.normalize(request.queryEmbedding().vector());
+            if (query.length != dimension) {
+                throw new IllegalArgumentException("Expected an embedding of dimension " + dimension + " but got " + query.length);
+            }
+
+            int current = entryPoint;
+            for (int level = maxLevel; level > 0; level--) {
+                current = greedyClosest(query, current, level);
+            }
+
+            Filter filter = request.filter();
+            // Deleted and filtered-out nodes take places in the candidate list, so widen it when they are likely
+            int ef = Math.max(efSearch, request.maxResults());
+            if (filter != null || nodeById.size() < size) {
+                ef = Math.max(ef, request.maxResults() * 4);
+            }
+            NodeHeap candidates = searchLayer(query, current, ef, 0);
+
+            List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(request.maxResults());
+            int[] order = candidates.sortedDescending();
+            for (int i = 0; i < order.length && matches.size() < request.maxResults(); i++) {
+                int node = candidates.nodes[order[i]];
+                if (deleted[node]) {
+                    continue;
+                }
+                if (filter != null && (segments[node] == null || !filter.test(segments[node].metadata()))) {
+                    continue;
+                }
+                double score = RelevanceScore.fromCosineSimilarity(candidates.scores[order[i]]);
+                if (score < request.minScore()) {
+                    break;
+                }
+                float[] vector = Arrays.copyOfRange(vectors, node * dimension, (node + 1) * dimension);
+                matches.add(new EmbeddingMatch<>(score, ids[node], Embedding.from(vector), segments[node]));
+            }
+            return new EmbeddingSearchResult<>(matches);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the whole store, including removed entries and the graph links, to a snapshot file. The snapshot is
+     * written to a temporary file that then replaces the previous one, so an interrupted save leaves it intact.
+     *
+     * @param file The file to create or overwrite.
+     * @throws IOException If the file cannot be written.
+     */
+    public void save(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        lock.readLock().lock();
+        try {
+            writeSnapshot(tmp);
+        } finally {
+            lock.readLock().unlock();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void writeSnapshot(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(efSearch);
+            out.writeInt(dimension);
+            out.writeInt(size);
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+
+            for (int node = 0; node < size; node++) {
+                writeString(out, ids[node]);
+                out.writeBoolean(deleted[node]);
+                out.writeInt(levels[node]);
+                int offset = node * dimension;
+                for (int i = 0; i < dimension; i++) {
+                    out.writeFloat(vectors[offset + i]);
+                }
+                int base = node * (maxM0 + 1);
+                for (int i = 0; i <= layer0[base]; i++) {
+                    out.writeInt(layer0[base + i]);
+                }
+                for (int level = 1; level <= levels[node]; level++) {
+                    int[] links = upper[node][level - 1];
+                    for (int i = 0; i <= links[0]; i++) {
+                        out.writeInt(links[i]);
+                    }
+                }
+                writeSegment(out, segments[node]);
+            }
+        }
+    }
+
+    /**
+     * Reads a store from a snapshot file written by {@link #save}.
+     *
+     * @param file The snapshot file.
+     * @return     The restored store.
+     * @throws IOException If the file cannot be read or is not a snapshot.
+     */
+    public static HnswEmbeddingStore load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Not an HNSW snapshot: " + file);
+            }
+            HnswEmbeddingStore store = new HnswEmbeddingStore(in.readInt(), in.readInt(), in.readInt());
+            store.dimension = in.readInt();
+            int count = in.readInt();
+            if (store.dimension < 0 || count < 0 || count > store.maxCapacity()) {
+                throw new IOException("Corrupt HNSW snapshot: " + file);
+            }
+            store.entryPoint = in.readInt();
+            store.maxLevel = in.readInt();
+            store.ensureCapacity(count);
+
+            for (int node = 0; node < count; node++) {
+                store.ids[node] = readString(in);
+                store.deleted[node] = in.readBoolean();
+                int level = in.readInt();
+                store.levels[node] = level;
+                int offset = node * store.dimension;
+                for (int i = 0; i < store.dimension; i++) {
+                    store.vectors[offset + i] = in.readFloat();
+                }
+                int base = node * (store.maxM0 + 1);
+                store.layer0[base] = in.readInt();
+                for (int i = 1; i <= store.layer0[base]; i++) {
+                    store.layer0[base + i] = in.readInt();
+                }
+                store.upper[node] = new int[level][];
+                for (int l = 1; l <= level; l++) {
+                    int[] links = new int[store.m + 1];
+                    links[0] = in.readInt();
+                    for (int i = 1; i <= links[0]; i++) {
+                        links[i] = in.readInt();
+                    }
+                    store.upper[node][l - 1] = links;
+                }
+                store.segments[node] = readSegment(in);
+                if (!store.deleted[node]) {
+                    store.nodeById.put(store.ids[node], node);
+                }
+                store.size = node + 1;
+            }
+            return store;
+        }
+    }
+
+    private void insert(String id, float[] vector, TextSegment segment) {
+        if (dimension == 0) {
+            dimension = vector.length;
+        } else if (vector.length != dimension) {
+            throw new IllegalArgumentException("Expected an embedding of dimension " + dimension + " but got " + vector.length);
+        }
+        Integer previous = nodeById.remove(id);
+        if (previous != null) {
+            deleted[previous] = true;
+        }
+
+        ensureCapacity(size + 1);
+        int node = size++;
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+        float[] unit = Vectors.normalize(vector);
+        System.arraycopy(unit, 0, vectors, node * dimension, dimension);
+        levels[node] = level;
+        layer0[node * (maxM0 + 1)] = 0;
+        upper[node] = new int[level][];
+        for (int l = 0; l < level; l++) {
+            upper[node][l] = new int[m + 1];
+        }
+        ids[node] = id;
+        segments[node] = segment;
+        deleted[node] = false;
+        nodeById.put(id, node);
+
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+
+        int current = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            current = greedyClosest(unit, current, l);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            NodeHeap candidates = searchLayer(unit, current, efConstruction, l);
+            int maxLinks = l == 0 ? maxM0 : m;
+            int[] neighbors = selectNeighbors(candidates, maxLinks);
+            for (int neighbor : neighbors) {
+                addLink(node, neighbor, l);
+                addLink(neighbor, node, l);
+            }
+            current = candidates.nodes[candidates.best()];
+        }
+        if (level > maxLevel) {
+            entryPoint = node;
+            maxLevel = level;
+        }
+    }
+
+    /**
+     * Walks the given layer greedily towards the query and returns the closest node found.
+     */
+    private int greedyClosest(float[] query, int start, int level) {
+        int current = start;
+        float currentScore = similarity(query, current);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int[] links = links(current, level);
+            int base = linksBase(current, level);
+            for (int i = 1; i <= links[base]; i++) {
+                int neighbor = links[base + i];
+                float score = similarity(query, neighbor);
+                if (score > currentScore) {
+                    currentScore = score;
+                    current = neighbor;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Standard HNSW layer search: returns up to ef nodes of the layer closest to the query.
+     */
+    private NodeHeap searchLayer(float[] query, int start, int ef, int level) {
+        VisitedSet visited = visitedSets.get();
+        visited.reset(size);
+        NodeHeap candidates = new NodeHeap(ef + 1, true);
+        NodeHeap results = new NodeHeap(ef + 1, false);
+
+        float startScore = similarity(query, start);
+        visited.add(start);
+        candidates.push(start, startScore);
+        results.push(start, startScore);
+
+        while (candidates.size > 0) {
+            float candidateScore = candidates.topScore();
+            if (results.size >= ef && candidateScore < results.topScore()) {
+                break;
+            }
+            int candidate = candidates.pop();
+            int[] links = links(candidate, level);
+            int base = linksBase(candidate, level);
+            for (int i = 1; i <= links[base]; i++) {
+                int neighbor = links[base + i];
+                if (!visited.add(neighbor)) {
+                    continue;
+                }
+                float score = similarity(query, neighbor);
+                if (results.size < ef || score > results.topScore()) {
+                    candidates.push(neighbor, score);
+                    results.push(neighbor, score);
+                    if (results.size > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Neighbor selection heuristic from the HNSW paper: a candidate is kept only if it is closer to the new node
+     * than to every neighbor already kept, which spreads links in different directions. Remaining places are
+     * filled with the closest discarded candidates.
+     */
+    private int[] selectNeighbors(NodeHeap candidates, int maxLinks) {
+        int[] order = candidates.sortedDescending();
+        int[] selected = new int[Math.min(maxLinks, order.length)];
+        boolean[] taken = new boolean[order.length];
+        int count = 0;
+        for (int i = 0; i < order.length && count < selected.length; i++) {
+            int candidate = candidates.nodes[order[i]];
+            float scoreToNew = candidates.scores[order[i]];
+            boolean keep = true;
+            for (int j = 0; j < count; j++) {
+                if (similarity(candidate, selected[j]) > scoreToNew) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selected[count++] = candidate;
+                taken[i] = true;
+            }
+        }
+        for (int i = 0; i < order.length && count < selected.length; i++) {
+            if (!taken[i]) {
+                selected[count++] = candidates.nodes[order[i]];
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Adds a link from node to target on the given layer. When the node already has the maximum number of links,
+     * the links are re-selected with the heuristic among the current neighbors and the new target.
+     */
+    private void addLink(int node, int target, int level) {
+        int[] links = links(node, level);
+        int base = linksBase(node, level);
+        int maxLinks = level == 0 ? maxM0 : m;
+        int count = links[base];
+        for (int i = 1; i <= count; i++) {
+            if (links[base + i] == target) {
+                return;
+            }
+        }
+        if (count < maxLinks) {
+            links[base + count + 1] = target;
+            links[base] = count + 1;
+            return;
+        }
+
+        NodeHeap candidates = new NodeHeap(count + 1, false);
+        for (int i = 1; i <= count; i++) {
+            candidates.push(links[base + i], similarity(node, links[base + i]));
+        }
+        candidates.push(target, similarity(node, target));
+        int[] selected = selectNeighbors(candidates, maxLinks);
+        links[base] = selected.length;
+        System.arraycopy(selected, 0, links, base + 1, selected.length);
+    }
+
+    private int[] links(int node, int level) {
+        return level == 0 ? layer0 : upper[node][level - 1];
+    }
+
+    private int linksBase(int node, int level) {
+        return level == 0 ? node * (maxM0 + 1) : 0;
+    }
+
+    private float similarity(float[] query, int node) {
+        return Vectors.dot(query, 0, vectors, node * dimension, dimension);
+    }
+
+    private float similarity(int a, int b) {
+        return Vectors.dot(vectors, a * dimension, vectors, b * dimension, dimension);
+    }
+
+    /**
+     * Returns the most nodes the store can hold: beyond it, node offsets in the flat vector or layer 0 arrays
+     * would overflow an int.
+     */
+    private int maxCapacity() {
+        return (int) (MAX_ARRAY_LENGTH / Math.max(Math.max(dimension, 1), maxM0 + 1));
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= capacity) {
+            return;
+        }
+        int maxCapacity = maxCapacity();
+        if (required > maxCapacity) {
+            throw new IllegalStateException("The store is full: at most " + maxCapacity + " entries of dimension "
+                    + dimension + " fit in memory arrays");
+        }
+        int newCapacity = Math.min(maxCapacity, Math.max(INITIAL_CAPACITY, capacity));
+        while (newCapacity < required) {
+            newCapacity = (int) Math.min(maxCapacity, 2L * newCapacity);
+        }
+        vectors = vectors == null ? new float[newCapacity * dimension] : Arrays.copyOf(vectors, newCapacity * dimension);
+        levels = levels == null ? new int[newCapacity] : Arrays.copyOf(levels, newCapacity);
+        layer0 = layer0 == null ? new int[newCapacity * (maxM0 + 1)] : Arrays.copyOf(layer0, newCapacity * (maxM0 + 1));
+        upper = upper == null ? new int[newCapacity][][] : Arrays.copyOf(upper, newCapacity);
+        ids = ids == null ? new String[newCapacity] : Arrays.copyOf(ids, newCapacity);
+        segments = segments == null ? new TextSegment[newCapacity] : Arrays.copyOf(segments, newCapacity);
+        deleted = deleted == null ? new boolean[newCapacity] : Arrays.copyOf(deleted, newCapacity);
+        capacity = newCapacity;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeSegment(DataOutputStream out, TextSegment segment) throws IOException {
+        out.writeBoolean(segment != null);
+        if (segment == null) {
+            return;
+        }
+        writeString(out, segment.text());
+        Map<String, Object> metadata = segment.metadata().toMap();
+        out.writeInt(metadata.size());
+        for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+            writeString(out, entry.getKey());
+            Object value = entry.getValue();
+            if (value instanceof Integer) {
+                out.writeByte('I');
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte('L');
+                out.writeLong((Long) value);
+            } else if (value instanceof Float) {
+                out.writeByte('F');
+                out.writeFloat((Float) value);
+            } else if (value instanceof Double) {
+                out.writeByte('D');
+                out.writeDouble((Double) value);
+            } else if (value instanceof UUID) {
+                out.writeByte('U');
+                writeString(out, value.toString());
+            } else {
+                out.writeByte('S');
+                writeString(out, String.valueOf(value));
+            }
+        }
+    }
+
+    private static TextSegment readSegment(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        String text = readString(in);
+        int entries = in.readInt();
+        Map<String, Object> metadata = new HashMap<>();
+        for (int i = 0; i < entries; i++) {
+            String key = readString(in);
+            byte type = in.readByte();
+            switch (type) {
+                case 'I': metadata.put(key, in.readInt()); break;
+                case 'L': metadata.put(key, in.readLong()); break;
+                case 'F': metadata.put(key, in.readFloat()); break;
+                case 'D': metadata.put(key, in.readDouble()); break;
+                case 'U': metadata.put(key, UUID.fromString(readString(in))); break;
+                default: metadata.put(key, readString(in)); break;
+            }
+        }
+        return TextSegment.from(text, new Metadata(metadata));
+    }
+
+    /**
+     * A binary heap of (node, score) pairs in primitive arrays. A max-heap keeps the best score on top,
+     * a min-heap the worst one.
+     */
+    private static class NodeHeap {
+        final boolean max;
+        int[] nodes;
+        float[] scores;
+        int size;
+
+        NodeHeap(int initialCapacity, boolean max) {
+            this.max = max;
+            this.nodes = new int[Math.max(2, initialCapacity)];
+            this.scores = new float[nodes.length];
+        }
+
+        void push(int node, float score) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!before(score, scores[parent])) {
+                    break;
+                }
+                nodes[i] = nodes[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            scores[i] = score;
+        }
+
+        int pop() {
+            int top = nodes[0];
+            size--;
+            int lastNode = nodes[size];
+            float lastScore = scores[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && before(scores[child + 1], scores[child])) {
+                    child++;
+                }
+                if (!before(scores[child], lastScore)) {
+                    break;
+                }
+                nodes[i] = nodes[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            nodes[i] = lastNode;
+            scores[i] = lastScore;
+            return top;
+        }
+
+        float topScore() {
+            return scores[0];
+        }
+
+        /**
+         * Returns the position of the entry with the highest score.
+         */
+        int best() {
+            int best = 0;
+            for (int i = 1; i < size; i++) {
+                if (scores[i] > scores[best]) {
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Returns the positions of the entries sorted by descending score, without changing the heap.
+         */
+        int[] sortedDescending() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Float.compare(scores[b], scores[a]));
+            int[] result = new int[size];
+            for (int i = 0; i < size; i++) {
+                result[i] = order[i];
+            }
+            return result;
+        }
+
+        private boolean before(float a, float b) {
+            return max ? a > b : a < b;
+        }
+    }
+
+    /**
+     * A per-thread visited marker that is reset in constant time by changing its generation number.
+     */
+    private static class VisitedSet {
+        int[] marks = new int[0];
+        int generation;
+
+        void reset(int size) {
+            if (marks.length < size) {
+                marks = new int[Math.max(size, marks.length * 2)];
+                generation = 0;
+            }
+            generation++;
+            if (generation == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                generation = 1;
+            }
+        }
+
+        boolean add(int node) {
+            if (marks[node] == generation) {
+                return false;
+            }
+            marks[node] = generation;
+            return true;
+        }
+    }
+}
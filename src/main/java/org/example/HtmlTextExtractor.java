@@ -0,0 +1,359 @@
+package org.example;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.StreamParser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class extracts the readable text of an HTML page while it is being read, without keeping the whole
+ * document in memory.
+ *
+ * The page is parsed with Jsoup's {@link StreamParser}: every element is handled when its closing tag is read
+ * and then replaced in the tree by a placeholder holding its text, so the text around it in its parent still comes
+ * out in document order. Text blocks (paragraphs, headings, list items, ...) and the text written
+ * directly in containers (div, span, section, article, main, body) are kept unless they are inside navigation,
+ * header, footer, aside, script or form elements, are too short, or are mostly link text; list items and table
+ * cells are kept whatever their length. When the page has a {@code div.main-content}, all the text inside it is
+ * returned, as before, and when no block qualifies the whole text of the page is.
+ * The absolute URLs of the page's links (except {@code rel="nofollow"}) are also collected, up to a limit.
+ */
+public class HtmlTextExtractor {
+
+    // How many bytes are inspected to find a <meta charset> declaration
+    private static final int CHARSET_SNIFF_BYTES = 4096;
+    private static final Pattern META_CHARSET = Pattern.compile(
+            "<meta[^>]+charset\\s*=\\s*[\"']?\\s*([A-Za-z0-9_.:-]+)", Pattern.CASE_INSENSITIVE);
+
+    private static final Set<String> BOILERPLATE_TAGS = new HashSet<>(Arrays.asList(
+            "nav", "header", "footer", "aside", "script", "style", "noscript", "form", "iframe", "svg", "button", "select"));
+    private static final Set<String> BLOCK_TAGS = new HashSet<>(Arrays.asList(
+            "p", "h1", "h2", "h3", "h4", "h5", "h6", "li", "pre", "blockquote", "td", "th", "dt", "dd", "figcaption"));
+    private static final Set<String> HEADING_TAGS = new HashSet<>(Arrays.asList("h1", "h2", "h3", "h4", "h5", "h6"));
+    // Blocks whose text is kept even when short: list items and table cells
+    private static final Set<String> ITEM_TAGS = new HashSet<>(Arrays.asList("li", "td", "th", "dt", "dd"));
+    // Elements whose own text (outside any block) is kept
+    private static final Set<String> CONTAINER_TAGS = new HashSet<>(Arrays.asList(
+            "div", "span", "section", "article", "main", "body"));
+
+    private static final int MIN_BLOCK_CHARS = 25;
+    private static final double MAX_LINK_DENSITY = 0.5;
+    private static final int MAX_LINKS = Integer.getInteger("scraper.maxLinks", 1000);
+    // The element left in the tree in place of a handled one
+    private static final String PLACEHOLDER_TAG = "extracted-text";
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /**
+     * Whether a piece of text belongs to the main content div, passes the content rules, or neither (it is then
+     * only returned when nothing else is).
+     */
+    private enum Kind { MAIN, CONTENT, OTHER }
+
+    private static class Segment {
+        final Kind kind;
+        final String text;
+
+        Segment(Kind kind, String text) {
+            this.kind = kind;
+            this.text = text;
+        }
+    }
+
+    /**
+     * The own text of an element between two of its handled children, with the length of the link text in it.
+     */
+    private static class TextRun {
+        final StringBuilder text = new StringBuilder();
+        int linkChars;
+    }
+
+    /**
+     * The result of an extraction.
+     */
+    public static class Result {
+        public final String title;
+        public final String content;
+        public final String charset;
+        public final Set<String> links;
+
+        Result(String title, String content, String charset, Set<String> links) {
+            this.title = title;
+            this.content = content;
+            this.charset = charset;
+            this.links = links;
+        }
+    }
+
+    /**
+     * Extracts the title and main text of an HTML page from a stream.
+     *
+     * @param in            The raw (already decompressed) HTML bytes.
+     * @param headerCharset The charset from the Content-Type header, or null if there was none.
+     * @param baseUri       The URL of the page.
+     * @return              The extracted title, text, links and the charset used to decode the page.
+     * @throws IOException  If the stream cannot be read.
+     */
+    public static Result extract(InputStream in, String headerCharset, String baseUri) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, CHARSET_SNIFF_BYTES * 2);
+        Charset charset = detectCharset(buffered, headerCharset);
+
+        String title = "";
+        // The text of the body, once it has been read
+        List<Segment> page = null;
+        // The text of the elements already handled, by the placeholder that took their place in the tree
+        Map<Element, List<Segment>> extracted = new IdentityHashMap<>();
+        boolean bodyRead = false;
+        Set<String> links = new LinkedHashSet<>();
+
+        try (Reader reader = new BufferedReader(new InputStreamReader(buffered, charset));
+             StreamParser parser = new StreamParser(Parser.htmlParser()).parse(reader, baseUri)) {
+            Iterator<Element> elements = parser.iterator();
+            while (elements.hasNext()) {
+                Element element = elements.next();
+                String tag = element.normalName();
+                if (tag.equals("body")) {
+                    // The elements still open at the end of the document are returned twice
+                    if (bodyRead) {
+                        continue;
+                    }
+                    bodyRead = true;
+                    page = segments(element, tag, extracted);
+                } else if (tag.equals("a")) {
+                    // Links are read before their block is handled and removed, including navigation links
+                    addLink(element, links);
+                } else if (tag.equals("title")) {
+                    if (title.isEmpty()) {
+                        title = element.text();
+                    }
+                    element.remove();
+                } else if (element.parent() != null && (BLOCK_TAGS.contains(tag) || BOILERPLATE_TAGS.contains(tag)
+                        || CONTAINER_TAGS.contains(tag) && !(tag.equals("span") && insideBlock(element)))) {
+                    // Blocks and containers are no longer needed once handled; a placeholder keeps the position of
+                    // their text, so that the text of their parent around them comes out in document order. A span
+                    // inside a block is part of the block's text
+                    List<Segment> segments = segments(element, tag, extracted);
+                    Element placeholder = new Element(PLACEHOLDER_TAG);
+                    element.replaceWith(placeholder);
+                    extracted.put(placeholder, segments);
+                }
+            }
+            if (page == null) {
+                page = segments(parser.document().body(), "body", extracted);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        StringBuilder mainContent = new StringBuilder();
+        StringBuilder content = new StringBuilder();
+        // All the text of the page, in case no block qualifies
+        StringBuilder allText = new StringBuilder();
+        for (Segment segment : page) {
+            if (segment.kind == Kind.MAIN) {
+                append(mainContent, segment.text);
+            } else if (segment.kind == Kind.CONTENT) {
+                append(content, segment.text);
+            }
+            append(allText, segment.text);
+        }
+        String text = mainContent.length() > 0 ? mainContent.toString()
+                : content.length() > 0 ? content.toString() : allText.toString();
+        return new Result(title, text.trim(), charset.name(), links);
+    }
+
+    /**
+     * Picks the charset of the page: the Content-Type header first, then a byte order mark, then a
+     * {@code <meta charset>} declaration near the start of the document, and UTF-8 otherwise.
+     */
+    static Charset detectCharset(BufferedInputStream in, String headerCharset) throws IOException {
+        Charset fromHeader = toCharset(headerCharset);
+        if (fromHeader != null) {
+            return fromHeader;
+        }
+
+        in.mark(CHARSET_SNIFF_BYTES);
+        byte[] head = new byte[CHARSET_SNIFF_BYTES];
+        int length = 0;
+        int read;
+        while (length < head.length && (read = in.read(head, length, head.length - length)) != -1) {
+            length += read;
+        }
+        in.reset();
+
+        if (length >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB && (head[2] & 0xFF) == 0xBF) {
+            return StandardCharsets.UTF_8;
+        }
+        if (length >= 2 && (head[0] & 0xFF) == 0xFE && (head[1] & 0xFF) == 0xFF) {
+            return StandardCharsets.UTF_16BE;
+        }
+        if (length >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xFE) {
+            return StandardCharsets.UTF_16LE;
+        }
+
+        Matcher matcher = META_CHARSET.matcher(new String(head, 0, length, StandardCharsets.ISO_8859_1));
+        if (matcher.find()) {
+            Charset fromMeta = toCharset(matcher.group(1));
+            if (fromMeta != null) {
+                return fromMeta;
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    private static Charset toCharset(String name) {
+        if (name == null || name.isEmpty()) {
+            return null;
+        }
+        try {
+            return Charset.forName(name.trim());
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the text of a handled element in document order: the runs of its own text, each kept or not by the rules
+     * of the element, and between them the text already extracted from the blocks and containers inside it.
+     */
+    private static List<Segment> segments(Element element, String tag, Map<Element, List<Segment>> extracted) {
+        List<Object> parts = new ArrayList<>();
+        collect(element, false, parts, extracted);
+
+        boolean boilerplate = BOILERPLATE_TAGS.contains(tag) || insideBoilerplate(element);
+        boolean main = insideMainContent(element);
+        List<Segment> segments = new ArrayList<>();
+        for (Object part : parts) {
+            if (part instanceof Segment) {
+                segments.add((Segment) part);
+                continue;
+            }
+            TextRun run = (TextRun) part;
+            String text = WHITESPACE.matcher(run.text).replaceAll(" ").trim();
+            if (text.isEmpty()) {
+                continue;
+            }
+            Kind kind = boilerplate ? Kind.OTHER
+                    : main ? Kind.MAIN
+                    : isContent(tag, text, run.linkChars) ? Kind.CONTENT : Kind.OTHER;
+            segments.add(new Segment(kind, text));
+        }
+        return segments;
+    }
+
+    private static void collect(Element parent, boolean inLink, List<Object> parts, Map<Element, List<Segment>> extracted) {
+        for (Node node : parent.childNodes()) {
+            if (node instanceof TextNode) {
+                String text = ((TextNode) node).getWholeText();
+                TextRun run = lastRun(parts);
+                run.text.append(text);
+                if (inLink) {
+                    run.linkChars += text.trim().length();
+                }
+            } else if (node instanceof Element) {
+                Element child = (Element) node;
+                List<Segment> segments = extracted.remove(child);
+                if (segments != null) {
+                    parts.addAll(segments);
+                    continue;
+                }
+                // Elements that are not handled themselves (lists, tables, inline elements) are read through
+                boolean separate = child.isBlock() || child.normalName().equals("br");
+                if (separate) {
+                    lastRun(parts).text.append(' ');
+                }
+                collect(child, inLink || child.normalName().equals("a"), parts, extracted);
+                if (separate) {
+                    lastRun(parts).text.append(' ');
+                }
+            }
+        }
+    }
+
+    private static TextRun lastRun(List<Object> parts) {
+        Object last = parts.isEmpty() ? null : parts.get(parts.size() - 1);
+        if (last instanceof TextRun) {
+            return (TextRun) last;
+        }
+        TextRun run = new TextRun();
+        parts.add(run);
+        return run;
+    }
+
+    private static boolean isContent(String tag, String text, int linkChars) {
+        if (!HEADING_TAGS.contains(tag) && !ITEM_TAGS.contains(tag) && text.length() < MIN_BLOCK_CHARS) {
+            return false;
+        }
+        return linkChars <= text.length() * MAX_LINK_DENSITY;
+    }
+
+    private static void addLink(Element link, Set<String> links) {
+        if (links.size() >= MAX_LINKS || link.attr("rel").toLowerCase().contains("nofollow")) {
+            return;
+        }
+        String url = link.absUrl("href");
+        if (url.startsWith("http://") || url.startsWith("https://")) {
+            links.add(url);
+        }
+    }
+
+    private static boolean insideBoilerplate(Element element) {
+        for (Element parent = element.parent(); parent != null; parent = parent.parent()) {
+            if (BOILERPLATE_TAGS.contains(parent.normalName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean insideBlock(Element element) {
+        for (Element parent = element.parent(); parent != null; parent = parent.parent()) {
+            if (BLOCK_TAGS.contains(parent.normalName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean insideMainContent(Element element) {
+        for (Element parent = element; parent != null; parent = parent.parent()) {
+            if (parent.normalName().equals("div") && parent.hasClass("main-content")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void append(StringBuilder builder, String text) {
+        if (text.isEmpty()) {
+            return;
+        }
+        if (builder.length() > 0) {
+            builder.append('\n');
+        }
+        builder.append(text);
+    }
+}
@@ -0,0 +1,139 @@
+package org.example;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class holds the single HTTP client shared by every service in the project.
+ * Sharing one client means that all services reuse the same connection pool, so connections to
+ * OpenAI, Zoho and the scraped web sites stay alive between requests instead of paying a new
+ * TLS handshake every time, and HTTP/2 connections (e.g. to api.openai.com) are multiplexed.
+ *
+ * The client transparently requests and decompresses gzip responses. Timeouts, pool size and
+ * dispatcher limits are read from system properties when the class is loaded:
+ * <ul>
+ *     <li>{@code http.connectTimeoutMs} (default 10000)</li>
+ *     <li>{@code http.readTimeoutMs} (default 120000)</li>
+ *     <li>{@code http.writeTimeoutMs} (default 30000)</li>
+ *     <li>{@code http.maxIdleConnections} (default 20)</li>
+ *     <li>{@code http.keepAliveMs} (default 300000)</li>
+ *     <li>{@code http.maxRequests} (default 128)</li>
+ *     <li>{@code http.maxRequestsPerHost} (default 32)</li>
+ * </ul>
+ *
+ * {@link #executeAsync} runs a request without blocking the caller: requests wait in the dispatcher queue
+ * without holding a thread, and at most {@code http.maxRequests} of them use a dispatcher thread at once.
+ */
+public class HttpClientProvider {
+
+    private static final OkHttpClient client = createClient();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(HttpClientProvider::shutdown, "http-client-shutdown"));
+    }
+
+    /**
+     * Returns the shared HTTP client. Callers that need different settings should derive a client
+     * with {@code getClient().newBuilder()}, which keeps the shared connection pool and dispatcher.
+     *
+     * @return The shared OkHttpClient instance.
+     */
+    public static OkHttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * Reads the response of an asynchronous request. The response is closed after this method returns.
+     *
+     * @param <T> The type of the result.
+     */
+    public interface ResponseHandler<T> {
+
+        /**
+         * Converts the response into the result of the request.
+         *
+         * @param response The HTTP response.
+         * @return         The result.
+         * @throws Exception If the response cannot be read.
+         */
+        T handle(Response response) throws Exception;
+    }
+
+    /**
+     * Sends a request asynchronously through the dispatcher of the given client, and reads its response with the
+     * handler on a dispatcher thread. Cancelling the returned future cancels the HTTP call.
+     *
+     * @param client  The client to send the request with, usually {@link #getClient()} or a client derived from it.
+     * @param request The request to send.
+     * @param handler Reads the response.
+     * @param <T>     The type of the result.
+     * @return        A future completed with the result of the handler, or exceptionally if the call or the handler failed.
+     */
+    public static <T> CompletableFuture<T> executeAsync(OkHttpClient client, Request request, ResponseHandler<T> handler) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Call call = client.newCall(request);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (Response closing = response) {
+                    future.complete(handler.handle(closing));
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled()) {
+                call.cancel();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Releases the resources held by the shared client: stops the dispatcher threads and closes
+     * every idle pooled connection. Calls still running are allowed to finish.
+     * This method is registered as a JVM shutdown hook, so it rarely needs to be called directly.
+     */
+    public static void shutdown() {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    private static OkHttpClient createClient() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(Integer.getInteger("http.maxRequests", 128));
+        dispatcher.setMaxRequestsPerHost(Integer.getInteger("http.maxRequestsPerHost", 32));
+
+        ConnectionPool connectionPool = new ConnectionPool(
+                Integer.getInteger("http.maxIdleConnections", 20),
+                Long.getLong("http.keepAliveMs", 300_000L),
+                TimeUnit.MILLISECONDS);
+
+        return new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(connectionPool)
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(Long.getLong("http.connectTimeoutMs", 10_000L), TimeUnit.MILLISECONDS)
+                .readTimeout(Long.getLong("http.readTimeoutMs", 120_000L), TimeUnit.MILLISECONDS)
+                .writeTimeout(Long.getLong("http.writeTimeoutMs", 30_000L), TimeUnit.MILLISECONDS)
+                .retryOnConnectionFailure(true)
+                .build();
+    }
+}
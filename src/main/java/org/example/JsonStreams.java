@@ -0,0 +1,285 @@
+package org.example;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * This class reads and writes JSON as a stream of tokens with Jackson, for the hot paths where building whole
+ * {@code org.json} trees would cost more than the call itself:
+ * <ul>
+ *     <li>{@link #requestBody} serializes a request straight into the HTTP connection, without building a tree or
+ *     a String first;</li>
+ *     <li>{@link #readChatCompletion} and {@link #readFields} pull only the fields the caller needs from a response
+ *     and skip everything else without materializing it;</li>
+ *     <li>{@link #readJson} builds an {@code org.json} tree from bytes, without the intermediate String, for the
+ *     callers that really need the whole document;</li>
+ *     <li>{@link #forEachElement} hands the elements of a large array to the caller one by one, so a long SDP
+ *     list never has to be held in memory.</li>
+ * </ul>
+ */
+public class JsonStreams {
+
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    // Thread-safe and reused; closing a parser or generator must not close the HTTP stream under it
+    private static final JsonFactory factory = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    /**
+     * Writes a JSON document with a generator.
+     */
+    public interface BodyWriter {
+
+        /**
+         * Writes the document.
+         *
+         * @param json The generator to write with.
+         * @throws IOException If the document cannot be written.
+         */
+        void write(JsonGenerator json) throws IOException;
+    }
+
+    /**
+     * The fields read from a chat completion, or from one chunk of a streamed completion.
+     */
+    public static class ChatCompletion {
+        /** The generated text of the first choice (or the new fragment of a chunk), or null. */
+        public String content;
+        /** The finish_reason of the first choice, or null. */
+        public String finishReason;
+        /** The token usage, or null. */
+        public JSONObject usage;
+    }
+
+    /**
+     * Creates a JSON request body written directly into the connection when the request is sent. The writer is
+     * called again whenever the request is sent again (retries, hedged attempts), so it must be repeatable.
+     *
+     * @param writer Writes the document.
+     * @return       The request body.
+     */
+    public static RequestBody requestBody(BodyWriter writer) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return JSON;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                try (JsonGenerator json = factory.createGenerator(sink.outputStream(), JsonEncoding.UTF8)) {
+                    writer.write(json);
+                }
+            }
+        };
+    }
+
+    /**
+     * Reads the content, finish_reason and usage of a chat completion (the "message" of the first choice) or of a
+     * streamed chunk (its "delta"). Every other field is skipped.
+     *
+     * @param in The JSON document.
+     * @return   The fields found.
+     * @throws IOException If the document cannot be read or is not valid JSON.
+     */
+    public static ChatCompletion readChatCompletion(InputStream in) throws IOException {
+        try (JsonParser parser = factory.createParser(in)) {
+            return readChatCompletion(parser);
+        }
+    }
+
+    /**
+     * Same as {@link #readChatCompletion(InputStream)}, for a document already in memory (a server-sent event).
+     *
+     * @param json The JSON document.
+     * @return     The fields found.
+     * @throws IOException If the document is not valid JSON.
+     */
+    public static ChatCompletion readChatCompletion(String json) throws IOException {
+        try (JsonParser parser = factory.createParser(json)) {
+            return readChatCompletion(parser);
+        }
+    }
+
+    /**
+     * Reads the given scalar fields of the top level of a JSON object; nested values and other fields are skipped.
+     *
+     * @param in     The JSON document.
+     * @param fields The names of the fields to read.
+     * @return       A JSONObject with the fields found.
+     * @throws IOException If the document cannot be read or is not a JSON object.
+     */
+    public static JSONObject readFields(InputStream in, String... fields) throws IOException {
+        Set<String> wanted = new HashSet<>(Arrays.asList(fields));
+        JSONObject result = new JSONObject();
+        try (JsonParser parser = factory.createParser(in)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (wanted.contains(name) && value.isScalarValue()) {
+                    result.put(name, readValue(parser, value));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads a whole JSON document into an {@code org.json} tree.
+     *
+     * @param in The JSON document.
+     * @return   A JSONObject or a JSONArray (or a scalar for a scalar document).
+     * @throws IOException If the document cannot be read or is not valid JSON.
+     */
+    public static Object readJson(InputStream in) throws IOException {
+        try (JsonParser parser = factory.createParser(in)) {
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                throw new IOException("Empty JSON document");
+            }
+            return readValue(parser, token);
+        }
+    }
+
+    /**
+     * Streams the elements of an array field at the top level of a JSON object. Each element is built as a small
+     * tree and passed to the consumer before the next one is read; the other top-level fields are returned.
+     *
+     * @param in         The JSON document.
+     * @param arrayField The name of the array to stream (e.g. "requests").
+     * @param consumer   Receives each element of the array, in order.
+     * @return           A JSONObject with every top-level field except the streamed array.
+     * @throws IOException If the document cannot be read or is not a JSON object.
+     */
+    public static JSONObject forEachElement(InputStream in, String arrayField, Consumer<Object> consumer) throws IOException {
+        JSONObject rest = new JSONObject();
+        try (JsonParser parser = factory.createParser(in)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (name.equals(arrayField) && value == JsonToken.START_ARRAY) {
+                    JsonToken element;
+                    while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+                        consumer.accept(readValue(parser, element));
+                    }
+                } else {
+                    rest.put(name, readValue(parser, value));
+                }
+            }
+        }
+        return rest;
+    }
+
+    private static ChatCompletion readChatCompletion(JsonParser parser) throws IOException {
+        ChatCompletion completion = new ChatCompletion();
+        expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (name.equals("choices") && value == JsonToken.START_ARRAY) {
+                readChoices(parser, completion);
+            } else if (name.equals("usage") && value == JsonToken.START_OBJECT) {
+                completion.usage = (JSONObject) readValue(parser, value);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return completion;
+    }
+
+    /**
+     * Reads the first choice of the "choices" array and skips the others.
+     */
+    private static void readChoices(JsonParser parser, ChatCompletion completion) throws IOException {
+        boolean first = true;
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (!first || token != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            first = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ((name.equals("message") || name.equals("delta")) && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = parser.getCurrentName();
+                        JsonToken fieldValue = parser.nextToken();
+                        if (field.equals("content") && fieldValue == JsonToken.VALUE_STRING) {
+                            completion.content = parser.getText();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else if (name.equals("finish_reason") && value == JsonToken.VALUE_STRING) {
+                    completion.finishReason = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the {@code org.json} value starting at the current token.
+     */
+    private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case START_OBJECT:
+                JSONObject object = new JSONObject();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    object.put(name, readValue(parser, parser.nextToken()));
+                }
+                return object;
+            case START_ARRAY:
+                JSONArray array = new JSONArray();
+                JsonToken element;
+                while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    array.put(readValue(parser, element));
+                }
+                return array;
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return JSONObject.NULL;
+            default:
+                throw new IOException("Unexpected JSON token " + token + " at " + parser.getCurrentLocation());
+        }
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Expected " + expected + " but found " + actual + " at " + parser.getCurrentLocation());
+        }
+    }
+}
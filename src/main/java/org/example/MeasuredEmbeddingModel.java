@@ -0,0 +1,52 @@
+package org.example;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.output.TokenUsage;
+
+import java.util.List;
+
+/**
+ * This class wraps an embedding model so that its calls are measured in the "openai.embed" stage of
+ * {@link Metrics}, with the input tokens reported by the model. It is placed under the
+ * {@link CachingEmbeddingModel}, so only the calls that really reach OpenAI are measured.
+ */
+public class MeasuredEmbeddingModel implements EmbeddingModel {
+
+    private static final Metrics.Stage stage = Metrics.stage("openai.embed");
+
+    private final EmbeddingModel delegate;
+
+    /**
+     * Creates a measured wrapper around an embedding model.
+     *
+     * @param delegate The model whose calls are measured.
+     */
+    public MeasuredEmbeddingModel(EmbeddingModel delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+        long startedAt = stage.start();
+        String outcome = "exception";
+        try {
+            Response<List<Embedding>> response = delegate.embedAll(textSegments);
+            TokenUsage usage = response.tokenUsage();
+            if (usage != null && usage.inputTokenCount() != null) {
+                stage.addTokens(usage.inputTokenCount(), -1);
+            }
+            outcome = "ok";
+            return response;
+        } finally {
+            stage.end(startedAt, outcome);
+        }
+    }
+
+    @Override
+    public int dimension() {
+        return delegate.dimension();
+    }
+}
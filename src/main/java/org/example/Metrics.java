@@ -0,0 +1,486 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * This class measures the stages a request goes through (OAuth tokens, scraping, embeddings, the vector store and
+ * the LLM), so that the time of a slow request can be attributed to one of them:
+ * <ul>
+ *     <li>"zoho.generateTkn" and "zoho.refreshAccessToken" ({@link TokenService});</li>
+ *     <li>"scraper.fetchContent" ({@link WebScraperService});</li>
+ *     <li>"openai.embed" (the OpenAI embedding calls, cache misses only) and "pinecone.search" (the searches of
+ *     the embedding stores);</li>
+ *     <li>"openai.search", "openai.stream" and "openai.generate" ({@link ChatGPTQueryService}).</li>
+ * </ul>
+ * Every stage records a {@link LatencyHistogram}, the number of calls by outcome ("ok", HTTP status codes,
+ * "empty" for a search without matches, "error", "exception"), the calls in flight, and the prompt and completion tokens reported in the "usage" of the
+ * OpenAI answers. The statistics of the caches, coalesced calls, circuit breakers and rate limits are collected
+ * with them as components.
+ *
+ * Everything is exposed:
+ * <ul>
+ *     <li>through JMX, as one "org.example:type=Stage,name=..." MXBean per stage and "org.example:type=Metrics"
+ *     for the components (disabled with {@code metrics.jmx.enabled=false});</li>
+ *     <li>as Prometheus text on {@code http://host:<metrics.prometheus.port>/metrics} when that port is set;</li>
+ *     <li>to the {@link MetricsSink}s, e.g. the {@link Slf4jMetricsSink} registered by {@code metrics.log.enabled};</li>
+ *     <li>as JSON with {@link #getStats()}.</li>
+ * </ul>
+ */
+public class Metrics {
+
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+
+    private static final boolean JMX_ENABLED = Boolean.parseBoolean(System.getProperty("metrics.jmx.enabled", "true"));
+
+    private static final Map<String, Stage> stages = new ConcurrentHashMap<>();
+    private static final Map<String, Supplier<JSONObject>> components = new ConcurrentHashMap<>();
+    private static final List<MetricsSink> sinks = new CopyOnWriteArrayList<>();
+
+    static {
+        components.put("responseCache", ResponseCache::getStats);
+        components.put("singleFlight", SingleFlight::getAllStats);
+        components.put("resilience", ResilientExecutor::getAllStats);
+        components.put("rateLimits", RateController::getAllStats);
+        components.put("embeddingCache", () -> {
+            EmbeddingCache cache = EmbeddingCache.peekDefault();
+            return cache != null ? cache.getStats() : new JSONObject();
+        });
+        components.put("pageCache", () -> {
+            PageCache cache = PageCache.peekDefault();
+            return cache != null ? cache.getStats() : new JSONObject();
+        });
+        components.put("sdpCache", SdpResponseCache::getStats);
+
+        if (Boolean.getBoolean("metrics.log.enabled")) {
+            sinks.add(new Slf4jMetricsSink(Long.getLong("metrics.log.slowMs", 5000L)));
+        }
+        if (JMX_ENABLED) {
+            register("org.example:type=Metrics", new Components());
+        }
+        Integer port = Integer.getInteger("metrics.prometheus.port");
+        if (port != null && port > 0) {
+            startPrometheusEndpoint(port);
+        }
+    }
+
+    /**
+     * The JMX view of a stage.
+     */
+    public interface StageMXBean {
+        long getCount();
+        long getInFlight();
+        double getMeanMillis();
+        double getP50Millis();
+        double getP90Millis();
+        double getP99Millis();
+        double getP999Millis();
+        double getMaxMillis();
+        long getPromptTokens();
+        long getCompletionTokens();
+        Map<String, Long> getOutcomes();
+    }
+
+    /**
+     * The JMX view of the components: every numeric statistic, named by its path (e.g. "responseCache.exact.hits").
+     */
+    public interface ComponentsMXBean {
+        Map<String, Double> getValues();
+        String getStatsJson();
+    }
+
+    /**
+     * The measurements of one stage. Measure a call with {@link #time} or {@link #timeAsync}, or with
+     * {@link #start()} and {@link #end} when the call does not fit in a lambda.
+     */
+    public static class Stage implements StageMXBean {
+        private final String name;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder inFlight = new LongAdder();
+        private final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+        private final LongAdder promptTokens = new LongAdder();
+        private final LongAdder completionTokens = new LongAdder();
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Marks the start of a call.
+         *
+         * @return The start time, to pass to {@link #end}.
+         */
+        public long start() {
+            inFlight.increment();
+            return System.nanoTime();
+        }
+
+        /**
+         * Marks the end of a call started with {@link #start()}.
+         *
+         * @param startedAt The value returned by {@link #start()}.
+         * @param outcome   How the call ended: "ok", "empty", an HTTP status code, "error" or "exception".
+         */
+        public void end(long startedAt, String outcome) {
+            long nanos = System.nanoTime() - startedAt;
+            inFlight.decrement();
+            latency.recordNanos(nanos);
+            outcomes.computeIfAbsent(outcome, k -> new LongAdder()).increment();
+            for (MetricsSink sink : sinks) {
+                sink.record(name, nanos, outcome);
+            }
+        }
+
+        /**
+         * Adds the tokens of an LLM or embedding call.
+         *
+         * @param prompt     The prompt (input) tokens, or a negative number if unknown.
+         * @param completion The completion (output) tokens, or a negative number if unknown.
+         */
+        public void addTokens(long prompt, long completion) {
+            if (prompt > 0) {
+                promptTokens.add(prompt);
+            }
+            if (completion > 0) {
+                completionTokens.add(completion);
+            }
+        }
+
+        /**
+         * Measures a blocking call.
+         *
+         * @param call    The call.
+         * @param outcome Names the outcome of a result.
+         * @param <T>     The type of the result.
+         * @return        The result of the call.
+         * @throws Exception The exception thrown by the call, whose outcome is "exception".
+         */
+        public <T> T time(Callable<T> call, Function<? super T, String> outcome) throws Exception {
+            long startedAt = start();
+            T result;
+            try {
+                result = call.call();
+            } catch (Exception | Error e) {
+                end(startedAt, "exception");
+                throw e;
+            }
+            end(startedAt, outcomeOf(outcome, result));
+            return result;
+        }
+
+        /**
+         * Measures an asynchronous call, from now until its future completes.
+         *
+         * @param call    Starts the call.
+         * @param outcome Names the outcome of a result.
+         * @param <T>     The type of the result.
+         * @return        The future of the call.
+         */
+        public <T> CompletableFuture<T> timeAsync(Supplier<CompletableFuture<T>> call, Function<? super T, String> outcome) {
+            long startedAt = start();
+            CompletableFuture<T> future;
+            try {
+                future = call.get();
+            } catch (RuntimeException | Error e) {
+                end(startedAt, "exception");
+                throw e;
+            }
+            future.whenComplete((result, error) -> end(startedAt, error != null ? "exception" : outcomeOf(outcome, result)));
+            return future;
+        }
+
+        @Override
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        @Override
+        public long getInFlight() {
+            return inFlight.sum();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            return latency.getMeanMillis();
+        }
+
+        @Override
+        public double getP50Millis() {
+            return latency.getPercentileMillis(0.5);
+        }
+
+        @Override
+        public double getP90Millis() {
+            return latency.getPercentileMillis(0.9);
+        }
+
+        @Override
+        public double getP99Millis() {
+            return latency.getPercentileMillis(0.99);
+        }
+
+        @Override
+        public double getP999Millis() {
+            return latency.getPercentileMillis(0.999);
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return latency.getMaxMillis();
+        }
+
+        @Override
+        public long getPromptTokens() {
+            return promptTokens.sum();
+        }
+
+        @Override
+        public long getCompletionTokens() {
+            return completionTokens.sum();
+        }
+
+        @Override
+        public Map<String, Long> getOutcomes() {
+            Map<String, Long> counts = new TreeMap<>();
+            outcomes.forEach((outcome, count) -> counts.put(outcome, count.sum()));
+            return counts;
+        }
+
+        /**
+         * Returns the measurements of the stage.
+         *
+         * @return A JSONObject with the count, in-flight calls, latency percentiles, outcomes and tokens.
+         */
+        public JSONObject getStats() {
+            JSONObject stats = new JSONObject();
+            stats.put("count", getCount());
+            stats.put("inFlight", getInFlight());
+            stats.put("meanMillis", getMeanMillis());
+            stats.put("p50Millis", getP50Millis());
+            stats.put("p90Millis", getP90Millis());
+            stats.put("p99Millis", getP99Millis());
+            stats.put("p999Millis", getP999Millis());
+            stats.put("maxMillis", getMaxMillis());
+            stats.put("outcomes", new JSONObject(getOutcomes()));
+            stats.put("promptTokens", getPromptTokens());
+            stats.put("completionTokens", getCompletionTokens());
+            return stats;
+        }
+
+        private static <T> String outcomeOf(Function<? super T, String> outcome, T result) {
+            try {
+                return outcome.apply(result);
+            } catch (RuntimeException e) {
+                return "unknown";
+            }
+        }
+    }
+
+    private static class Components implements ComponentsMXBean {
+        @Override
+        public Map<String, Double> getValues() {
+            Map<String, Double> values = new TreeMap<>();
+            for (Map.Entry<String, Supplier<JSONObject>> component : components.entrySet()) {
+                flatten(component.getKey(), component.getValue().get(), values);
+            }
+            return values;
+        }
+
+        @Override
+        public String getStatsJson() {
+            return getStats().toString();
+        }
+    }
+
+    /**
+     * Returns the measurements of a stage, creating them on first use.
+     *
+     * @param name The name of the stage (e.g. "openai.search").
+     * @return     The stage.
+     */
+    public static Stage stage(String name) {
+        Stage stage = stages.get(name);
+        if (stage == null) {
+            Stage created = new Stage(name);
+            stage = stages.putIfAbsent(name, created);
+            if (stage == null) {
+                stage = created;
+                if (JMX_ENABLED) {
+                    register("org.example:type=Stage,name=" + name, created);
+                }
+            }
+        }
+        return stage;
+    }
+
+    /**
+     * Adds the statistics of a component (a cache, a pool, ...) to the ones collected with the stages.
+     *
+     * @param name  The name of the component, the prefix of its values.
+     * @param stats Returns the current statistics of the component.
+     */
+    public static void registerComponent(String name, Supplier<JSONObject> stats) {
+        components.put(name, stats);
+    }
+
+    /**
+     * Registers a sink that receives every measured call.
+     *
+     * @param sink The sink.
+     */
+    public static void addSink(MetricsSink sink) {
+        sinks.add(sink);
+    }
+
+    /**
+     * Removes a sink registered with {@link #addSink}.
+     *
+     * @param sink The sink.
+     */
+    public static void removeSink(MetricsSink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * Returns the measurements of every stage and the statistics of every component.
+     *
+     * @return A JSONObject with a "stages" object and a "components" object, both keyed by name.
+     */
+    public static JSONObject getStats() {
+        JSONObject stageStats = new JSONObject();
+        stages.forEach((name, stage) -> stageStats.put(name, stage.getStats()));
+        JSONObject componentStats = new JSONObject();
+        components.forEach((name, stats) -> componentStats.put(name, stats.get()));
+        JSONObject all = new JSONObject();
+        all.put("stages", stageStats);
+        all.put("components", componentStats);
+        return all;
+    }
+
+    /**
+     * Returns the measurements in the Prometheus text exposition format.
+     *
+     * @return The text served on {@code /metrics}.
+     */
+    public static String toPrometheusText() {
+        Map<String, Stage> sorted = new TreeMap<>(stages);
+        StringBuilder text = new StringBuilder();
+
+        text.append("# HELP rag_stage_duration_seconds Duration of the calls of each stage.\n");
+        text.append("# TYPE rag_stage_duration_seconds summary\n");
+        for (Map.Entry<String, Stage> entry : sorted.entrySet()) {
+            String stage = label(entry.getKey());
+            LatencyHistogram latency = entry.getValue().latency;
+            for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+                text.append("rag_stage_duration_seconds{stage=\"").append(stage).append("\",quantile=\"").append(quantile)
+                        .append("\"} ").append(latency.getPercentileMillis(quantile) / 1000).append('\n');
+            }
+            text.append("rag_stage_duration_seconds_sum{stage=\"").append(stage).append("\"} ").append(latency.getSumSeconds()).append('\n');
+            text.append("rag_stage_duration_seconds_count{stage=\"").append(stage).append("\"} ").append(latency.getCount()).append('\n');
+        }
+
+        text.append("# HELP rag_stage_calls_total Calls of each stage by outcome.\n");
+        text.append("# TYPE rag_stage_calls_total counter\n");
+        for (Map.Entry<String, Stage> entry : sorted.entrySet()) {
+            for (Map.Entry<String, Long> outcome : entry.getValue().getOutcomes().entrySet()) {
+                text.append("rag_stage_calls_total{stage=\"").append(label(entry.getKey())).append("\",outcome=\"")
+                        .append(label(outcome.getKey())).append("\"} ").append(outcome.getValue()).append('\n');
+            }
+        }
+
+        text.append("# HELP rag_stage_in_flight Calls of each stage running now.\n");
+        text.append("# TYPE rag_stage_in_flight gauge\n");
+        for (Map.Entry<String, Stage> entry : sorted.entrySet()) {
+            text.append("rag_stage_in_flight{stage=\"").append(label(entry.getKey())).append("\"} ")
+                    .append(entry.getValue().getInFlight()).append('\n');
+        }
+
+        text.append("# HELP rag_stage_tokens_total Tokens reported by the OpenAI answers of each stage.\n");
+        text.append("# TYPE rag_stage_tokens_total counter\n");
+        for (Map.Entry<String, Stage> entry : sorted.entrySet()) {
+            String stage = label(entry.getKey());
+            text.append("rag_stage_tokens_total{stage=\"").append(stage).append("\",type=\"prompt\"} ")
+                    .append(entry.getValue().getPromptTokens()).append('\n');
+            text.append("rag_stage_tokens_total{stage=\"").append(stage).append("\",type=\"completion\"} ")
+                    .append(entry.getValue().getCompletionTokens()).append('\n');
+        }
+
+        text.append("# HELP rag_component Statistics of the caches, coalescing, resilience and rate limits.\n");
+        text.append("# TYPE rag_component gauge\n");
+        for (Map.Entry<String, Double> value : new Components().getValues().entrySet()) {
+            text.append("rag_component{name=\"").append(label(value.getKey())).append("\"} ").append(value.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Collects the numeric values of a statistics tree, named by their path.
+     */
+    private static void flatten(String prefix, JSONObject stats, Map<String, Double> values) {
+        for (String key : stats.keySet()) {
+            Object value = stats.get(key);
+            if (value instanceof JSONObject) {
+                flatten(prefix + "." + key, (JSONObject) value, values);
+            } else if (value instanceof Number) {
+                values.put(prefix + "." + key, ((Number) value).doubleValue());
+            } else if (value instanceof Boolean) {
+                values.put(prefix + "." + key, (Boolean) value ? 1.0 : 0.0);
+            }
+        }
+    }
+
+    private static String label(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static void register(String name, Object mbean) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+        } catch (Exception e) {
+            // Already registered (e.g. by another class loader) or JMX unavailable; the other outputs still work
+        }
+    }
+
+    private static void startPrometheusEndpoint(int port) {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = toPrometheusText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            // The dispatcher thread inherits the daemon flag of the thread that starts the server,
+            // so the endpoint does not keep the JVM alive
+            Thread starter = new Thread(server::start, "metrics-prometheus-start");
+            starter.setDaemon(true);
+            starter.start();
+            starter.join();
+        } catch (IOException e) {
+            log.warn("Prometheus endpoint disabled: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.example;
+
+/**
+ * Receives every call measured by {@link Metrics}, for example to log it or forward it to another monitoring
+ * system. Register sinks with {@link Metrics#addSink}; they are called on the thread that ends the call, so they
+ * must be fast and must not throw.
+ */
+public interface MetricsSink {
+
+    /**
+     * Called when a measured call ends.
+     *
+     * @param stage         The stage of the call (e.g. "openai.search").
+     * @param durationNanos How long the call took, in nanoseconds.
+     * @param outcome       How it ended: "ok", "empty", an HTTP status code such as "429", "error" or "exception".
+     */
+    void record(String stage, long durationNanos, String outcome);
+}
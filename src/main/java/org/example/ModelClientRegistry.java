@@ -0,0 +1,264 @@
+package org.example;
+
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.openai.OpenAiChatModel;
+import dev.langchain4j.model.openai.OpenAiEmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.pinecone.PineconeEmbeddingStore;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * This class keeps the Pinecone embedding stores and OpenAI model clients used by the services, so they are
+ * built once and reused across calls instead of being rebuilt (and the Pinecone index described again) on
+ * every query.
+ *
+ * Clients are built lazily on first use, or in advance with the warm-up methods. Each client is built only
+ * once even when many threads ask for it at the same time. Clients not used for a while
+ * ({@code llm.clients.idleTimeoutMs}, default 30 minutes) are evicted and rebuilt on the next use.
+ *
+ * Pinecone namespaces listed in {@code pinecone.local.namespaces} (comma-separated {@code index/namespace}
+ * pairs, or {@code *}) are wrapped in a {@link ReadThroughEmbeddingStore}, so hot namespaces are answered from a
+ * local HNSW index when the best local match scores at least {@code pinecone.local.hitScore} (default 0.9).
+ * If {@code pinecone.local.snapshotDir} is set, the local indexes are loaded from and saved to that directory.
+ *
+ * The OpenAI clients call {@code openai.baseUrl} (default "https://api.openai.com/v1"), which can point to a
+ * proxy or to a local stand-in server for benchmarks.
+ */
+public class ModelClientRegistry {
+
+    /** The base URL of the OpenAI API, without a trailing slash. */
+    static final String OPENAI_BASE_URL = System.getProperty("openai.baseUrl", "https://api.openai.com/v1").replaceAll("/+$", "");
+
+    private static final long idleTimeoutMillis = Long.getLong("llm.clients.idleTimeoutMs", 30 * 60_000L);
+    private static final boolean embeddingCacheEnabled =
+            Boolean.parseBoolean(System.getProperty("embedding.cache.enabled", "true"));
+
+    // Pinecone namespaces ("index/namespace", or "*" for all) served through a local HNSW read-through tier
+    private static final String localNamespaces = System.getProperty("pinecone.local.namespaces", "");
+    private static final double localHitScore = Double.parseDouble(System.getProperty("pinecone.local.hitScore", "0.9"));
+    private static final String localSnapshotDir = System.getProperty("pinecone.local.snapshotDir");
+
+    private static final Map<String, ClientEntry<?>> clients = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService evictionScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "model-client-eviction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        long period = Math.max(1000L, idleTimeoutMillis / 4);
+        evictionScheduler.scheduleWithFixedDelay(ModelClientRegistry::evictIdle, period, period, TimeUnit.MILLISECONDS);
+        // Closing the clients on exit saves the snapshots of the local read-through indexes
+        Runtime.getRuntime().addShutdownHook(new Thread(ModelClientRegistry::shutdown, "model-client-shutdown"));
+    }
+
+    /**
+     * A registry entry. The client is built by the first caller of {@link #get()}; other callers wait for it.
+     * Pinned entries were registered explicitly and are never evicted for being idle.
+     */
+    private static class ClientEntry<T> {
+        private final Supplier<T> factory;
+        private final boolean pinned;
+        private volatile T client;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        ClientEntry(Supplier<T> factory, boolean pinned) {
+            this.factory = factory;
+            this.pinned = pinned;
+        }
+
+        T get() {
+            lastAccess = System.currentTimeMillis();
+            T result = client;
+            if (result == null) {
+                synchronized (this) {
+                    result = client;
+                    if (result == null) {
+                        result = factory.get();
+                        client = result;
+                    }
+                }
+            }
+            return result;
+        }
+
+        void close() {
+            T result = client;
+            if (result instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) result).close();
+                } catch (Exception e) {
+                    // The client is being discarded, nothing else can be done with it
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the Pinecone embedding store for the given index and namespace.
+     *
+     * @param apiKey    The API key for accessing Pinecone.
+     * @param index     The name of the Pinecone index.
+     * @param nameSpace The namespace within the index.
+     * @return          The shared embedding store.
+     */
+    public static EmbeddingStore<TextSegment> getEmbeddingStore(String apiKey, String index, String nameSpace) {
+        return get(key("pinecone", apiKey, index, nameSpace), () -> {
+            EmbeddingStore<TextSegment> store = new PineconeUpsertStore(PineconeEmbeddingStore.builder()
+                    .apiKey(apiKey)
+                    .index(index)
+                    .nameSpace(nameSpace)
+                    .build(), apiKey, index, nameSpace);
+            if (!isLocalNamespace(index, nameSpace)) {
+                return store;
+            }
+            Path snapshot = localSnapshotDir == null ? null
+                    : Paths.get(localSnapshotDir, (index + "_" + nameSpace).replaceAll("[^A-Za-z0-9._-]", "_") + ".hnsw");
+            return new ReadThroughEmbeddingStore(store, localHitScore, snapshot);
+        });
+    }
+
+    /**
+     * Registers the store to use for a Pinecone index and namespace, replacing the one the registry would build.
+     * This allows serving a namespace entirely from a local store, e.g. an {@link HnswEmbeddingStore} loaded from a
+     * snapshot, for offline use and tests.
+     *
+     * @param apiKey    The API key the services will use for the namespace.
+     * @param index     The name of the Pinecone index.
+     * @param nameSpace The namespace within the index.
+     * @param store     The store to return for the namespace.
+     */
+    public static void registerEmbeddingStore(String apiKey, String index, String nameSpace, EmbeddingStore<TextSegment> store) {
+        ClientEntry<EmbeddingStore<TextSegment>> entry = new ClientEntry<>(() -> store, true);
+        entry.get();
+        ClientEntry<?> previous = clients.put(key("pinecone", apiKey, index, nameSpace), entry);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Returns the OpenAI embedding model client for the given model. Its calls wait for the {@link RateController}
+     * of the API key. Unless {@code embedding.cache.enabled} is false, the client is wrapped in a
+     * {@link CachingEmbeddingModel} backed by the default {@link EmbeddingCache}.
+     *
+     * @param apiKey    The API key for accessing OpenAI.
+     * @param modelName The embedding model name (e.g. "text-embedding-3-small").
+     * @return          The shared embedding model.
+     */
+    public static EmbeddingModel getEmbeddingModel(String apiKey, String modelName) {
+        return get(key("openai-embedding", apiKey, modelName), () -> {
+            EmbeddingModel model = new RateLimitedEmbeddingModel(new MeasuredEmbeddingModel(OpenAiEmbeddingModel.builder()
+                    .baseUrl(OPENAI_BASE_URL)
+                    .apiKey(apiKey)
+                    .modelName(modelName)
+                    // Retries are made by ResilientExecutor, within its deadline and retry budget
+                    .maxRetries(1)
+                    .build()), modelName, RateController.forUpstream("openai", apiKey));
+            if (!embeddingCacheEnabled) {
+                return model;
+            }
+            return new CachingEmbeddingModel(model, modelName, EmbeddingCache.getDefault());
+        });
+    }
+
+    /**
+     * Returns the OpenAI chat model client for the given model. The temperature is part of the key because
+     * langchain4j fixes it when the client is built.
+     *
+     * @param apiKey      The API key for accessing OpenAI.
+     * @param modelName   The chat model name (e.g. "gpt-4o").
+     * @param temperature The sampling temperature.
+     * @return            The shared chat model.
+     */
+    public static ChatLanguageModel getChatModel(String apiKey, String modelName, Double temperature) {
+        return get(key("openai-chat", apiKey, modelName, String.valueOf(temperature)), () -> OpenAiChatModel.builder()
+                .baseUrl(OPENAI_BASE_URL)
+                .apiKey(apiKey)
+                .modelName(modelName)
+                .temperature(temperature)
+                .maxRetries(1)
+                .build());
+    }
+
+    /**
+     * Builds the Pinecone embedding store in advance, so the first query does not pay for it.
+     *
+     * @param apiKey    The API key for accessing Pinecone.
+     * @param index     The name of the Pinecone index.
+     * @param nameSpace The namespace within the index.
+     */
+    public static void warmUpEmbeddingStore(String apiKey, String index, String nameSpace) {
+        getEmbeddingStore(apiKey, index, nameSpace);
+    }
+
+    /**
+     * Builds the OpenAI embedding and chat clients in advance, so the first query does not pay for them.
+     *
+     * @param apiKey             The API key for accessing OpenAI.
+     * @param embeddingModelName The embedding model name.
+     * @param chatModelName      The chat model name.
+     * @param temperature        The sampling temperature of the chat model.
+     */
+    public static void warmUpModels(String apiKey, String embeddingModelName, String chatModelName, Double temperature) {
+        getEmbeddingModel(apiKey, embeddingModelName);
+        getChatModel(apiKey, chatModelName, temperature);
+    }
+
+    /**
+     * Removes every client from the registry and closes those that hold resources.
+     * Clients requested afterwards are built again.
+     */
+    public static void shutdown() {
+        Iterator<ClientEntry<?>> entries = clients.values().iterator();
+        while (entries.hasNext()) {
+            ClientEntry<?> entry = entries.next();
+            entries.remove();
+            entry.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T get(String key, Supplier<T> factory) {
+        return ((ClientEntry<T>) clients.computeIfAbsent(key, k -> new ClientEntry<>(factory, false))).get();
+    }
+
+    private static void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ClientEntry<?>> entry : clients.entrySet()) {
+            if (!entry.getValue().pinned && now - entry.getValue().lastAccess > idleTimeoutMillis && clients.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().close();
+            }
+        }
+    }
+
+    private static boolean isLocalNamespace(String index, String nameSpace) {
+        for (String entry : localNamespaces.split(",")) {
+            String trimmed = entry.trim();
+            if (trimmed.equals("*") || trimmed.equals(index + "/" + nameSpace)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String key(String type, String... parts) {
+        StringBuilder key = new StringBuilder(type);
+        for (String part : parts) {
+            key.append('\u0000').append(part);
+        }
+        return key.toString();
+    }
+}
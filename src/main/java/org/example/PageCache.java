@@ -0,0 +1,409 @@
+package org.example;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class caches scraped pages on disk, so {@link WebScraperService#fetchContent} does not download and parse
+ * a page again while it is fresh, and only revalidates it (If-None-Match / If-Modified-Since) once it is stale.
+ *
+ * Pages are appended to a single log file. Each record holds the URL, the validators (ETag and Last-Modified),
+ * the freshness deadline and the extracted page as gzip-compressed JSON. An in-memory index maps every URL to its
+ * latest record, and is rebuilt by scanning the log when it is opened; a record cut short by a crash is dropped.
+ * When the log grows over its maximum size, it is rewritten with the latest record of each URL, the most recently
+ * fetched pages first, until it is half full.
+ *
+ * The default instance ({@link #getDefault()}) stores its log in {@code scraper.cache.dir}
+ * (default {@code ~/.chatgptconnection/pages}) and is limited to {@code scraper.cache.maxBytes} (default 256 MB).
+ */
+public class PageCache implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(PageCache.class);
+
+    private static final long MAGIC = 0x5047434C4F473031L; // "PGCLOG01"
+    private static final int HEADER_SIZE = 8;
+    private static final String LOG_FILE = "pages.log";
+
+    private static volatile PageCache defaultCache;
+    private static volatile boolean defaultUnavailable;
+
+    private final Path file;
+    private final long maxBytes;
+    private final Map<String, Entry> index = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private FileChannel channel;
+    private long size;
+
+    private final LongAdder freshHits = new LongAdder();
+    private final LongAdder revalidatedHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * The index entry of a cached page: where its latest record is and how it can be revalidated.
+     */
+    public static class Entry {
+        public final String url;
+        public final String etag;
+        public final String lastModified;
+        public final long fetchedAt;
+        volatile long freshUntil;
+        final long offset;
+        final int length;
+
+        Entry(String url, String etag, String lastModified, long fetchedAt, long freshUntil, long offset, int length) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.fetchedAt = fetchedAt;
+            this.freshUntil = freshUntil;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Indicates whether the page can be used without revalidating it with the server.
+         *
+         * @param now The current time in milliseconds.
+         * @return    True if the page is still fresh, otherwise false.
+         */
+        public boolean isFresh(long now) {
+            return now < freshUntil;
+        }
+    }
+
+    /**
+     * Opens or creates the page log in the given directory.
+     *
+     * @param directory The directory of the log file; it is created if needed.
+     * @param maxBytes  The size of the log above which it is compacted.
+     * @throws IOException If the log cannot be opened or read.
+     */
+    public PageCache(Path directory, long maxBytes) throws IOException {
+        this.file = directory.resolve(LOG_FILE);
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        load();
+    }
+
+    /**
+     * Returns the cache shared by the services, configured through system properties, or null if it is disabled
+     * ({@code scraper.cache.enabled=false}) or its log cannot be opened.
+     *
+     * @return The default page cache, or null.
+     */
+    public static PageCache getDefault() {
+        PageCache cache = defaultCache;
+        if (cache == null && !defaultUnavailable) {
+            synchronized (PageCache.class) {
+                cache = defaultCache;
+                if (cache == null && !defaultUnavailable) {
+                    if (!Boolean.parseBoolean(System.getProperty("scraper.cache.enabled", "true"))) {
+                        defaultUnavailable = true;
+                        return null;
+                    }
+                    Path dir = Paths.get(System.getProperty("scraper.cache.dir",
+                            Paths.get(System.getProperty("user.home"), ".chatgptconnection", "pages").toString()));
+                    try {
+                        cache = new PageCache(dir, Long.getLong("scraper.cache.maxBytes", 256L * 1024 * 1024));
+                        defaultCache = cache;
+                    } catch (IOException e) {
+                        log.warn("Page cache disabled: {}", e.getMessage());
+                        defaultUnavailable = true;
+                    }
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the default cache if it has been created, without creating it.
+     *
+     * @return The default page cache, or null.
+     */
+    static PageCache peekDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Looks up the cached version of a page.
+     *
+     * @param url The URL of the page.
+     * @return    The index entry of the page, or null if it is not cached.
+     */
+    public Entry lookup(String url) {
+        lock.readLock().lock();
+        try {
+            return index.get(url);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the cached page of an entry.
+     *
+     * @param entry       The entry returned by {@link #lookup}.
+     * @param revalidated True if the server just confirmed the page is unchanged, false for a fresh hit.
+     * @return            The page, as returned by {@link WebScraperService#fetchContent}, or null if the entry
+     *                    was replaced in the meantime.
+     * @throws IOException If the log cannot be read.
+     */
+    public JSONObject read(Entry entry, boolean revalidated) throws IOException {
+        byte[] record = new byte[entry.length];
+        lock.readLock().lock();
+        try {
+            if (index.get(entry.url) != entry) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            long position = entry.offset;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of the page log");
+                }
+                position += read;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        readHeader(in, 0, 0);
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(in), StandardCharsets.UTF_8)) {
+            StringBuilder json = new StringBuilder();
+            char[] chars = new char[8192];
+            int read;
+            while ((read = reader.read(chars)) != -1) {
+                json.append(chars, 0, read);
+            }
+            (revalidated ? revalidatedHits : freshHits).increment();
+            return new JSONObject(json.toString());
+        }
+    }
+
+    /**
+     * Extends the freshness of a cached page after the server confirmed it is unchanged (HTTP 304).
+     * The new deadline is kept in memory only; after a restart the page is revalidated again.
+     *
+     * @param entry      The entry returned by {@link #lookup}.
+     * @param freshUntil The new freshness deadline in milliseconds.
+     */
+    public void refresh(Entry entry, long freshUntil) {
+        entry.freshUntil = freshUntil;
+    }
+
+    /**
+     * Records that a page was not in the cache or had to be downloaded again.
+     */
+    public void recordMiss() {
+        misses.increment();
+    }
+
+    /**
+     * Appends a page to the log and makes it the cached version of its URL.
+     *
+     * @param url          The URL of the page.
+     * @param etag         The ETag header of the response, or null.
+     * @param lastModified The Last-Modified header of the response, or null.
+     * @param freshUntil   The time in milliseconds until which the page can be used without revalidating it.
+     * @param page         The page, as returned by {@link WebScraperService#fetchContent}.
+     * @throws IOException If the log cannot be written.
+     */
+    public void put(String url, String etag, String lastModified, long freshUntil, JSONObject page) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        long fetchedAt = System.currentTimeMillis();
+        out.writeInt(0); // record length, set below
+        out.writeUTF(url);
+        out.writeUTF(etag != null ? etag : "");
+        out.writeUTF(lastModified != null ? lastModified : "");
+        out.writeLong(fetchedAt);
+        out.writeLong(freshUntil);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(page.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(0, record.length - 4);
+
+        lock.writeLock().lock();
+        try {
+            if (size + record.length > maxBytes) {
+                compact(maxBytes / 2 - record.length);
+            }
+            write(record, size);
+            index.put(url, new Entry(url, emptyToNull(etag), emptyToNull(lastModified), fetchedAt, freshUntil,
+                    size + 4, record.length - 4));
+            size += record.length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the hit and miss counters and the size of the cache.
+     *
+     * @return A JSONObject with the number of fresh hits, revalidated hits, misses, pages and bytes.
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("freshHits", freshHits.sum());
+        stats.put("revalidatedHits", revalidatedHits.sum());
+        stats.put("misses", misses.sum());
+        lock.readLock().lock();
+        try {
+            stats.put("pages", index.size());
+            stats.put("bytes", size);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return stats;
+    }
+
+    /**
+     * Closes the log file.
+     *
+     * @throws IOException If the file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuilds the index from the log. Records are read until the first incomplete or unreadable one, and the
+     * log is truncated there.
+     */
+    private void load() throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < HEADER_SIZE || readLong(0) != MAGIC) {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(0, MAGIC);
+            write(header.array(), 0);
+            size = HEADER_SIZE;
+            return;
+        }
+
+        long position = HEADER_SIZE;
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        while (position + 4 <= fileSize) {
+            lengthBuffer.clear();
+            channel.read(lengthBuffer, position);
+            int length = lengthBuffer.getInt(0);
+            if (length <= 0 || position + 4 + length > fileSize) {
+                break;
+            }
+            // Only the start of the record is needed to index it
+            ByteBuffer head = ByteBuffer.allocate(Math.min(length, 64 * 1024));
+            channel.read(head, position + 4);
+            Entry entry;
+            try {
+                entry = readHeader(new DataInputStream(new ByteArrayInputStream(head.array())), position + 4, length);
+            } catch (IOException e) {
+                break;
+            }
+            index.put(entry.url, entry);
+            position += 4 + length;
+        }
+        if (position < fileSize) {
+            channel.truncate(position);
+        }
+        size = position;
+    }
+
+    /**
+     * Rewrites the log with the latest record of each URL, most recently fetched first, up to a target size.
+     */
+    private void compact(long targetBytes) throws IOException {
+        List<Entry> entries = new ArrayList<>(index.values());
+        entries.sort((a, b) -> Long.compare(b.fetchedAt, a.fetchedAt));
+
+        Path compacted = file.resolveSibling(LOG_FILE + ".tmp");
+        Map<String, Entry> newIndex = new HashMap<>();
+        long position = HEADER_SIZE;
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(0, MAGIC);
+            out.write(header);
+            for (Entry entry : entries) {
+                if (position + 4 + entry.length > targetBytes) {
+                    break;
+                }
+                long copied = 0;
+                while (copied < 4L + entry.length) {
+                    copied += channel.transferTo(entry.offset - 4 + copied, 4L + entry.length - copied, out);
+                }
+                newIndex.put(entry.url, new Entry(entry.url, entry.etag, entry.lastModified, entry.fetchedAt,
+                        entry.freshUntil, position + 4, entry.length));
+                position += 4 + entry.length;
+            }
+        }
+
+        channel.close();
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index.clear();
+        index.putAll(newIndex);
+        size = position;
+    }
+
+    private static Entry readHeader(DataInputStream in, long offset, int length) throws IOException {
+        String url = in.readUTF();
+        String etag = in.readUTF();
+        String lastModified = in.readUTF();
+        long fetchedAt = in.readLong();
+        long freshUntil = in.readLong();
+        return new Entry(url, emptyToNull(etag), emptyToNull(lastModified), fetchedAt, freshUntil, offset, length);
+    }
+
+    private long readLong(long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        channel.read(buffer, position);
+        return buffer.getLong(0);
+    }
+
+    private void write(byte[] bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+}
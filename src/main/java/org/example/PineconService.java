@@ -1,13 +1,21 @@
 package org.example;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
-import dev.langchain4j.model.openai.OpenAiEmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
 import dev.langchain4j.store.embedding.EmbeddingStore;
-import dev.langchain4j.store.embedding.pinecone.PineconeEmbeddingStore;
 import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
 import dev.langchain4j.store.embedding.EmbeddingSearchResult;
-import dev.langchain4j.model.embedding.EmbeddingModel;
+import org.json.JSONArray;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
 import static dev.langchain4j.model.openai.OpenAiEmbeddingModelName.TEXT_EMBEDDING_3_SMALL;
 
 /**
@@ -17,7 +25,22 @@ import static dev.langchain4j.model.openai.OpenAiEmbeddingModelName.TEXT_EMBEDDI
  */
 public class PineconService {
 
-    private static EmbeddingStore<TextSegment> embeddingStore;
+    private static final Logger log = LoggerFactory.getLogger(PineconService.class);
+
+    private static final int TOP_K = Integer.getInteger("pinecone.topK", 4);
+    private static final double MIN_SCORE = Double.parseDouble(System.getProperty("pinecone.minScore", "0"));
+    private static final int CANDIDATE_FACTOR = Integer.getInteger("pinecone.candidateFactor", 3);
+    private static final double DUPLICATE_THRESHOLD = Double.parseDouble(System.getProperty("pinecone.duplicateThreshold", "0.95"));
+    private static final double MMR_LAMBDA = Double.parseDouble(System.getProperty("pinecone.mmrLambda", "0.7"));
+
+    // Hedging, retries and circuit breakers of the remote calls
+    private static final ResilientExecutor pineconeEndpoint = ResilientExecutor.forEndpoint("pinecone");
+    private static final ResilientExecutor embeddingEndpoint = ResilientExecutor.forEndpoint("openai.embedding");
+
+    private static final SingleFlight<Embedding> embeddingFlight = new SingleFlight<>("embedding", embedding -> embedding);
+
+    // Duration of the searches of the embedding stores, see Metrics
+    private static final Metrics.Stage searchStage = Metrics.stage("pinecone.search");
 
     /**
      * This method performs a semantic search using a prompt in the Pinecone vector database
@@ -45,35 +68,132 @@ public class PineconService {
 
 
     public static JSONObject searchVectorPinecone(String openAApikey,String apiKey, String index, String nameSpace, String prompt) throws Exception{
+        return searchVectorPinecone(apiKey, index, nameSpace, prompt, embedPrompt(openAApikey, prompt));
+    }
 
-        embeddingStore = PineconeEmbeddingStore.builder()
-                .apiKey(apiKey)         //"19199b7e-571d-4dd3-aee6-c3397cbc1b97"
-                .index(index)           //"knowledge-test2-llmhugginface"
-                .nameSpace(nameSpace)   //"dev.langchain4j.store.embedding.pinecone.PineconeServerlessIndexConfig@7d38aed2"
-                .build();
+    /**
+     * Performs the same search as {@link #searchVectorPinecone(String, String, String, String, String)} with an
+     * embedding of the prompt that the caller already computed (see {@link #embedPrompt}).
+     * The number of passages and their minimum score are read from {@code pinecone.topK} (default 4) and
+     * {@code pinecone.minScore} (default 0).
+     *
+     * @param apiKey         The API key required to access the Pinecone service.
+     * @param index          The name of the Pinecone index where the vector data is stored.
+     * @param nameSpace      The namespace within the Pinecone index.
+     * @param prompt         The input text, used to build the query with the retrieved knowledge.
+     * @param queryEmbedding The embedding of the prompt.
+     * @return               A {@link JSONObject} containing the search results or an error message.
+     * @throws Exception     If there are issues connecting to the Pinecone API or during the search.
+     */
+    public static JSONObject searchVectorPinecone(String apiKey, String index, String nameSpace, String prompt, Embedding queryEmbedding) throws Exception {
+        return searchVectorPinecone(apiKey, Collections.singletonList(index + "/" + nameSpace), prompt, queryEmbedding, TOP_K, MIN_SCORE);
+    }
 
-        EmbeddingModel embeddingModel = OpenAiEmbeddingModel.builder()
-                .apiKey(openAApikey)
-                .modelName(TEXT_EMBEDDING_3_SMALL)
-                .build();
+    /**
+     * Searches several Pinecone indexes and namespaces in parallel and builds the query with the best passages.
+     *
+     * Every namespace is asked for {@code topK * pinecone.candidateFactor} (default 3) matches above the minimum
+     * score. The sorted results are merged, passages nearly identical to a better one
+     * ({@code pinecone.duplicateThreshold}, default 0.95) are dropped, and {@code topK} passages are chosen with
+     * Maximal Marginal Relevance ({@code pinecone.mmrLambda}, default 0.7), so they are relevant without repeating
+     * each other. See {@link RetrievalRanker}.
+     *
+     * @param apiKey         The API key required to access the Pinecone service.
+     * @param targets        The namespaces to search, each as "index/namespace".
+     * @param prompt         The input text, used to build the query with the retrieved knowledge.
+     * @param queryEmbedding The embedding of the prompt.
+     * @param topK           The maximum number of passages to use.
+     * @param minScore       The minimum relevance score (0 to 1) of a passage.
+     * @return               A {@link JSONObject} with the "queryWithKnowledge" and the selected "matches"
+     *                       (text, score, source and id), or an error message if nothing was found.
+     * @throws Exception     If there are issues connecting to the Pinecone API or during the search.
+     */
+    public static JSONObject searchVectorPinecone(String apiKey, List<String> targets, String prompt, Embedding queryEmbedding,
+                                                  int topK, double minScore) throws Exception {
+        try {
+            return retrieveAsync(apiKey, targets, queryEmbedding, topK, minScore)
+                    .thenApply(matches -> buildQueryWithKnowledge(prompt, matches))
+                    .join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
 
-        Embedding queryEmbedding = embeddingModel.embed(prompt).content();
+    /**
+     * Searches the given namespaces in parallel and returns the ranked passages described in
+     * {@link #searchVectorPinecone(String, List, String, Embedding, int, double)}.
+     *
+     * @param apiKey         The API key required to access the Pinecone service.
+     * @param targets        The namespaces to search, each as "index/namespace".
+     * @param queryEmbedding The embedding of the query.
+     * @param topK           The maximum number of passages to return.
+     * @param minScore       The minimum relevance score (0 to 1) of a passage.
+     * @return               A future completed with the selected passages, most relevant first.
+     */
+    public static CompletableFuture<List<RetrievalRanker.SourcedMatch>> retrieveAsync(String apiKey, List<String> targets,
+                                                                                   Embedding queryEmbedding, int topK, double minScore) {
+        int candidates = topK * CANDIDATE_FACTOR;
         EmbeddingSearchRequest searchRequest = EmbeddingSearchRequest.builder()
                 .queryEmbedding(queryEmbedding)
-                .maxResults(1)
+                .maxResults(candidates)
+                .minScore(minScore)
                 .build();
-        EmbeddingSearchResult<TextSegment> searchResult = embeddingStore.search(searchRequest);
-        System.out.println("Resultados de la búsqueda: " + searchResult.matches());
+
+        List<CompletableFuture<List<RetrievalRanker.SourcedMatch>>> searches = new ArrayList<>(targets.size());
+        for (String target : targets) {
+            int slash = target.indexOf('/');
+            String index = slash >= 0 ? target.substring(0, slash) : target;
+            String nameSpace = slash >= 0 ? target.substring(slash + 1) : "";
+            searches.add(pineconeEndpoint.executeUnhedgedAsync(() -> AsyncTasks.supply(() -> {
+                EmbeddingStore<TextSegment> embeddingStore = ModelClientRegistry.getEmbeddingStore(apiKey, index, nameSpace);
+                List<RetrievalRanker.SourcedMatch> matches = new ArrayList<>();
+                EmbeddingSearchResult<TextSegment> result = searchStage.time(() -> embeddingStore.search(searchRequest), found -> found.matches().isEmpty() ? "empty" : "ok");
+                for (EmbeddingMatch<TextSegment> match : result.matches()) {
+                    matches.add(new RetrievalRanker.SourcedMatch(match, target));
+                }
+                matches.sort((x, y) -> Double.compare(y.score(), x.score()));
+                return matches;
+            }), matches -> false, matches -> 0L));
+        }
+
+        return CompletableFuture.allOf(searches.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<List<RetrievalRanker.SourcedMatch>> results = new ArrayList<>(searches.size());
+            for (CompletableFuture<List<RetrievalRanker.SourcedMatch>> search : searches) {
+                results.add(search.join());
+            }
+            List<RetrievalRanker.SourcedMatch> merged = RetrievalRanker.merge(results, candidates);
+            List<RetrievalRanker.SourcedMatch> unique = RetrievalRanker.removeNearDuplicates(merged, DUPLICATE_THRESHOLD);
+            return RetrievalRanker.maximalMarginalRelevance(unique, topK, MMR_LAMBDA);
+        });
+    }
+
+    private static JSONObject buildQueryWithKnowledge(String prompt, List<RetrievalRanker.SourcedMatch> matches) {
+        log.debug("Resultados de la búsqueda: {}", matches.size());
 
         JSONObject jsonResponse = new JSONObject();
 
         try {
-            if (!searchResult.matches().isEmpty()) {
-                String retrievedText = searchResult.matches().get(0).embedded().text();
+            if (!matches.isEmpty()) {
+                StringBuilder retrievedText = new StringBuilder();
+                JSONArray selected = new JSONArray();
+                for (RetrievalRanker.SourcedMatch match : matches) {
+                    if (retrievedText.length() > 0) {
+                        retrievedText.append("\n\n---\n\n");
+                    }
+                    retrievedText.append(match.text());
+
+                    JSONObject item = new JSONObject();
+                    item.put("text", match.text());
+                    item.put("score", match.score());
+                    item.put("source", match.source);
+                    item.put("id", match.match.embeddingId());
+                    selected.put(item);
+                }
                 String queryWithKnowledge = "Basado en la informacion de la base de datos, responde la pregunta: " + prompt +
                         "\n\n Informacion de la base de datos: \n" + retrievedText +
                         ". ¿Puedes responder el prompt solo con la informacion encontrada?";
                 jsonResponse.put("queryWithKnowledge", queryWithKnowledge);
+                jsonResponse.put("matches", selected);
             } else {
                 jsonResponse.put("error", "No se encontró ningún resultado en Pinecone.");
             }
@@ -84,6 +204,84 @@ public class PineconService {
         return jsonResponse;
     }
 
+    /**
+     * Asynchronous version of {@link #searchVectorPinecone(String, String, String, String, String)}. The prompt
+     * is embedded with {@link #embedPromptAsync} and the search starts as soon as the embedding is ready. The store
+     * comes from {@link ModelClientRegistry}, which builds it once; {@link ModelClientRegistry#warmUpEmbeddingStore}
+     * builds it in advance so the first search does not pay for it.
+     *
+     * @param openAApikey The API key for accessing OpenAI's embedding service.
+     * @param apiKey      The API key required to access the Pinecone service.
+     * @param index       The name of the Pinecone index where the vector data is stored.
+     * @param nameSpace   The namespace within the Pinecone index.
+     * @param prompt      The input text to search for.
+     * @return            A future completed with the same JSONObject returned by the synchronous method.
+     */
+    public static CompletableFuture<JSONObject> searchVectorPineconeAsync(String openAApikey, String apiKey, String index, String nameSpace, String prompt) {
+        return embedPromptAsync(openAApikey, prompt)
+                .thenCompose(embedding -> searchVectorPineconeAsync(apiKey, index, nameSpace, prompt, embedding));
+    }
+
+    /**
+     * Asynchronous version of {@link #searchVectorPinecone(String, String, String, String, Embedding)}.
+     * The search runs on {@link AsyncTasks}.
+     *
+     * @param apiKey         The API key required to access the Pinecone service.
+     * @param index          The name of the Pinecone index where the vector data is stored.
+     * @param nameSpace      The namespace within the Pinecone index.
+     * @param prompt         The input text, used to build the query with the retrieved knowledge.
+     * @param queryEmbedding The embedding of the prompt.
+     * @return               A future completed with the same JSONObject returned by the synchronous method.
+     */
+    public static CompletableFuture<JSONObject> searchVectorPineconeAsync(String apiKey, String index, String nameSpace, String prompt, Embedding queryEmbedding) {
+        return retrieveAsync(apiKey, Collections.singletonList(index + "/" + nameSpace), queryEmbedding, TOP_K, MIN_SCORE)
+                .thenApply(matches -> buildQueryWithKnowledge(prompt, matches));
+    }
+
+    /**
+     * Converts a prompt into its embedding vector with OpenAI's text-embedding-3-small model,
+     * the same model used to search the Pinecone index.
+     *
+     * Identical prompts embedded at the same time share a single call (see {@link SingleFlight}), which goes
+     * through the "openai.embedding" {@link ResilientExecutor} on the calling thread. Asynchronous callers use
+     * {@link #embedPromptAsync} instead.
+     *
+     * @param openAApikey The API key for accessing OpenAI's embedding service.
+     * @param prompt      The text to embed.
+     * @return            The embedding of the prompt.
+     */
+    public static Embedding embedPrompt(String openAApikey, String prompt) {
+        String model = TEXT_EMBEDDING_3_SMALL.toString();
+        try {
+            // Embeddings are never modified, so every caller gets the same instance
+            return embeddingFlight.execute(embeddingKey(model, openAApikey, prompt), () -> embeddingEndpoint.executeInline(
+                    () -> ModelClientRegistry.getEmbeddingModel(openAApikey, model).embed(prompt).content(),
+                    embedding -> false, embedding -> 0L));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Asynchronous version of {@link #embedPrompt}. The embedding call runs on {@link AsyncTasks} and no thread
+     * waits for it.
+     *
+     * @param openAApikey The API key for accessing OpenAI's embedding service.
+     * @param prompt      The text to embed.
+     * @return            A future completed with the embedding of the prompt.
+     */
+    public static CompletableFuture<Embedding> embedPromptAsync(String openAApikey, String prompt) {
+        String model = TEXT_EMBEDDING_3_SMALL.toString();
+        return embeddingFlight.executeAsync(embeddingKey(model, openAApikey, prompt), () -> embeddingEndpoint.executeUnhedgedAsync(
+                () -> AsyncTasks.supply(() -> ModelClientRegistry.getEmbeddingModel(openAApikey, model).embed(prompt).content()),
+                embedding -> false, embedding -> 0L));
+    }
+
+    private static String embeddingKey(String model, String openAApikey, String prompt) {
+        return Hashes.sha256Hex(model + '\0' + openAApikey + '\0' + prompt);
+    }
 
     /**
      * The main method serves as the entry point for the PineconService class.
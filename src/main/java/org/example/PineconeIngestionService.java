@@ -0,0 +1,330 @@
+package org.example;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.document.loader.FileSystemDocumentLoader;
+import dev.langchain4j.data.document.splitter.DocumentSplitters;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.openai.OpenAiTokenizer;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static dev.langchain4j.model.openai.OpenAiEmbeddingModelName.TEXT_EMBEDDING_3_SMALL;
+
+/**
+ * This class loads documents into a Pinecone index so they can be retrieved by
+ * {@link PineconService#searchVectorPinecone}.
+ *
+ * Each document is split into overlapping chunks bounded in tokens. Chunks are embedded in batches with
+ * {@code embedAll}, and the batches are upserted to the Pinecone store in parallel. When all upload slots
+ * are busy, adding more documents blocks, so memory use stays bounded whatever the size of the source.
+ *
+ * The SHA-256 hash of every uploaded chunk is appended to a checkpoint file. Chunks whose hash is already in
+ * the checkpoint, or seen earlier in the same run, are skipped, so an interrupted ingestion can be run again
+ * and continues where it stopped. The id of each vector is derived from the same hash, so a batch uploaded
+ * again after an error overwrites its vectors instead of duplicating them (see {@link PineconeUpsertStore}).
+ *
+ * Tuning is read from system properties: {@code ingest.chunkTokens} (default 500),
+ * {@code ingest.chunkOverlapTokens} (default 50), {@code ingest.batchSize} (chunks per embedding and upsert
+ * batch, default 64), {@code ingest.parallelism} (default 4) and {@code ingest.maxPendingBatches} (default 8).
+ */
+public class PineconeIngestionService implements AutoCloseable {
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final EmbeddingModel embeddingModel;
+    private final EmbeddingStore<TextSegment> embeddingStore;
+    private final DocumentSplitter splitter;
+    private final int batchSize = Integer.getInteger("ingest.batchSize", 64);
+    private final int maxPendingBatches = Integer.getInteger("ingest.maxPendingBatches", 8);
+
+    private final ExecutorService executor;
+    private final Semaphore pendingBatches = new Semaphore(maxPendingBatches);
+    private final Set<String> indexedHashes = ConcurrentHashMap.newKeySet();
+    private final BufferedWriter checkpointWriter;
+
+    private List<TextSegment> batch = new ArrayList<>();
+    private List<String> batchHashes = new ArrayList<>();
+
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong chunks = new AtomicLong();
+    private final AtomicLong skippedChunks = new AtomicLong();
+    private final AtomicLong indexedChunks = new AtomicLong();
+    private final AtomicLong failedChunks = new AtomicLong();
+    private volatile String lastError;
+
+    /**
+     * Creates an ingestion into the given Pinecone index and namespace.
+     *
+     * @param openAIApiKey   The API key for OpenAI's embedding service.
+     * @param pineconeApiKey The API key for Pinecone.
+     * @param index          The name of the Pinecone index.
+     * @param nameSpace      The namespace within the index.
+     * @param checkpoint     The checkpoint file with the hashes of indexed chunks; it is created if needed.
+     * @throws IOException   If the checkpoint file cannot be read or opened for writing.
+     */
+    public PineconeIngestionService(String openAIApiKey, String pineconeApiKey, String index, String nameSpace,
+                                    Path checkpoint) throws IOException {
+        this.embeddingModel = ModelClientRegistry.getEmbeddingModel(openAIApiKey, TEXT_EMBEDDING_3_SMALL.toString());
+        this.embeddingStore = ModelClientRegistry.getEmbeddingStore(pineconeApiKey, index, nameSpace);
+        this.splitter = DocumentSplitters.recursive(
+                Integer.getInteger("ingest.chunkTokens", 500),
+                Integer.getInteger("ingest.chunkOverlapTokens", 50),
+                new OpenAiTokenizer(TEXT_EMBEDDING_3_SMALL));
+        this.executor = Executors.newFixedThreadPool(Integer.getInteger("ingest.parallelism", 4));
+
+        if (Files.exists(checkpoint)) {
+            try (Stream<String> lines = Files.lines(checkpoint, StandardCharsets.UTF_8)) {
+                lines.map(String::trim).filter(line -> !line.isEmpty()).forEach(indexedHashes::add);
+            }
+        }
+        this.checkpointWriter = Files.newBufferedWriter(checkpoint, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Splits a document into chunks and queues the new ones for embedding and upload.
+     * Blocks while the maximum number of batches is already waiting to be uploaded.
+     *
+     * @param document The document to ingest.
+     * @throws InterruptedException If the thread is interrupted while waiting for an upload slot.
+     */
+    public void ingest(Document document) throws InterruptedException {
+        documents.incrementAndGet();
+        for (TextSegment segment : splitter.split(document)) {
+            chunks.incrementAndGet();
+            String hash = Hashes.sha256Hex(segment.text());
+            if (!indexedHashes.add(hash)) {
+                skippedChunks.incrementAndGet();
+                continue;
+            }
+            Metadata metadata = segment.metadata().copy();
+            metadata.put("content_hash", hash);
+            addToBatch(TextSegment.from(segment.text(), metadata), hash);
+        }
+    }
+
+    /**
+     * Ingests every file under a directory, recursively. Files are read one at a time.
+     *
+     * @param directory The directory to load the documents from.
+     * @throws IOException          If the directory cannot be listed.
+     * @throws InterruptedException If the thread is interrupted while waiting for an upload slot.
+     */
+    public void ingestDirectory(Path directory) throws IOException, InterruptedException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            Iterator<Path> paths = files.filter(Files::isRegularFile).iterator();
+            while (paths.hasNext()) {
+                Path path = paths.next();
+                Document document;
+                try {
+                    document = FileSystemDocumentLoader.loadDocument(path);
+                } catch (RuntimeException e) {
+                    lastError = "Could not load " + path + ": " + e.getMessage();
+                    continue;
+                }
+                ingest(document);
+            }
+        }
+    }
+
+    /**
+     * Scrapes each URL with {@link WebScraperService#fetchContent} and ingests its text.
+     * Pages that cannot be fetched are skipped and reported in the statistics.
+     *
+     * @param urls The URLs of the pages to ingest.
+     * @throws InterruptedException If the thread is interrupted while waiting for an upload slot.
+     */
+    public void ingestUrls(List<String> urls) throws InterruptedException {
+        for (String url : urls) {
+            JSONObject page;
+            try {
+                page = WebScraperService.fetchContent(url);
+            } catch (Exception e) {
+                lastError = "Could not fetch " + url + ": " + e.getMessage();
+                continue;
+            }
+            if (!page.has("content")) {
+                lastError = "Could not fetch " + url + ": HTTP " + page.optInt("responseCode");
+                continue;
+            }
+            ingestPage(page);
+        }
+    }
+
+    /**
+     * Ingests a page already scraped by {@link WebScraperService#fetchContent}. It can be given directly to
+     * {@link WebCrawler#crawl} to index the pages of a site while they are crawled.
+     *
+     * @param page The scraped page, with its "url", "content" and optional "title".
+     * @throws InterruptedException If the thread is interrupted while waiting for an upload slot.
+     */
+    public void ingestPage(JSONObject page) throws InterruptedException {
+        if (page.optString("content").trim().isEmpty()) {
+            return;
+        }
+        Metadata metadata = Metadata.from(Document.URL, page.getString("url"));
+        if (page.has("title")) {
+            metadata.put("title", page.getString("title"));
+        }
+        ingest(Document.from(page.getString("content"), metadata));
+    }
+
+    /**
+     * Returns the progress of the ingestion.
+     *
+     * @return A JSONObject with the number of documents and chunks processed, skipped, indexed and failed,
+     *         and the last error, if any.
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("documents", documents.get());
+        stats.put("chunks", chunks.get());
+        stats.put("skippedChunks", skippedChunks.get());
+        stats.put("indexedChunks", indexedChunks.get());
+        stats.put("failedChunks", failedChunks.get());
+        if (lastError != null) {
+            stats.put("lastError", lastError);
+        }
+        return stats;
+    }
+
+    /**
+     * Uploads the last partial batch, waits for every pending upload to finish and closes the checkpoint file.
+     *
+     * @throws IOException If the checkpoint file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            synchronized (this) {
+                if (!batch.isEmpty()) {
+                    submitBatch();
+                }
+            }
+            pendingBatches.acquire(maxPendingBatches);
+            pendingBatches.release(maxPendingBatches);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (checkpointWriter) {
+                checkpointWriter.close();
+            }
+        }
+    }
+
+    private synchronized void addToBatch(TextSegment segment, String hash) throws InterruptedException {
+        batch.add(segment);
+        batchHashes.add(hash);
+        if (batch.size() >= batchSize) {
+            submitBatch();
+        }
+    }
+
+    private void submitBatch() throws InterruptedException {
+        List<TextSegment> segments = batch;
+        List<String> hashes = batchHashes;
+        batch = new ArrayList<>();
+        batchHashes = new ArrayList<>();
+
+        // Backpressure: wait for an upload slot before accepting more chunks
+        pendingBatches.acquire();
+        try {
+            executor.execute(() -> {
+                try {
+                    upload(segments, hashes);
+                } finally {
+                    pendingBatches.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            pendingBatches.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Embeds and upserts one batch, retrying with backoff, and records its hashes in the checkpoint.
+     * Hashes of a batch that finally fails are released so a later run uploads those chunks again.
+     */
+    private void upload(List<TextSegment> segments, List<String> hashes) {
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
+                EmbeddingStores.addAll(embeddingStore, vectorIds(hashes), embeddings, segments);
+            } catch (RuntimeException e) {
+                lastError = e.getMessage();
+                if (attempt < MAX_ATTEMPTS) {
+                    try {
+                        Thread.sleep(1000L << (attempt - 1));
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                continue;
+            }
+
+            indexedChunks.addAndGet(segments.size());
+            try {
+                writeCheckpoint(hashes);
+            } catch (IOException e) {
+                // The chunks are indexed; a later run will only upload them again
+                lastError = "Could not write the checkpoint: " + e.getMessage();
+            }
+            return;
+        }
+        indexedHashes.removeAll(hashes);
+        failedChunks.addAndGet(segments.size());
+    }
+
+    /**
+     * Derives the vector ids of a batch from the content hashes of its chunks, as name-based UUIDs so every store
+     * accepts them.
+     */
+    private static List<String> vectorIds(List<String> hashes) {
+        List<String> ids = new ArrayList<>(hashes.size());
+        for (String hash : hashes) {
+            ids.add(UUID.nameUUIDFromBytes(hash.getBytes(StandardCharsets.UTF_8)).toString());
+        }
+        return ids;
+    }
+
+    private void writeCheckpoint(List<String> hashes) throws IOException {
+        synchronized (checkpointWriter) {
+            for (String hash : hashes) {
+                checkpointWriter.write(hash);
+                checkpointWriter.newLine();
+            }
+            checkpointWriter.flush();
+        }
+    }
+}
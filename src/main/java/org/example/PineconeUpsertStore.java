@@ -0,0 +1,166 @@
+package org.example;
+
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import io.pinecone.clients.Index;
+import io.pinecone.clients.Pinecone;
+import io.pinecone.commons.IndexInterface;
+import io.pinecone.unsigned_indices_model.VectorWithUnsignedIndices;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class wraps the langchain4j Pinecone store and adds {@code addAll(ids, embeddings, embedded)}, which the
+ * langchain4j 0.34 store lacks (see {@link UpsertEmbeddingStore}), so {@link EmbeddingStores#addAll} can upsert
+ * vectors under ids chosen by the caller.
+ *
+ * Those upserts go through the {@code io.pinecone} index client and write the segment text under the same
+ * "text_segment" metadata key as the langchain4j store, so the vectors are found by its searches. Everything else
+ * is delegated to the langchain4j store.
+ */
+public class PineconeUpsertStore implements UpsertEmbeddingStore, AutoCloseable {
+
+    // The metadata key under which the langchain4j Pinecone store keeps the text of a segment
+    private static final String METADATA_TEXT_KEY = "text_segment";
+
+    private final EmbeddingStore<TextSegment> store;
+    private final String apiKey;
+    private final String index;
+    private final String nameSpace;
+    private volatile Index connection;
+
+    /**
+     * Creates the store.
+     *
+     * @param store     The langchain4j store of the same index and namespace.
+     * @param apiKey    The API key for accessing Pinecone.
+     * @param index     The name of the Pinecone index.
+     * @param nameSpace The namespace within the index.
+     */
+    public PineconeUpsertStore(EmbeddingStore<TextSegment> store, String apiKey, String index, String nameSpace) {
+        this.store = store;
+        this.apiKey = apiKey;
+        this.index = index;
+        this.nameSpace = nameSpace;
+    }
+
+    /**
+     * Upserts entries with the given ids, so adding them again overwrites them instead of storing duplicates.
+     *
+     * @param ids          The entry ids, one per embedding.
+     * @param embeddings   The embeddings to add.
+     * @param textSegments The text segments stored with the embeddings, or null.
+     */
+    @Override
+    public void addAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> textSegments) {
+        if (ids.size() != embeddings.size() || (textSegments != null && textSegments.size() != embeddings.size())) {
+            throw new IllegalArgumentException("ids, embeddings and textSegments must have the same size");
+        }
+        List<VectorWithUnsignedIndices> vectors = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            Struct.Builder metadata = Struct.newBuilder();
+            TextSegment segment = textSegments == null ? null : textSegments.get(i);
+            if (segment != null) {
+                metadata.putFields(METADATA_TEXT_KEY, Value.newBuilder().setStringValue(segment.text()).build());
+                for (Map.Entry<String, Object> entry : segment.metadata().toMap().entrySet()) {
+                    metadata.putFields(entry.getKey(), toValue(entry.getValue()));
+                }
+            }
+            vectors.add(IndexInterface.buildUpsertVectorWithUnsignedIndices(
+                    ids.get(i), embeddings.get(i).vectorAsList(), null, null, metadata.build()));
+        }
+        connection().upsert(vectors, nameSpace);
+    }
+
+    @Override
+    public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        return store.search(request);
+    }
+
+    @Override
+    public String add(Embedding embedding) {
+        return store.add(embedding);
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        store.add(id, embedding);
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment textSegment) {
+        return store.add(embedding, textSegment);
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        return store.addAll(embeddings);
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
+        return store.addAll(embeddings, textSegments);
+    }
+
+    @Override
+    public void remove(String id) {
+        store.remove(id);
+    }
+
+    @Override
+    public void removeAll(Collection<String> ids) {
+        store.removeAll(ids);
+    }
+
+    @Override
+    public void removeAll(Filter filter) {
+        store.removeAll(filter);
+    }
+
+    @Override
+    public void removeAll() {
+        store.removeAll();
+    }
+
+    /**
+     * Closes the index connection, if one was opened.
+     */
+    @Override
+    public void close() {
+        Index result = connection;
+        if (result != null) {
+            result.close();
+        }
+    }
+
+    // The connection is opened on the first upsert, since searches never need it
+    private Index connection() {
+        Index result = connection;
+        if (result == null) {
+            synchronized (this) {
+                result = connection;
+                if (result == null) {
+                    result = new Pinecone.Builder(apiKey).build().getIndexConnection(index);
+                    connection = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Value toValue(Object value) {
+        if (value instanceof Number) {
+            return Value.newBuilder().setNumberValue(((Number) value).doubleValue()).build();
+        }
+        return Value.newBuilder().setStringValue(String.valueOf(value)).build();
+    }
+}
@@ -0,0 +1,442 @@
+package org.example;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * This class keeps the calls made with one credential to one upstream (OpenAI, Zoho accounts, ServiceDesk Plus)
+ * within the limits of the upstream, so that bursts wait on the client instead of ending in storms of HTTP 429.
+ *
+ * Every call waits, in arrival order, for:
+ * <ol>
+ *     <li>a permit of the requests-per-minute {@link TokenBucket};</li>
+ *     <li>its estimated tokens in the tokens-per-minute bucket, for LLM calls;</li>
+ *     <li>a slot of the {@link AdaptiveConcurrencyLimiter}, whose limit adapts to latency and to 429 answers.</li>
+ * </ol>
+ * A 429 answer pauses both the buckets and the limiter for the Retry-After time and halves the concurrency limit.
+ * For upstreams whose answers take about the same time (Zoho, SDP) the limit also follows the latency of the
+ * successful calls; OpenAI latency grows with the length of each answer, so there only 429s and errors move it.
+ *
+ * Limits are read from system properties per upstream: {@code ratelimit.<upstream>.requestsPerMinute},
+ * {@code ratelimit.<upstream>.tokensPerMinute} (0 disables the token bucket), {@code ratelimit.<upstream>.burstSeconds}
+ * (the bucket capacity, in seconds of rate; default 10), {@code ratelimit.<upstream>.maxConcurrency} and
+ * {@code ratelimit.<upstream>.latencyGradient} (default false for "openai", true otherwise).
+ * The defaults are: "openai" 3000 requests and 1000000 tokens per minute with 64 concurrent calls, "zoho" (the
+ * token endpoint) 10 requests per minute with 2 concurrent calls, and "sdp" 100 requests per minute with
+ * 8 concurrent calls.
+ */
+public class RateController {
+
+    private static final Map<String, RateController> controllers = new ConcurrentHashMap<>();
+
+    // Delays the callers that must wait for bucket permits
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rate-controller-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final TokenBucket requests;
+    private final TokenBucket tokens;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final boolean latencyGradient;
+
+    /**
+     * A reserved call. Exactly one of {@link #onSuccess}, {@link #onThrottled} or {@link #onFailure} must be
+     * called when the call ends.
+     */
+    public class Permit {
+        private final long estimatedTokens;
+        private final long startedAt = System.nanoTime();
+
+        private Permit(long estimatedTokens) {
+            this.estimatedTokens = estimatedTokens;
+        }
+
+        /**
+         * Ends a successful call.
+         *
+         * @param usedTokens The tokens the call actually used, or -1 if unknown; the difference with the estimate
+         *                   is given back to (or taken from) the tokens-per-minute bucket.
+         */
+        public void onSuccess(long usedTokens) {
+            if (tokens != null && usedTokens >= 0) {
+                tokens.refund(estimatedTokens - usedTokens);
+            }
+            if (latencyGradient) {
+                limiter.onSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+            } else {
+                limiter.onSuccess();
+            }
+        }
+
+        /**
+         * Ends a call rejected by the upstream because of its limits (HTTP 429).
+         *
+         * @param retryAfterMillis How long the upstream asked to wait, or 0 if it did not say.
+         */
+        public void onThrottled(long retryAfterMillis) {
+            long pause = retryAfterMillis > 0 ? retryAfterMillis : 1000L;
+            requests.pause(pause);
+            if (tokens != null) {
+                tokens.pause(pause);
+            }
+            limiter.onThrottled(pause);
+        }
+
+        /**
+         * Ends a call that failed for a reason unrelated to the limits.
+         */
+        public void onFailure() {
+            limiter.onFailure();
+        }
+    }
+
+    /**
+     * Reports how a call ended to its permit.
+     *
+     * @param <T> The type of the result of the call.
+     */
+    public interface Outcome<T> {
+
+        /**
+         * Calls exactly one of the methods of the permit, according to the result or error of the call.
+         *
+         * @param permit The permit of the call.
+         * @param result The result, or null if the call failed.
+         * @param error  The error, or null if the call succeeded.
+         */
+        void report(Permit permit, T result, Throwable error);
+    }
+
+    /**
+     * Thrown by a call when the upstream answered HTTP 429, so that the default outcome pauses the controller.
+     */
+    public static class ThrottledException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterMillis;
+
+        /**
+         * Creates the exception.
+         *
+         * @param message          The detail message.
+         * @param retryAfterMillis How long the upstream asked to wait, or 0 if it did not say.
+         */
+        public ThrottledException(String message, long retryAfterMillis) {
+            super(message);
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        /**
+         * Returns how long the upstream asked to wait.
+         *
+         * @return The wait in milliseconds, or 0 if the upstream did not say.
+         */
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+    }
+
+    /**
+     * Returns the controller of a credential of an upstream, creating it on first use.
+     *
+     * @param upstream   The upstream ("openai", "zoho" or "sdp"), which selects the limits.
+     * @param credential The API key or client ID the limits apply to; only its hash is kept.
+     * @return           The controller.
+     */
+    public static RateController forUpstream(String upstream, String credential) {
+        String key = upstream + "|" + Hashes.sha256Hex(String.valueOf(credential)).substring(0, 16);
+        return controllers.computeIfAbsent(key, k -> new RateController(upstream));
+    }
+
+    private RateController(String upstream) {
+        long requestsPerMinute;
+        long tokensPerMinute;
+        int maxConcurrency;
+        switch (upstream) {
+            case "openai":
+                requestsPerMinute = 3000;
+                tokensPerMinute = 1_000_000;
+                maxConcurrency = 64;
+                break;
+            case "zoho":
+                requestsPerMinute = 10;
+                tokensPerMinute = 0;
+                maxConcurrency = 2;
+                break;
+            default:
+                requestsPerMinute = 100;
+                tokensPerMinute = 0;
+                maxConcurrency = 8;
+                break;
+        }
+        requestsPerMinute = Long.getLong("ratelimit." + upstream + ".requestsPerMinute", requestsPerMinute);
+        tokensPerMinute = Long.getLong("ratelimit." + upstream + ".tokensPerMinute", tokensPerMinute);
+        maxConcurrency = Integer.getInteger("ratelimit." + upstream + ".maxConcurrency", maxConcurrency);
+        double burstMinutes = Long.getLong("ratelimit." + upstream + ".burstSeconds", 10L) / 60.0;
+
+        this.requests = new TokenBucket(requestsPerMinute, Math.max(1, requestsPerMinute * burstMinutes));
+        this.tokens = tokensPerMinute > 0 ? new TokenBucket(tokensPerMinute, Math.max(1, tokensPerMinute * burstMinutes)) : null;
+        this.limiter = new AdaptiveConcurrencyLimiter(1, Math.max(1, maxConcurrency));
+        this.latencyGradient = Boolean.parseBoolean(System.getProperty("ratelimit." + upstream + ".latencyGradient",
+                String.valueOf(!upstream.equals("openai"))));
+    }
+
+    /**
+     * Waits for the permits and the concurrency slot of a call without blocking. Cancelling the returned future
+     * before it completes gives back the bucket permits and the place in the queue of the limiter.
+     *
+     * @param estimatedTokens The LLM tokens the call is expected to use (prompt plus max_tokens), or 0.
+     * @return                A future completed with the permit once the call may start.
+     */
+    public CompletableFuture<Permit> acquireAsync(long estimatedTokens) {
+        long tokenPermits = tokens != null && estimatedTokens > 0 ? estimatedTokens : 0;
+        long delay = requests.reserve(1);
+        if (tokenPermits > 0) {
+            delay = Math.max(delay, tokens.reserve(tokenPermits));
+        }
+
+        CompletableFuture<Permit> result = new CompletableFuture<>();
+        // The pending wait, for the bucket permits and then for the limiter slot, which a cancellation aborts
+        AtomicReference<Future<?>> waiting = new AtomicReference<>();
+        Runnable requestSlot = () -> {
+            if (result.isDone()) {
+                return;
+            }
+            CompletableFuture<Void> slot = limiter.acquireAsync();
+            waiting.set(slot);
+            slot.whenComplete((granted, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else if (!result.complete(new Permit(estimatedTokens))) {
+                    // Cancelled while the slot was being granted
+                    limiter.onFailure();
+                }
+            });
+            if (result.isCancelled()) {
+                slot.cancel(false);
+            }
+        };
+        result.whenComplete((permit, error) -> {
+            if (result.isCancelled()) {
+                requests.refund(1);
+                if (tokenPermits > 0) {
+                    tokens.refund(tokenPermits);
+                }
+                Future<?> pending = waiting.get();
+                if (pending != null) {
+                    pending.cancel(false);
+                }
+            }
+        });
+
+        if (delay <= 0) {
+            requestSlot.run();
+        } else {
+            waiting.set(timer.schedule(requestSlot, delay, TimeUnit.MILLISECONDS));
+            if (result.isCancelled()) {
+                waiting.get().cancel(false);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Waits for the permits and the concurrency slot of a call.
+     *
+     * @param estimatedTokens The LLM tokens the call is expected to use (prompt plus max_tokens), or 0.
+     * @return                The permit of the call.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public Permit acquire(long estimatedTokens) throws InterruptedException {
+        CompletableFuture<Permit> permit = acquireAsync(estimatedTokens);
+        try {
+            return permit.get();
+        } catch (InterruptedException e) {
+            // Give up the wait, or give the slot back if it was granted meanwhile
+            if (!permit.cancel(false)) {
+                permit.thenAccept(Permit::onFailure);
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Runs an asynchronous call once its permit is granted and reports its outcome. Cancelling the returned future
+     * cancels the call, or gives up the wait for the permit (see {@link #acquireAsync}) if the call has not started
+     * yet.
+     *
+     * @param estimatedTokens The LLM tokens the call is expected to use, or 0.
+     * @param call            Starts the call.
+     * @param outcome         Reports the result or error of the call to its permit.
+     * @param <T>             The type of the result.
+     * @return                A future completed with the result of the call.
+     */
+    public <T> CompletableFuture<T> executeAsync(long estimatedTokens, Supplier<CompletableFuture<T>> call, Outcome<T> outcome) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<Permit> acquired = acquireAsync(estimatedTokens);
+        result.whenComplete((value, failure) -> {
+            if (result.isCancelled()) {
+                acquired.cancel(false);
+            }
+        });
+        acquired.whenComplete((permit, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            if (result.isDone()) {
+                permit.onFailure();
+                return;
+            }
+            CompletableFuture<T> running;
+            try {
+                running = call.get();
+            } catch (RuntimeException e) {
+                running = new CompletableFuture<>();
+                running.completeExceptionally(e);
+            }
+            CompletableFuture<T> started = running;
+            result.whenComplete((value, failure) -> {
+                if (result.isCancelled()) {
+                    started.cancel(true);
+                }
+            });
+            started.whenComplete((value, failure) -> {
+                Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+                outcome.report(permit, value, cause);
+                if (cause != null) {
+                    result.completeExceptionally(cause);
+                } else {
+                    result.complete(value);
+                }
+            });
+        });
+        return result;
+    }
+
+    /**
+     * Runs an asynchronous call once its permit is granted, reporting a {@link ThrottledException} as throttled,
+     * any other error as a failure and a result as a success.
+     *
+     * @param estimatedTokens The LLM tokens the call is expected to use, or 0.
+     * @param call            Starts the call.
+     * @param <T>             The type of the result.
+     * @return                A future completed with the result of the call.
+     */
+    public <T> CompletableFuture<T> executeAsync(long estimatedTokens, Supplier<CompletableFuture<T>> call) {
+        return executeAsync(estimatedTokens, call, RateController::defaultOutcome);
+    }
+
+    /**
+     * Runs a blocking call once its permit is granted and reports its outcome.
+     *
+     * @param estimatedTokens The LLM tokens the call is expected to use, or 0.
+     * @param call            The call.
+     * @param outcome         Reports the result or error of the call to its permit.
+     * @param <T>             The type of the result.
+     * @return                The result of the call.
+     * @throws Exception      The exception thrown by the call, or InterruptedException while waiting for the permit.
+     */
+    public <T> T execute(long estimatedTokens, Callable<T> call, Outcome<T> outcome) throws Exception {
+        Permit permit = acquire(estimatedTokens);
+        T result;
+        try {
+            result = call.call();
+        } catch (Exception | Error e) {
+            outcome.report(permit, null, e);
+            throw e;
+        }
+        outcome.report(permit, result, null);
+        return result;
+    }
+
+    /**
+     * Runs a blocking call once its permit is granted, reporting a {@link ThrottledException} as throttled,
+     * any other exception as a failure and a result as a success.
+     *
+     * @param estimatedTokens The LLM tokens the call is expected to use, or 0.
+     * @param call            The call.
+     * @param <T>             The type of the result.
+     * @return                The result of the call.
+     * @throws Exception      The exception thrown by the call, or InterruptedException while waiting for the permit.
+     */
+    public <T> T execute(long estimatedTokens, Callable<T> call) throws Exception {
+        return execute(estimatedTokens, call, RateController::defaultOutcome);
+    }
+
+    /**
+     * Parses a Retry-After header given in seconds.
+     *
+     * @param retryAfter The header value, or null.
+     * @return           The wait in milliseconds, or 0 if there is none or it is an HTTP date.
+     */
+    public static long parseRetryAfter(String retryAfter) {
+        if (retryAfter != null) {
+            try {
+                return (long) (Double.parseDouble(retryAfter.trim()) * 1000);
+            } catch (NumberFormatException e) {
+                // Retry-After can also be an HTTP date; the default pause is used instead
+            }
+        }
+        return 0;
+    }
+
+    private static <T> void defaultOutcome(Permit permit, T result, Throwable error) {
+        if (error instanceof ThrottledException) {
+            permit.onThrottled(((ThrottledException) error).getRetryAfterMillis());
+        } else if (error != null) {
+            permit.onFailure();
+        } else {
+            permit.onSuccess(-1);
+        }
+    }
+
+    /**
+     * Returns the state of the controller.
+     *
+     * @return A JSONObject with the "requestBucket" and "tokenBucket" balances, the concurrency "limit", the
+     *         calls "inFlight" and the callers "waiting" for a slot.
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("requestBucket", requests.getBalance());
+        if (tokens != null) {
+            stats.put("tokenBucket", tokens.getBalance());
+        }
+        stats.put("limit", limiter.getLimit());
+        stats.put("inFlight", limiter.getInFlight());
+        stats.put("waiting", limiter.getWaiting());
+        return stats;
+    }
+
+    /**
+     * Returns the state of every controller, by upstream and credential hash.
+     *
+     * @return A JSONObject with the statistics of each controller.
+     */
+    public static JSONObject getAllStats() {
+        JSONObject stats = new JSONObject();
+        for (Map.Entry<String, RateController> entry : controllers.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().getStats());
+        }
+        return stats;
+    }
+}
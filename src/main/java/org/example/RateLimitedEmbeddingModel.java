@@ -0,0 +1,86 @@
+package org.example;
+
+import dev.ai4j.openai4j.OpenAiHttpException;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.output.TokenUsage;
+
+import java.util.List;
+
+/**
+ * This class wraps an embedding model so that its calls wait for the {@link RateController} of the API key, like
+ * the chat completions: each call takes a request permit and its estimated input tokens, a 429 answer pauses the
+ * API key, and the tokens OpenAI reports are settled against the estimate. It is placed under the
+ * {@link CachingEmbeddingModel}, so cached embeddings do not use the limits.
+ */
+public class RateLimitedEmbeddingModel implements EmbeddingModel {
+
+    private final EmbeddingModel delegate;
+    private final String modelName;
+    private final RateController rateController;
+
+    /**
+     * Creates a rate-limited wrapper around an embedding model.
+     *
+     * @param delegate       The model whose calls are limited.
+     * @param modelName      The model name, which selects the tokenizer of the estimates.
+     * @param rateController The controller of the API key the model calls OpenAI with.
+     */
+    public RateLimitedEmbeddingModel(EmbeddingModel delegate, String modelName, RateController rateController) {
+        this.delegate = delegate;
+        this.modelName = modelName;
+        this.rateController = rateController;
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+        long estimatedTokens = 0;
+        for (TextSegment segment : textSegments) {
+            estimatedTokens += ContextSelector.countTokens(segment.text(), modelName);
+        }
+        try {
+            return rateController.execute(estimatedTokens, () -> delegate.embedAll(textSegments),
+                    RateLimitedEmbeddingModel::reportOutcome);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the OpenAI rate limits", e);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public int dimension() {
+        return delegate.dimension();
+    }
+
+    private static void reportOutcome(RateController.Permit permit, Response<List<Embedding>> response, Throwable error) {
+        if (error != null) {
+            OpenAiHttpException httpError = httpError(error);
+            if (httpError != null && httpError.code() == 429) {
+                permit.onThrottled(0);
+            } else {
+                permit.onFailure();
+            }
+            return;
+        }
+        TokenUsage usage = response.tokenUsage();
+        permit.onSuccess(usage != null && usage.inputTokenCount() != null ? usage.inputTokenCount() : -1);
+    }
+
+    /**
+     * Finds the HTTP error of OpenAI among the causes of an exception (langchain4j may wrap it).
+     */
+    private static OpenAiHttpException httpError(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof OpenAiHttpException) {
+                return (OpenAiHttpException) cause;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,194 @@
+package org.example;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * This class puts a local {@link HnswEmbeddingStore} in front of a remote embedding store (e.g. Pinecone).
+ *
+ * A search is answered locally when the local store returns enough matches and the best one scores at least
+ * the configured hit score. Otherwise the remote store is searched, and the matches it returns are added to
+ * the local store so later similar questions are answered without a network call. Additions and removals
+ * are applied to both stores. Like any cache, a local answer can miss a better match that was never fetched
+ * from the remote store; the hit score controls that trade-off.
+ *
+ * If a snapshot file is given, the local store is loaded from it when it exists and saved to it on {@link #close()}.
+ */
+public class ReadThroughEmbeddingStore implements UpsertEmbeddingStore, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ReadThroughEmbeddingStore.class);
+
+    private final HnswEmbeddingStore local;
+    private final EmbeddingStore<TextSegment> remote;
+    private final double localHitScore;
+    private final Path snapshot;
+
+    /**
+     * Creates a read-through store.
+     *
+     * @param remote        The remote store that holds all the data.
+     * @param localHitScore The minimum relevance score (0 to 1) of the best local match for a search to be answered locally.
+     * @param snapshot      The snapshot file of the local store, or null to keep it in memory only. A snapshot that
+     *                      cannot be read is logged and ignored, and the local store starts empty.
+     */
+    public ReadThroughEmbeddingStore(EmbeddingStore<TextSegment> remote, double localHitScore, Path snapshot) {
+        this.remote = remote;
+        this.localHitScore = localHitScore;
+        this.snapshot = snapshot;
+        this.local = loadLocal(snapshot);
+    }
+
+    /**
+     * Loads the local store from its snapshot. The local store is only a cache of the remote one, so a snapshot
+     * that cannot be read (e.g. truncated by a crash) must not stop the namespace from being searched.
+     */
+    private static HnswEmbeddingStore loadLocal(Path snapshot) {
+        if (snapshot != null && Files.exists(snapshot)) {
+            try {
+                return HnswEmbeddingStore.load(snapshot);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not load the local index snapshot {}, starting empty: {}", snapshot, e.toString());
+            }
+        }
+        return new HnswEmbeddingStore();
+    }
+
+    /**
+     * Returns the local store, for example to preload it with the hottest vectors of the namespace.
+     *
+     * @return The local HNSW store.
+     */
+    public HnswEmbeddingStore getLocalStore() {
+        return local;
+    }
+
+    @Override
+    public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        EmbeddingSearchResult<TextSegment> localResult = local.search(request);
+        List<EmbeddingMatch<TextSegment>> localMatches = localResult.matches();
+        if (localMatches.size() >= request.maxResults() && localMatches.get(0).score() >= localHitScore) {
+            return localResult;
+        }
+
+        EmbeddingSearchResult<TextSegment> remoteResult = remote.search(request);
+        for (EmbeddingMatch<TextSegment> match : remoteResult.matches()) {
+            if (match.embedding() != null && match.embeddingId() != null && !local.contains(match.embeddingId())) {
+                local.add(match.embeddingId(), match.embedding(), match.embedded());
+            }
+        }
+        return remoteResult;
+    }
+
+    @Override
+    public String add(Embedding embedding) {
+        String id = remote.add(embedding);
+        local.add(id, embedding, null);
+        return id;
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        remote.add(id, embedding);
+        local.add(id, embedding, null);
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment textSegment) {
+        String id = remote.add(embedding, textSegment);
+        local.add(id, embedding, textSegment);
+        return id;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        List<String> ids = remote.addAll(embeddings);
+        for (int i = 0; i < ids.size(); i++) {
+            local.add(ids.get(i), embeddings.get(i), null);
+        }
+        return ids;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings, List<TextSegment> textSegments) {
+        List<String> ids = remote.addAll(embeddings, textSegments);
+        for (int i = 0; i < ids.size(); i++) {
+            local.add(ids.get(i), embeddings.get(i), textSegments.get(i));
+        }
+        return ids;
+    }
+
+    /**
+     * Adds entries with the given ids to both stores, see {@link EmbeddingStores#addAll}.
+     *
+     * @param ids          The entry ids, one per embedding.
+     * @param embeddings   The embeddings to add.
+     * @param textSegments The text segments stored with the embeddings.
+     * @throws UnsupportedOperationException If the remote store cannot add entries under given ids.
+     */
+    @Override
+    public void addAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> textSegments) {
+        EmbeddingStores.addAll(remote, ids, embeddings, textSegments);
+        local.addAll(ids, embeddings, textSegments);
+    }
+
+    @Override
+    public void remove(String id) {
+        remote.remove(id);
+        local.remove(id);
+    }
+
+    @Override
+    public void removeAll(Collection<String> ids) {
+        remote.removeAll(ids);
+        local.removeAll(ids);
+    }
+
+    @Override
+    public void removeAll(Filter filter) {
+        remote.removeAll(filter);
+        local.removeAll(filter);
+    }
+
+    @Override
+    public void removeAll() {
+        remote.removeAll();
+        local.removeAll();
+    }
+
+    /**
+     * Saves the local store to its snapshot file, if one was given, and closes the remote store if it holds resources.
+     *
+     * @throws IOException If the snapshot cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (snapshot != null) {
+                local.save(snapshot);
+            }
+        } finally {
+            if (remote instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) remote).close();
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+}
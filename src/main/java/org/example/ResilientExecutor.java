@@ -0,0 +1,778 @@
+package org.example;
+
+import dev.ai4j.openai4j.OpenAiHttpException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * This class makes the calls to a remote endpoint (e.g. OpenAI chat completions, Pinecone queries) resistant to
+ * slow and failed attempts:
+ * <ul>
+ *     <li><b>Hedging:</b> when an attempt is still running after the p95 latency of the endpoint, a duplicate is
+ *     sent and the first good answer wins; the other attempt is cancelled. Latencies and the hedge timer count
+ *     from the moment an {@link Attempt} says it has started, so a wait on the client is not mistaken for a slow
+ *     endpoint. Only attempts that really stop when cancelled (asynchronous OkHttp calls) are hedged: the attempts
+ *     of blocking clients, such as the langchain4j models and stores, keep running and keep their thread when
+ *     cancelled, so they go through {@link #executeUnhedgedAsync} or {@link #executeInline} instead.</li>
+ *     <li><b>Retries:</b> failed attempts (errors, HTTP 429 and 5xx) are retried with exponential backoff and full
+ *     jitter, honouring Retry-After, as long as the overall deadline of the call allows it.</li>
+ *     <li><b>Retry budget:</b> hedges and retries are taken from a {@link RetryBudget}, so they stay a small share
+ *     of the traffic and cannot pile up on an endpoint in trouble.</li>
+ *     <li><b>Circuit breaker:</b> a {@link CircuitBreaker} per endpoint rejects calls while the endpoint is failing.
+ *     The breaker is shared by every credential, so HTTP 429 is not counted as a failure: a rate limit reached by
+ *     one API key says nothing about the endpoint, and the {@link RateController} of that key already pauses it.</li>
+ * </ul>
+ *
+ * There is one executor per endpoint name, created with {@link #forEndpoint(String)}. Settings are read from
+ * system properties named {@code resilience.<endpoint>.<setting>}, falling back to {@code resilience.<setting>}:
+ * {@code deadlineMs} (default 60000), {@code maxAttempts} (default 3), {@code backoffMs} (default 200),
+ * {@code maxBackoffMs} (default 5000), {@code hedge} (default true), {@code hedgeQuantile} (default 0.95),
+ * {@code hedgeMinDelayMs} (default 50), {@code retryBudgetRatio} (default 0.1), {@code retryBudgetPerSecond}
+ * (default 1), {@code retryBudgetMax} (default 10), {@code breakerWindow} (default 20), {@code breakerMinCalls}
+ * (default 10), {@code breakerFailureRate} (default 0.5), {@code breakerConsecutiveFailures} (default 5) and
+ * {@code breakerOpenMs} (default 5000).
+ */
+public class ResilientExecutor {
+
+    // Hedging starts once the endpoint has this many latency samples
+    private static final int MIN_LATENCY_SAMPLES = 20;
+
+    private static final Map<String, ResilientExecutor> executors = new ConcurrentHashMap<>();
+
+    // Fires hedges, delayed retries and deadlines; its tasks only start asynchronous calls
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "resilience-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final long deadlineMillis;
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+    private final boolean hedging;
+    private final double hedgeQuantile;
+    private final long hedgeMinDelayMillis;
+    private final RetryBudget retryBudget;
+    private final CircuitBreaker circuitBreaker;
+    private final LatencyWindow latencies = new LatencyWindow(256);
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder budgetExhausted = new LongAdder();
+    private final LongAdder deadlinesExceeded = new LongAdder();
+
+    /**
+     * One attempt of a call that may wait on the client before it really starts (e.g. for a {@link RateController}
+     * permit).
+     *
+     * @param <T> The type of the answer.
+     */
+    public interface Attempt<T> {
+
+        /**
+         * Starts the attempt.
+         *
+         * @param started To be run when the attempt really starts, e.g. when the request is sent.
+         * @return        A future completed with the answer. Cancelling it should abort the attempt.
+         */
+        CompletableFuture<T> start(Runnable started);
+    }
+
+    /**
+     * Returns the executor of an endpoint, creating it on first use.
+     *
+     * @param name The name of the endpoint (e.g. "openai.chat"), also used in the names of its settings.
+     * @return     The executor of the endpoint.
+     */
+    public static ResilientExecutor forEndpoint(String name) {
+        return executors.computeIfAbsent(name, ResilientExecutor::new);
+    }
+
+    private ResilientExecutor(String name) {
+        this.name = name;
+        this.deadlineMillis = longSetting("deadlineMs", 60_000L);
+        this.maxAttempts = (int) Math.max(1, longSetting("maxAttempts", 3));
+        this.backoffMillis = longSetting("backoffMs", 200L);
+        this.maxBackoffMillis = longSetting("maxBackoffMs", 5_000L);
+        this.hedging = Boolean.parseBoolean(setting("hedge", "true"));
+        this.hedgeQuantile = Double.parseDouble(setting("hedgeQuantile", "0.95"));
+        this.hedgeMinDelayMillis = longSetting("hedgeMinDelayMs", 50L);
+        this.retryBudget = new RetryBudget(
+                Double.parseDouble(setting("retryBudgetRatio", "0.1")),
+                Double.parseDouble(setting("retryBudgetPerSecond", "1")),
+                Double.parseDouble(setting("retryBudgetMax", "10")));
+        this.circuitBreaker = new CircuitBreaker(
+                (int) longSetting("breakerWindow", 20),
+                (int) longSetting("breakerMinCalls", 10),
+                Double.parseDouble(setting("breakerFailureRate", "0.5")),
+                (int) longSetting("breakerConsecutiveFailures", 5),
+                longSetting("breakerOpenMs", 5_000L));
+    }
+
+    /**
+     * Returns the circuit breaker of the endpoint, for calls that cannot be retried or hedged (e.g. streams whose
+     * fragments were already delivered) but should still respect it.
+     *
+     * @return The circuit breaker.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Runs a call with hedging, retries, the retry budget, the circuit breaker and the deadline of the endpoint.
+     *
+     * When the deadline expires, the future completes with the last failed answer if there is one (so the caller
+     * sees e.g. the 503 body as before), or with a {@link TimeoutException}. When the breaker is open, it completes
+     * with a {@link CircuitBreaker.OpenException}.
+     *
+     * @param attempt    Starts one attempt of the call. Cancelling the future it returns should abort the attempt.
+     * @param retryable  Tells whether an answer is a failure worth retrying (e.g. HTTP 429 or 5xx).
+     * @param retryAfter Returns the wait in milliseconds requested by a failed answer, or 0.
+     * @param <T>        The type of the answer.
+     * @return           A future completed with the first good answer. Cancelling it cancels the running attempts.
+     */
+    public <T> CompletableFuture<T> executeAsync(Supplier<CompletableFuture<T>> attempt, Predicate<T> retryable,
+                                                 ToLongFunction<T> retryAfter) {
+        return executeAsync(startedAtOnce(attempt), retryable, retryAfter);
+    }
+
+    /**
+     * Runs a call like {@link #executeAsync(Supplier, Predicate, ToLongFunction)}, for attempts that may wait before
+     * they really start, e.g. for a {@link RateController} permit. The latency of an attempt, which sets the hedge
+     * delay of the endpoint, and the hedge timer both count from the moment the attempt says it has started, so
+     * the time spent in a queue on the client neither raises the p95 nor fires hedges that would queue as well.
+     *
+     * @param attempt    Starts one attempt of the call and runs the given callback when it really starts.
+     * @param retryable  Tells whether an answer is a failure worth retrying (e.g. HTTP 429 or 5xx).
+     * @param retryAfter Returns the wait in milliseconds requested by a failed answer, or 0.
+     * @param <T>        The type of the answer.
+     * @return           A future completed with the first good answer. Cancelling it cancels the running attempts.
+     */
+    public <T> CompletableFuture<T> executeAsync(Attempt<T> attempt, Predicate<T> retryable, ToLongFunction<T> retryAfter) {
+        return executeAsync(attempt, retryable, answer -> false, retryAfter);
+    }
+
+    /**
+     * Runs a call like {@link #executeAsync(Attempt, Predicate, ToLongFunction)}, for calls whose answers can say
+     * the credential was rate limited (e.g. a JSON response with HTTP 429). Such answers are retried like other
+     * failures but are not counted by the circuit breaker.
+     *
+     * @param attempt    Starts one attempt of the call and runs the given callback when it really starts.
+     * @param retryable  Tells whether an answer is a failure worth retrying (e.g. HTTP 429 or 5xx).
+     * @param throttled  Tells whether a failed answer is a rate limit of the credential (HTTP 429).
+     * @param retryAfter Returns the wait in milliseconds requested by a failed answer, or 0.
+     * @param <T>        The type of the answer.
+     * @return           A future completed with the first good answer. Cancelling it cancels the running attempts.
+     */
+    public <T> CompletableFuture<T> executeAsync(Attempt<T> attempt, Predicate<T> retryable, Predicate<T> throttled,
+                                                 ToLongFunction<T> retryAfter) {
+        return start(attempt, retryable, throttled, retryAfter, hedging);
+    }
+
+    /**
+     * Runs a call like {@link #executeAsync(Supplier, Predicate, ToLongFunction)}, but without hedging, for
+     * attempts that cannot be aborted once started (e.g. a blocking langchain4j call run on {@link AsyncTasks}):
+     * a hedge would only pay for a second request while the first one keeps its thread. When the deadline expires
+     * or the caller cancels, an attempt still waiting for a thread is dropped and a running one is interrupted.
+     *
+     * @param attempt    Starts one attempt of the call.
+     * @param retryable  Tells whether an answer is a failure worth retrying.
+     * @param retryAfter Returns the wait in milliseconds requested by a failed answer, or 0.
+     * @param <T>        The type of the answer.
+     * @return           A future completed with the first good answer.
+     */
+    public <T> CompletableFuture<T> executeUnhedgedAsync(Supplier<CompletableFuture<T>> attempt, Predicate<T> retryable,
+                                                         ToLongFunction<T> retryAfter) {
+        return executeUnhedgedAsync(startedAtOnce(attempt), retryable, retryAfter);
+    }
+
+    /**
+     * Runs a call like {@link #executeUnhedgedAsync(Supplier, Predicate, ToLongFunction)}, measuring the latency of
+     * each attempt from the moment it says it has started, as {@link #executeAsync(Attempt, Predicate, ToLongFunction)}.
+     *
+     * @param attempt    Starts one attempt of the call and runs the given callback when it really starts.
+     * @param retryable  Tells whether an answer is a failure worth retrying.
+     * @param retryAfter Returns the wait in milliseconds requested by a failed answer, or 0.
+     * @param <T>        The type of the answer.
+     * @return           A future completed with the first good answer.
+     */
+    public <T> CompletableFuture<T> executeUnhedgedAsync(Attempt<T> attempt, Predicate<T> retryable,
+                                                         ToLongFunction<T> retryAfter) {
+        return start(attempt, retryable, answer -> false, retryAfter, false);
+    }
+
+    /**
+     * Runs a blocking call on the calling thread, with retries, the retry budget, the circuit breaker and the
+     * deadline of the endpoint, but without hedging. Use it from the synchronous APIs, which may themselves run on
+     * {@link AsyncTasks}: the attempts do not need another thread of the pool. The deadline is checked between
+     * attempts; a running attempt is bounded by the timeouts of its client.
+     *
+     * @param attempt    Makes one attempt of the call.
+     * @param retryable  Tells whether an answer is a failure worth retrying.
+     * @param retryAfter Returns the wait in milliseconds requested by a failed answer, or 0.
+     * @param <T>        The type of the answer.
+     * @return           The first good answer, or the last failed one if no attempt is left.
+     * @throws Exception The exception of the last attempt or a {@link CircuitBreaker.OpenException}.
+     */
+    public <T> T executeInline(Callable<T> attempt, Predicate<T> retryable, ToLongFunction<T> retryAfter) throws Exception {
+        calls.increment();
+        retryBudget.deposit();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        T lastAnswer = null;
+        Exception lastError = null;
+        for (int started = 1; ; started++) {
+            long permit = circuitBreaker.tryAcquire();
+            if (permit == CircuitBreaker.REJECTED) {
+                rejected.increment();
+                if (lastAnswer != null) {
+                    return lastAnswer;
+                }
+                throw lastError != null ? lastError : new CircuitBreaker.OpenException(name);
+            }
+            attempts.increment();
+            long startedAt = System.nanoTime();
+            T answer = null;
+            Exception error = null;
+            try {
+                answer = attempt.call();
+            } catch (InterruptedException e) {
+                circuitBreaker.onCancelled(permit);
+                throw e;
+            } catch (Exception e) {
+                error = e;
+            }
+            if (error == null && !retryable.test(answer)) {
+                circuitBreaker.onSuccess(permit);
+                latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+                return answer;
+            }
+            if (error != null && isThrottled(error)) {
+                circuitBreaker.onCancelled(permit);
+            } else {
+                circuitBreaker.onFailure(permit);
+            }
+            if (error != null) {
+                lastError = error;
+            } else {
+                lastAnswer = answer;
+                lastError = null;
+            }
+
+            long delay = retryDelay(started, deadline, answer, error, retryAfter);
+            if (delay < 0) {
+                if (System.nanoTime() >= deadline) {
+                    deadlinesExceeded.increment();
+                }
+                if (lastAnswer != null) {
+                    return lastAnswer;
+                }
+                throw lastError;
+            }
+            retries.increment();
+            Thread.sleep(delay);
+        }
+    }
+
+    private <T> CompletableFuture<T> start(Attempt<T> attempt, Predicate<T> retryable, Predicate<T> throttled,
+                                          ToLongFunction<T> retryAfter, boolean hedge) {
+        calls.increment();
+        retryBudget.deposit();
+        ResilientCall<T> call = new ResilientCall<>(attempt, retryable, throttled, retryAfter, hedge);
+        call.start();
+        return call.result;
+    }
+
+    /**
+     * Runs a call whose answers are never failures by themselves; only exceptions are retried.
+     *
+     * @param attempt Starts one attempt of the call.
+     * @param <T>     The type of the answer.
+     * @return        A future completed with the first answer.
+     */
+    public <T> CompletableFuture<T> executeAsync(Supplier<CompletableFuture<T>> attempt) {
+        return executeAsync(attempt, answer -> false, answer -> 0L);
+    }
+
+    /**
+     * Blocking version of {@link #executeAsync(Supplier, Predicate, ToLongFunction)}.
+     *
+     * @param attempt    Starts one attempt of the call.
+     * @param retryable  Tells whether an answer is a failure worth retrying.
+     * @param retryAfter Returns the wait in milliseconds requested by a failed answer, or 0.
+     * @param <T>        The type of the answer.
+     * @return           The first good answer, or the last failed one if the deadline expired.
+     * @throws Exception The exception of the last attempt, a {@link TimeoutException} or a
+     *                   {@link CircuitBreaker.OpenException}.
+     */
+    public <T> T execute(Supplier<CompletableFuture<T>> attempt, Predicate<T> retryable,
+                         ToLongFunction<T> retryAfter) throws Exception {
+        return execute(startedAtOnce(attempt), retryable, retryAfter);
+    }
+
+    /**
+     * Blocking version of {@link #executeAsync(Attempt, Predicate, ToLongFunction)}.
+     *
+     * @param attempt    Starts one attempt of the call and runs the given callback when it really starts.
+     * @param retryable  Tells whether an answer is a failure worth retrying.
+     * @param retryAfter Returns the wait in milliseconds requested by a failed answer, or 0.
+     * @param <T>        The type of the answer.
+     * @return           The first good answer, or the last failed one if the deadline expired.
+     * @throws Exception The exception of the last attempt, a {@link TimeoutException} or a
+     *                   {@link CircuitBreaker.OpenException}.
+     */
+    public <T> T execute(Attempt<T> attempt, Predicate<T> retryable, ToLongFunction<T> retryAfter) throws Exception {
+        return execute(attempt, retryable, answer -> false, retryAfter);
+    }
+
+    /**
+     * Blocking version of {@link #executeAsync(Attempt, Predicate, Predicate, ToLongFunction)}.
+     *
+     * @param attempt    Starts one attempt of the call and runs the given callback when it really starts.
+     * @param retryable  Tells whether an answer is a failure worth retrying.
+     * @param throttled  Tells whether a failed answer is a rate limit of the credential (HTTP 429).
+     * @param retryAfter Returns the wait in milliseconds requested by a failed answer, or 0.
+     * @param <T>        The type of the answer.
+     * @return           The first good answer, or the last failed one if the deadline expired.
+     * @throws Exception The exception of the last attempt, a {@link TimeoutException} or a
+     *                   {@link CircuitBreaker.OpenException}.
+     */
+    public <T> T execute(Attempt<T> attempt, Predicate<T> retryable, Predicate<T> throttled,
+                         ToLongFunction<T> retryAfter) throws Exception {
+        CompletableFuture<T> result = executeAsync(attempt, retryable, throttled, retryAfter);
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Returns the counters of this endpoint.
+     *
+     * @return A JSONObject with the breaker "state", the "calls", "attempts", "retries", "hedges" and "hedgeWins",
+     *         the calls "rejected" by the breaker, the extra attempts denied by the exhausted "budgetExhausted",
+     *         the "deadlinesExceeded", the current "p95Millis" (or -1) and the "retryBudget" balance.
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("state", circuitBreaker.getState().name());
+        stats.put("breakerOpenings", circuitBreaker.getOpenings());
+        stats.put("calls", calls.sum());
+        stats.put("attempts", attempts.sum());
+        stats.put("retries", retries.sum());
+        stats.put("hedges", hedges.sum());
+        stats.put("hedgeWins", hedgeWins.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("budgetExhausted", budgetExhausted.sum());
+        stats.put("deadlinesExceeded", deadlinesExceeded.sum());
+        stats.put("p95Millis", latencies.quantile(0.95, 1));
+        stats.put("retryBudget", retryBudget.getBalance());
+        return stats;
+    }
+
+    /**
+     * Returns the counters of every endpoint, by name.
+     *
+     * @return A JSONObject with the statistics of each endpoint.
+     */
+    public static JSONObject getAllStats() {
+        JSONObject stats = new JSONObject();
+        for (Map.Entry<String, ResilientExecutor> entry : executors.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().getStats());
+        }
+        return stats;
+    }
+
+    private String setting(String key, String defaultValue) {
+        return System.getProperty("resilience." + name + "." + key, System.getProperty("resilience." + key, defaultValue));
+    }
+
+    private long longSetting(String key, long defaultValue) {
+        return Long.parseLong(setting(key, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Returns the backoff before the given retry (1 for the first): a random time between 0 and
+     * {@code backoffMs * 2^(retry - 1)}, capped at {@code maxBackoffMs} ("full jitter").
+     */
+    private long backoff(int retry) {
+        long ceiling = Math.min(maxBackoffMillis, backoffMillis << Math.min(retry - 1, 20));
+        return ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+    }
+
+    /**
+     * Returns the wait before the next attempt, or -1 if the call must not be retried.
+     */
+    private <T> long retryDelay(int started, long deadline, T answer, Throwable error, ToLongFunction<T> retryAfter) {
+        if (started >= maxAttempts || (error != null && !isRetryable(error))) {
+            return -1;
+        }
+        long delay = backoff(started);
+        if (error == null) {
+            delay = Math.max(delay, retryAfter.applyAsLong(answer));
+        }
+        if (TimeUnit.MILLISECONDS.toNanos(delay) >= deadline - System.nanoTime()) {
+            return -1;
+        }
+        if (!retryBudget.tryWithdraw()) {
+            budgetExhausted.increment();
+            return -1;
+        }
+        return delay;
+    }
+
+    private static boolean isRetryable(Throwable error) {
+        return !(error instanceof CircuitBreaker.OpenException)
+                && !(error instanceof IllegalArgumentException)
+                && !(error instanceof CancellationException)
+                && !(error instanceof InterruptedException);
+    }
+
+    /**
+     * Adapts an attempt that starts as soon as it is called.
+     */
+    private static <T> Attempt<T> startedAtOnce(Supplier<CompletableFuture<T>> attempt) {
+        return started -> {
+            started.run();
+            return attempt.get();
+        };
+    }
+
+    /**
+     * Tells whether an attempt failed because its credential was rate limited: a
+     * {@link RateController.ThrottledException} or an HTTP 429 from the OpenAI client, possibly wrapped.
+     */
+    private static boolean isThrottled(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof RateController.ThrottledException
+                    || (cause instanceof OpenAiHttpException && ((OpenAiHttpException) cause).code() == 429)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /**
+     * The state of one call: its attempts, the last failure and the timers.
+     */
+    private class ResilientCall<T> {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private final Attempt<T> attempt;
+        private final Predicate<T> retryable;
+        private final Predicate<T> throttled;
+        private final ToLongFunction<T> retryAfter;
+        private final boolean hedgeable;
+        private final long deadline;
+
+        // Running attempts, and whether each one is a hedge
+        private final Map<CompletableFuture<T>, Boolean> running = new IdentityHashMap<>();
+        private int started;
+        private boolean retryPending;
+        private boolean done;
+        private T lastAnswer;
+        private Throwable lastError;
+        private ScheduledFuture<?> deadlineTimer;
+
+        ResilientCall(Attempt<T> attempt, Predicate<T> retryable, Predicate<T> throttled, ToLongFunction<T> retryAfter,
+                      boolean hedge) {
+            this.attempt = attempt;
+            this.retryable = retryable;
+            this.throttled = throttled;
+            this.retryAfter = retryAfter;
+            this.hedgeable = hedge;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        }
+
+        void start() {
+            result.whenComplete((answer, error) -> {
+                if (result.isCancelled()) {
+                    finish(null, null);
+                }
+            });
+            ScheduledFuture<?> timer = ResilientExecutor.timer.schedule(this::onDeadline, deadlineMillis, TimeUnit.MILLISECONDS);
+            synchronized (this) {
+                deadlineTimer = timer;
+            }
+            launch(false);
+        }
+
+        private void launch(boolean hedge) {
+            T answer;
+            Throwable error;
+            long permit;
+            synchronized (this) {
+                if (!hedge) {
+                    retryPending = false;
+                }
+                if (done) {
+                    return;
+                }
+                permit = circuitBreaker.tryAcquire();
+                if (permit != CircuitBreaker.REJECTED) {
+                    started++;
+                    attempts.increment();
+                    answer = null;
+                    error = null;
+                } else if (hedge || !running.isEmpty()) {
+                    return;
+                } else {
+                    answer = lastAnswer;
+                    error = lastError != null ? lastError : new CircuitBreaker.OpenException(name);
+                }
+            }
+            if (answer != null || error != null) {
+                rejected.increment();
+                finish(answer, answer != null ? null : error);
+                return;
+            }
+
+            // Until the attempt says it has started, its latency counts from now
+            AtomicLong startedAt = new AtomicLong(System.nanoTime());
+            AtomicBoolean begun = new AtomicBoolean();
+            Runnable started = () -> {
+                if (begun.compareAndSet(false, true)) {
+                    startedAt.set(System.nanoTime());
+                    if (!hedge) {
+                        scheduleHedge();
+                    }
+                }
+            };
+            CompletableFuture<T> future;
+            try {
+                future = attempt.start(started);
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            boolean abandoned;
+            synchronized (this) {
+                abandoned = done;
+                if (!abandoned) {
+                    running.put(future, hedge);
+                }
+            }
+            if (abandoned) {
+                future.cancel(true);
+            }
+            CompletableFuture<T> attemptFuture = future;
+            future.whenComplete((value, failure) -> onAttemptDone(attemptFuture, hedge, permit, startedAt.get(), value, failure));
+        }
+
+        private void scheduleHedge() {
+            if (!hedgeable) {
+                return;
+            }
+            long delay = latencies.quantile(hedgeQuantile, MIN_LATENCY_SAMPLES);
+            if (delay < 0) {
+                return;
+            }
+            delay = Math.max(delay, hedgeMinDelayMillis);
+            if (TimeUnit.MILLISECONDS.toNanos(delay) >= deadline - System.nanoTime()) {
+                return;
+            }
+            timer.schedule(() -> {
+                synchronized (this) {
+                    if (done || running.size() != 1 || retryPending) {
+                        return;
+                    }
+                }
+                if (!retryBudget.tryWithdraw()) {
+                    budgetExhausted.increment();
+                    return;
+                }
+                hedges.increment();
+                launch(true);
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void onAttemptDone(CompletableFuture<T> future, boolean hedge, long permit, long startedAt, T answer,
+                                   Throwable error) {
+            if (future.isCancelled()) {
+                circuitBreaker.onCancelled(permit);
+                synchronized (this) {
+                    running.remove(future);
+                }
+                return;
+            }
+            error = error != null ? unwrap(error) : null;
+            boolean failed = error != null || retryable.test(answer);
+            if (failed && (error != null ? isThrottled(error) : throttled.test(answer))) {
+                // A rate limit of one credential is not a failure of the endpoint
+                circuitBreaker.onCancelled(permit);
+            } else if (failed) {
+                circuitBreaker.onFailure(permit);
+            } else {
+                circuitBreaker.onSuccess(permit);
+                latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+            }
+
+            long delay;
+            synchronized (this) {
+                running.remove(future);
+                if (done) {
+                    return;
+                }
+                if (!failed) {
+                    delay = -1;
+                } else {
+                    if (error != null) {
+                        lastError = error;
+                    } else {
+                        lastAnswer = answer;
+                        lastError = null;
+                    }
+                    if (!running.isEmpty()) {
+                        // The other attempt of a hedged call may still succeed
+                        return;
+                    }
+                    delay = retryDelay(started, deadline, answer, error, retryAfter);
+                    if (delay >= 0) {
+                        retryPending = true;
+                    }
+                }
+            }
+
+            if (!failed) {
+                if (hedge) {
+                    hedgeWins.increment();
+                }
+                finish(answer, null);
+            } else if (delay < 0) {
+                finish(lastAnswer, lastAnswer != null ? null : lastError);
+            } else {
+                retries.increment();
+                timer.schedule(() -> launch(false), delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+
+        private void onDeadline() {
+            T answer;
+            Throwable error;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                answer = lastAnswer;
+                error = lastError;
+            }
+            deadlinesExceeded.increment();
+            if (answer != null) {
+                finish(answer, null);
+            } else {
+                TimeoutException timeout = new TimeoutException("Deadline of " + deadlineMillis + " ms exceeded for " + name);
+                if (error != null) {
+                    timeout.initCause(error);
+                }
+                finish(null, timeout);
+            }
+        }
+
+        private void finish(T answer, Throwable error) {
+            List<CompletableFuture<T>> abandoned;
+            ScheduledFuture<?> timer;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                abandoned = new ArrayList<>(running.keySet());
+                timer = deadlineTimer;
+            }
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            for (CompletableFuture<T> future : abandoned) {
+                future.cancel(true);
+            }
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(answer);
+            }
+        }
+    }
+
+    /**
+     * The latencies of the last successful attempts, used to compute the hedging delay.
+     */
+    private static class LatencyWindow {
+        // The quantile is recomputed after this many new samples
+        private static final int RECOMPUTE_INTERVAL = 16;
+
+        private final long[] samples;
+        private int position;
+        private int count;
+        private int sinceSorted = RECOMPUTE_INTERVAL;
+        private long[] sorted = new long[0];
+
+        LatencyWindow(int size) {
+            this.samples = new long[size];
+        }
+
+        synchronized void record(long millis) {
+            samples[position] = millis;
+            position = (position + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+            sinceSorted++;
+        }
+
+        /**
+         * Returns a quantile of the recorded latencies, or -1 if there are fewer than the minimum samples.
+         */
+        synchronized long quantile(double q, int minSamples) {
+            if (count < minSamples) {
+                return -1;
+            }
+            if (sinceSorted >= RECOMPUTE_INTERVAL || sorted.length != count) {
+                sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                sinceSorted = 0;
+            }
+            int index = (int) Math.ceil(q * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package org.example;
+
+import org.json.JSONObject;
+
+import java.text.Normalizer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class caches the answers of the language model so repeated questions do not cost a new GPT round trip.
+ * It has two tiers:
+ * <ul>
+ *     <li>An exact tier, keyed by a hash of the API key, model, temperature, max_tokens and the normalized prompt,
+ *     so an answer is only returned to callers of the same account. Used by {@link ChatGPTQueryService#search}.</li>
+ *     <li>A semantic tier, which stores the embedding of each question and returns a cached answer when a
+ *     new question's embedding is similar enough (cosine similarity above a threshold). Used by
+ *     {@link ChatGPTQueryService#searchOnPinecone}, which already computes the question embedding.</li>
+ * </ul>
+ * Both tiers are bounded in number of entries, expire entries after a TTL and evict the least recently used
+ * entry when full. Hit and miss counters are available through {@link #getStats()}.
+ *
+ * Settings are read from system properties when the class is loaded: {@code llm.cache.enabled} (default true),
+ * {@code llm.cache.ttlMs} (default one hour), {@code llm.cache.maxEntries} (default 1000),
+ * {@code llm.cache.semantic.maxEntries} (default 1000) and {@code llm.cache.semantic.threshold} (default 0.95).
+ */
+public class ResponseCache {
+
+    private static final boolean enabled = Boolean.parseBoolean(System.getProperty("llm.cache.enabled", "true"));
+    private static final long ttlMillis = Long.getLong("llm.cache.ttlMs", 60 * 60_000L);
+    private static final int maxExactEntries = Integer.getInteger("llm.cache.maxEntries", 1000);
+    private static final int maxSemanticEntries = Integer.getInteger("llm.cache.semantic.maxEntries", 1000);
+
+    private static volatile double similarityThreshold =
+            Double.parseDouble(System.getProperty("llm.cache.semantic.threshold", "0.95"));
+
+    // Access-ordered maps, so iteration starts at the least recently used entry
+    private static final LinkedHashMap<String, CachedResponse> exactTier = new LinkedHashMap<>(16, 0.75f, true);
+    private static final LinkedHashMap<Long, SemanticEntry> semanticTier = new LinkedHashMap<>(16, 0.75f, true);
+    private static long nextSemanticId;
+
+    private static final LongAdder exactHits = new LongAdder();
+    private static final LongAdder exactMisses = new LongAdder();
+    private static final LongAdder semanticHits = new LongAdder();
+    private static final LongAdder semanticMisses = new LongAdder();
+
+    /**
+     * A cached answer. The JSON is kept serialized so every hit returns an independent copy to the caller.
+     */
+    private static class CachedResponse {
+        final String json;
+        final long expirationTime;
+
+        CachedResponse(JSONObject response) {
+            this.json = response.toString();
+            this.expirationTime = System.currentTimeMillis() + ttlMillis;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expirationTime;
+        }
+    }
+
+    /**
+     * A cached answer of the semantic tier, with the unit-length embedding of its question and the scope
+     * (model and knowledge source) the answer is valid for.
+     */
+    private static class SemanticEntry extends CachedResponse {
+        final String scope;
+        final float[] embedding;
+
+        SemanticEntry(String scope, float[] embedding, JSONObject response) {
+            super(response);
+            this.scope = scope;
+            this.embedding = embedding;
+        }
+    }
+
+    /**
+     * Indicates whether the cache is enabled ({@code llm.cache.enabled}).
+     *
+     * @return True if answers are cached and looked up, otherwise false.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets the minimum cosine similarity between two questions for the semantic tier to reuse an answer.
+     *
+     * @param threshold A value between -1 and 1; values close to 1 only match near-identical questions.
+     */
+    public static void setSimilarityThreshold(double threshold) {
+        similarityThreshold = threshold;
+    }
+
+    /**
+     * Builds the exact-tier key of a query: a SHA-256 hash of the hashed API key, the model parameters and the
+     * prompt, with surrounding whitespace removed, inner whitespace collapsed and Unicode normalized.
+     *
+     * @param apiKey      The API key the query is sent with.
+     * @param model       The model name.
+     * @param temperature The sampling temperature.
+     * @param max_tokens  The maximum number of tokens of the answer.
+     * @param prompt      The prompt sent to the model.
+     * @return            The cache key.
+     */
+    public static String exactKey(String apiKey, String model, double temperature, int max_tokens, String prompt) {
+        String normalized = Normalizer.normalize(prompt, Normalizer.Form.NFC).trim().replaceAll("\\s+", " ");
+        return Hashes.sha256Hex(Hashes.sha256Hex(apiKey) + '\u0000' + model + '\u0000' + temperature + '\u0000'
+                + max_tokens + '\u0000' + normalized);
+    }
+
+    /**
+     * Returns a copy of the cached answer for the given exact key, or null if there is none or it expired.
+     *
+     * @param key The key built with {@link #exactKey}.
+     * @return    The cached JSONObject, or null.
+     */
+    public static JSONObject getExact(String key) {
+        if (!enabled) {
+            return null;
+        }
+        CachedResponse cached;
+        synchronized (exactTier) {
+            cached = exactTier.get(key);
+            if (cached != null && cached.isExpired(System.currentTimeMillis())) {
+                exactTier.remove(key);
+                cached = null;
+            }
+        }
+        if (cached == null) {
+            exactMisses.increment();
+            return null;
+        }
+        exactHits.increment();
+        return new JSONObject(cached.json);
+    }
+
+    /**
+     * Stores an answer in the exact tier, evicting the least recently used entry if the tier is full.
+     *
+     * @param key      The key built with {@link #exactKey}.
+     * @param response The answer to cache.
+     */
+    public static void putExact(String key, JSONObject response) {
+        if (!enabled) {
+            return;
+        }
+        CachedResponse cached = new CachedResponse(response);
+        synchronized (exactTier) {
+            exactTier.put(key, cached);
+            evict(exactTier, maxExactEntries);
+        }
+    }
+
+    /**
+     * Looks for a cached answer to a question similar to the given one, within the same scope.
+     *
+     * @param scope     Identifies what the answer depends on besides the question (e.g. model, API keys and Pinecone
+     *                  namespace).
+     * @param embedding The embedding of the new question.
+     * @return          A copy of the most similar cached answer above the similarity threshold, or null.
+     */
+    public static JSONObject getSimilar(String scope, float[] embedding) {
+        if (!enabled) {
+            return null;
+        }
+        float[] query = Vectors.normalize(embedding);
+        long now = System.currentTimeMillis();
+        Long bestId = null;
+        SemanticEntry best = null;
+        double bestScore = similarityThreshold;
+
+        synchronized (semanticTier) {
+            Iterator<Map.Entry<Long, SemanticEntry>> entries = semanticTier.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Long, SemanticEntry> entry = entries.next();
+                SemanticEntry candidate = entry.getValue();
+                if (candidate.isExpired(now)) {
+                    entries.remove();
+                    continue;
+                }
+                if (!candidate.scope.equals(scope) || candidate.embedding.length != query.length) {
+                    continue;
+                }
+                double score = Vectors.dot(query, candidate.embedding);
+                if (score >= bestScore) {
+                    bestScore = score;
+                    bestId = entry.getKey();
+                    best = candidate;
+                }
+            }
+            if (bestId != null) {
+                // Mark the entry as recently used
+                semanticTier.get(bestId);
+            }
+        }
+
+        if (best == null) {
+            semanticMisses.increment();
+            return null;
+        }
+        semanticHits.increment();
+        return new JSONObject(best.json);
+    }
+
+    /**
+     * Stores an answer in the semantic tier, evicting the least recently used entry if the tier is full.
+     *
+     * @param scope     Identifies what the answer depends on besides the question.
+     * @param embedding The embedding of the question.
+     * @param response  The answer to cache.
+     */
+    public static void putSimilar(String scope, float[] embedding, JSONObject response) {
+        if (!enabled) {
+            return;
+        }
+        SemanticEntry entry = new SemanticEntry(scope, Vectors.normalize(embedding), response);
+        synchronized (semanticTier) {
+            semanticTier.put(nextSemanticId++, entry);
+            evict(semanticTier, maxSemanticEntries);
+        }
+    }
+
+    /**
+     * Removes every cached answer from both tiers. The counters are kept.
+     */
+    public static void clear() {
+        synchronized (exactTier) {
+            exactTier.clear();
+        }
+        synchronized (semanticTier) {
+            semanticTier.clear();
+        }
+    }
+
+    /**
+     * Returns the hit and miss counters and the current size of each tier.
+     *
+     * @return A JSONObject with the "exact" and "semantic" statistics.
+     */
+    public static JSONObject getStats() {
+        JSONObject exact = new JSONObject();
+        exact.put("hits", exactHits.sum());
+        exact.put("misses", exactMisses.sum());
+        synchronized (exactTier) {
+            exact.put("size", exactTier.size());
+        }
+
+        JSONObject semantic = new JSONObject();
+        semantic.put("hits", semanticHits.sum());
+        semantic.put("misses", semanticMisses.sum());
+        synchronized (semanticTier) {
+            semantic.put("size", semanticTier.size());
+        }
+
+        JSONObject stats = new JSONObject();
+        stats.put("exact", exact);
+        stats.put("semantic", semantic);
+        return stats;
+    }
+
+    private static <K, V> void evict(LinkedHashMap<K, V> tier, int maxEntries) {
+        Iterator<K> eldest = tier.keySet().iterator();
+        while (tier.size() > maxEntries && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+}
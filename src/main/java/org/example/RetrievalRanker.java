@@ -0,0 +1,204 @@
+package org.example;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * This class combines the matches of several vector searches into one ranked list of passages:
+ * <ul>
+ *     <li>{@link #merge} merges lists already sorted by score with a heap-based k-way merge;</li>
+ *     <li>{@link #removeNearDuplicates} drops passages almost identical to a better one;</li>
+ *     <li>{@link #maximalMarginalRelevance} picks passages that are relevant to the query but different from
+ *     each other (MMR), so the context does not repeat the same fact several times.</li>
+ * </ul>
+ * The similarity between two passages is the cosine similarity of their embeddings when the store returned
+ * them, or the Jaccard similarity of their words otherwise.
+ */
+public class RetrievalRanker {
+
+    private static final Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    /**
+     * A match together with the index and namespace it comes from.
+     */
+    public static class SourcedMatch {
+        public final EmbeddingMatch<TextSegment> match;
+        public final String source;
+        private float[] unitVector;
+        private Set<String> words;
+
+        /**
+         * Creates a match of a source.
+         *
+         * @param match  The match returned by the embedding store.
+         * @param source The index and namespace of the store, as "index/namespace".
+         */
+        public SourcedMatch(EmbeddingMatch<TextSegment> match, String source) {
+            this.match = match;
+            this.source = source;
+        }
+
+        /**
+         * Returns the relevance score of the match, from 0 to 1.
+         *
+         * @return The score.
+         */
+        public double score() {
+            return match.score();
+        }
+
+        /**
+         * Returns the text of the matched passage.
+         *
+         * @return The text, or an empty string if the store returned none.
+         */
+        public String text() {
+            return match.embedded() != null ? match.embedded().text() : "";
+        }
+
+        float[] unitVector() {
+            Embedding embedding = match.embedding();
+            if (unitVector == null && embedding != null) {
+                unitVector = Vectors.normalize(embedding.vector());
+            }
+            return unitVector;
+        }
+
+        Set<String> words() {
+            if (words == null) {
+                words = new HashSet<>();
+                for (String word : NON_WORD.split(text().toLowerCase(Locale.ROOT))) {
+                    if (!word.isEmpty()) {
+                        words.add(word);
+                    }
+                }
+            }
+            return words;
+        }
+    }
+
+    /**
+     * Merges lists of matches, each sorted by descending score, into one list sorted by descending score.
+     * Only the head of every list is kept in the heap, so the merge costs O(n log k) for k lists.
+     *
+     * @param lists The lists to merge.
+     * @param limit The maximum number of matches to return.
+     * @return      The best matches of all the lists, best first.
+     */
+    public static List<SourcedMatch> merge(List<List<SourcedMatch>> lists, int limit) {
+        // Each heap entry is {list, position}
+        PriorityQueue<int[]> heads = new PriorityQueue<>(Math.max(1, lists.size()),
+                (a, b) -> Double.compare(lists.get(b[0]).get(b[1]).score(), lists.get(a[0]).get(a[1]).score()));
+        for (int i = 0; i < lists.size(); i++) {
+            if (!lists.get(i).isEmpty()) {
+                heads.add(new int[]{i, 0});
+            }
+        }
+
+        List<SourcedMatch> merged = new ArrayList<>();
+        while (!heads.isEmpty() && merged.size() < limit) {
+            int[] head = heads.poll();
+            List<SourcedMatch> list = lists.get(head[0]);
+            merged.add(list.get(head[1]));
+            if (head[1] + 1 < list.size()) {
+                heads.add(new int[]{head[0], head[1] + 1});
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Drops matches whose id was already seen or that are at least as similar as the threshold to a better match.
+     *
+     * @param matches   The matches, best first.
+     * @param threshold The similarity (0 to 1) from which two passages are considered duplicates.
+     * @return          The remaining matches, in the same order.
+     */
+    public static List<SourcedMatch> removeNearDuplicates(List<SourcedMatch> matches, double threshold) {
+        List<SourcedMatch> kept = new ArrayList<>();
+        Set<String> ids = new HashSet<>();
+        for (SourcedMatch candidate : matches) {
+            String id = candidate.match.embeddingId();
+            if (id != null && !ids.add(candidate.source + "/" + id)) {
+                continue;
+            }
+            boolean duplicate = false;
+            for (SourcedMatch other : kept) {
+                if (similarity(candidate, other) >= threshold) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (!duplicate) {
+                kept.add(candidate);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Selects matches with Maximal Marginal Relevance: each step picks the match maximizing
+     * {@code lambda * relevance - (1 - lambda) * (highest similarity to an already selected match)}.
+     *
+     * @param matches The candidate matches.
+     * @param topK    The number of matches to select.
+     * @param lambda  The weight of relevance against diversity, from 0 (only diversity) to 1 (only relevance).
+     * @return        The selected matches, in selection order.
+     */
+    public static List<SourcedMatch> maximalMarginalRelevance(List<SourcedMatch> matches, int topK, double lambda) {
+        List<SourcedMatch> remaining = new ArrayList<>(matches);
+        List<SourcedMatch> selected = new ArrayList<>();
+        // Highest similarity of every remaining candidate to the selected ones, updated after each pick
+        double[] redundancy = new double[remaining.size()];
+
+        while (selected.size() < topK && !remaining.isEmpty()) {
+            int best = -1;
+            double bestValue = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < remaining.size(); i++) {
+                double value = lambda * remaining.get(i).score() - (1 - lambda) * redundancy[i];
+                if (value > bestValue) {
+                    bestValue = value;
+                    best = i;
+                }
+            }
+
+            SourcedMatch picked = remaining.remove(best);
+            System.arraycopy(redundancy, best + 1, redundancy, best, remaining.size() - best);
+            selected.add(picked);
+            for (int i = 0; i < remaining.size(); i++) {
+                redundancy[i] = Math.max(redundancy[i], similarity(remaining.get(i), picked));
+            }
+        }
+        return selected;
+    }
+
+    static double similarity(SourcedMatch a, SourcedMatch b) {
+        float[] va = a.unitVector();
+        float[] vb = b.unitVector();
+        if (va != null && vb != null && va.length == vb.length) {
+            return Vectors.dot(va, vb);
+        }
+
+        Set<String> wa = a.words();
+        Set<String> wb = b.words();
+        if (wa.isEmpty() && wb.isEmpty()) {
+            return 1.0;
+        }
+        int common = 0;
+        for (String word : wa.size() < wb.size() ? wa : wb) {
+            if ((wa.size() < wb.size() ? wb : wa).contains(word)) {
+                common++;
+            }
+        }
+        return (double) common / (wa.size() + wb.size() - common);
+    }
+}
@@ -0,0 +1,71 @@
+package org.example;
+
+/**
+ * This class caps the extra requests (retries and hedged duplicates) sent to an endpoint, so that they stay a
+ * small share of the traffic and cannot multiply the load on a service that is already struggling.
+ *
+ * Every original request deposits {@code ratio} tokens (e.g. 0.1), every extra request withdraws one token, and
+ * {@code minPerSecond} tokens are added every second so that endpoints with little traffic can still retry.
+ * The balance never exceeds {@code maxBalance}, which bounds the size of a burst of retries.
+ */
+public class RetryBudget {
+
+    private final double ratio;
+    private final double minPerSecond;
+    private final double maxBalance;
+
+    private double balance;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * Creates a full budget.
+     *
+     * @param ratio        The tokens deposited by every original request: the long-run share of extra requests.
+     * @param minPerSecond The tokens added every second regardless of traffic.
+     * @param maxBalance   The maximum number of tokens that can be saved.
+     */
+    public RetryBudget(double ratio, double minPerSecond, double maxBalance) {
+        this.ratio = ratio;
+        this.minPerSecond = minPerSecond;
+        this.maxBalance = maxBalance;
+        this.balance = maxBalance;
+    }
+
+    /**
+     * Records an original request.
+     */
+    public synchronized void deposit() {
+        refill();
+        balance = Math.min(maxBalance, balance + ratio);
+    }
+
+    /**
+     * Takes a token for an extra request.
+     *
+     * @return True if the extra request may be sent, false if the budget is exhausted.
+     */
+    public synchronized boolean tryWithdraw() {
+        refill();
+        if (balance < 1) {
+            return false;
+        }
+        balance -= 1;
+        return true;
+    }
+
+    /**
+     * Returns the tokens currently available.
+     *
+     * @return The balance of the budget.
+     */
+    public synchronized double getBalance() {
+        refill();
+        return balance;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        balance = Math.min(maxBalance, balance + (now - lastRefill) / 1e9 * minPerSecond);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,184 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * The rules of a site's robots.txt that apply to one user agent.
+ *
+ * The group of the most specific matching {@code User-agent} line is used, or the {@code *} group otherwise.
+ * A path is allowed unless a {@code Disallow} rule matches it, and when both an {@code Allow} and a
+ * {@code Disallow} rule match, the longest one wins. Rules support the {@code *} and {@code $} wildcards.
+ * The {@code Crawl-delay} of the group is also read.
+ */
+public class RobotsTxt {
+
+    /** Rules that allow every path, used when a site has no robots.txt. */
+    public static final RobotsTxt ALLOW_ALL = new RobotsTxt(new ArrayList<>(), 0);
+    /** Rules that disallow every path, used when the robots.txt of a site cannot be read. */
+    public static final RobotsTxt DISALLOW_ALL = new RobotsTxt(singleRule(new Rule("/", false)), 0);
+
+    private final List<Rule> rules;
+    private final long crawlDelayMillis;
+
+    private static class Rule {
+        final String path;
+        final boolean allow;
+        final Pattern pattern;
+
+        Rule(String path, boolean allow) {
+            this.path = path;
+            this.allow = allow;
+            this.pattern = path.contains("*") || path.endsWith("$") ? toPattern(path) : null;
+        }
+
+        boolean matches(String target) {
+            return pattern != null ? pattern.matcher(target).lookingAt() : target.startsWith(path);
+        }
+
+        private static Pattern toPattern(String path) {
+            boolean anchored = path.endsWith("$");
+            String body = anchored ? path.substring(0, path.length() - 1) : path;
+            StringBuilder regex = new StringBuilder();
+            for (String part : body.split("\\*", -1)) {
+                if (regex.length() > 0) {
+                    regex.append(".*");
+                }
+                regex.append(Pattern.quote(part));
+            }
+            if (anchored) {
+                regex.append('$');
+            }
+            return Pattern.compile(regex.toString());
+        }
+    }
+
+    private RobotsTxt(List<Rule> rules, long crawlDelayMillis) {
+        this.rules = rules;
+        this.crawlDelayMillis = crawlDelayMillis;
+    }
+
+    private static List<Rule> singleRule(Rule rule) {
+        List<Rule> rules = new ArrayList<>();
+        rules.add(rule);
+        return rules;
+    }
+
+    /**
+     * Parses a robots.txt file for a user agent.
+     *
+     * @param content   The content of the robots.txt file.
+     * @param userAgent The product token of the crawler (e.g. "MyCrawler"), matched case-insensitively.
+     * @return          The rules that apply to the user agent.
+     */
+    public static RobotsTxt parse(String content, String userAgent) {
+        String agent = userAgent.toLowerCase(Locale.ROOT);
+        List<Rule> specificRules = new ArrayList<>();
+        List<Rule> defaultRules = new ArrayList<>();
+        long specificDelay = -1;
+        long defaultDelay = -1;
+        int specificMatch = 0;
+
+        // Consecutive User-agent lines open a group, which the rules that follow belong to
+        boolean inAgentLines = false;
+        boolean groupIsDefault = false;
+        int groupMatch = 0;
+        boolean inGroup = false;
+
+        for (String rawLine : content.split("\r?\n|\r")) {
+            int comment = rawLine.indexOf('#');
+            String line = (comment >= 0 ? rawLine.substring(0, comment) : rawLine).trim();
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String field = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(colon + 1).trim();
+
+            if (field.equals("user-agent")) {
+                if (!inAgentLines) {
+                    groupIsDefault = false;
+                    groupMatch = 0;
+                    inGroup = true;
+                    inAgentLines = true;
+                }
+                String token = value.toLowerCase(Locale.ROOT);
+                if (token.equals("*")) {
+                    groupIsDefault = true;
+                } else if (!token.isEmpty() && agent.startsWith(token) && token.length() > groupMatch) {
+                    groupMatch = token.length();
+                }
+                continue;
+            }
+            if (inAgentLines && groupMatch > specificMatch) {
+                // A more specific group than any before: only its rules apply
+                specificRules.clear();
+                specificMatch = groupMatch;
+            }
+            inAgentLines = false;
+            if (!inGroup) {
+                continue;
+            }
+
+            if (field.equals("crawl-delay")) {
+                long delay;
+                try {
+                    delay = (long) (Double.parseDouble(value) * 1000);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (groupMatch > 0 && groupMatch == specificMatch) {
+                    specificDelay = delay;
+                } else if (groupIsDefault) {
+                    defaultDelay = delay;
+                }
+                continue;
+            }
+            // An empty Disallow allows everything and adds no rule
+            if (!(field.equals("allow") || field.equals("disallow")) || value.isEmpty()) {
+                continue;
+            }
+
+            Rule rule = new Rule(value, field.equals("allow"));
+            if (groupMatch > 0 && groupMatch == specificMatch) {
+                specificRules.add(rule);
+            } else if (groupIsDefault && groupMatch == 0) {
+                defaultRules.add(rule);
+            }
+        }
+
+        if (specificMatch > 0) {
+            return new RobotsTxt(specificRules, Math.max(0, specificDelay));
+        }
+        return new RobotsTxt(defaultRules, Math.max(0, defaultDelay));
+    }
+
+    /**
+     * Indicates whether a path may be crawled.
+     *
+     * @param pathAndQuery The path of the URL, with its query string if any (e.g. "/help/article?id=3").
+     * @return             True if the path is allowed, otherwise false.
+     */
+    public boolean isAllowed(String pathAndQuery) {
+        Rule best = null;
+        for (Rule rule : rules) {
+            if (rule.matches(pathAndQuery)
+                    && (best == null || rule.path.length() > best.path.length()
+                    || rule.path.length() == best.path.length() && rule.allow)) {
+                best = rule;
+            }
+        }
+        return best == null || best.allow;
+    }
+
+    /**
+     * Returns the Crawl-delay requested by the site.
+     *
+     * @return The delay between requests in milliseconds, or 0 if none was given.
+     */
+    public long getCrawlDelayMillis() {
+        return crawlDelayMillis;
+    }
+}
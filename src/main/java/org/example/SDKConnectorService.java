@@ -1,11 +1,13 @@
 package org.example;
 
-import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import org.json.JSONObject;
 
-import java.util.Base64;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 
 import static org.example.TokenService.generateTkn;
 
@@ -16,9 +18,15 @@ import static org.example.TokenService.generateTkn;
  */
 public class SDKConnectorService {
 
+    // Coalesces identical GETs that miss the SdpResponseCache at the same time
+    private static final SingleFlight<JSONObject> sdpFlight = new SingleFlight<>("sdp", SingleFlight::copyJson);
+
     /**
      * Sends a GET request to the specified URL using an OAuth token generated through Zoho's API
-     * and returns the result as a JSONObject.
+     * and returns the result as a JSONObject. Successful responses are kept in the {@link SdpResponseCache} for
+     * the TTL of their endpoint, and identical requests running at the same time share one round trip. The
+     * credentials are always checked first through {@link TokenService#generateTkn} (normally a cache lookup),
+     * so cached data is only returned to callers that could have fetched it.
      *
      * @param url           The URL to which the GET request will be sent.
      * @param code          The authorization code required for OAuth token generation.
@@ -29,35 +37,199 @@ public class SDKConnectorService {
      * @throws Exception    If an error occurs during token generation or while sending the HTTP request.
      */
     public static JSONObject invokeGetTkn(String url, String code, String client_id, String client_secret) throws Exception {
-        OkHttpClient client = new OkHttpClient();
+        String accessToken = generateTkn(code, client_id, client_secret).getString("access_token");
+        JSONObject cached = SdpResponseCache.get(url, client_id, () -> fetchAsync(url, accessToken, client_id));
+        if (cached != null) {
+            return cached;
+        }
+        return sdpFlight.execute(client_id + '\u0000' + url, () -> {
+            long generation = SdpResponseCache.generation();
+            JSONObject jsonResponse = fetch(url, accessToken, client_id);
+            SdpResponseCache.put(url, client_id, generation, jsonResponse);
+            return jsonResponse;
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #invokeGetTkn}. The token is obtained on {@link AsyncTasks} (normally from
+     * the token cache) and the request waits in the HTTP dispatcher without holding a thread.
+     *
+     * @param url           The URL to which the GET request will be sent.
+     * @param code          The authorization code required for OAuth token generation.
+     * @param client_id     The client ID for OAuth token generation.
+     * @param client_secret The client secret for OAuth token generation.
+     * @return              A future completed with the same JSONObject returned by {@link #invokeGetTkn}.
+     */
+    public static CompletableFuture<JSONObject> invokeGetTknAsync(String url, String code, String client_id, String client_secret) {
+        return AsyncTasks.supply(() -> generateTkn(code, client_id, client_secret).getString("access_token"))
+                .thenCompose(accessToken -> {
+                    JSONObject cached = SdpResponseCache.get(url, client_id, () -> fetchAsync(url, accessToken, client_id));
+                    if (cached != null) {
+                        return CompletableFuture.completedFuture(cached);
+                    }
+                    return sdpFlight.executeAsync(client_id + '\u0000' + url, () -> {
+                        long generation = SdpResponseCache.generation();
+                        return fetchAsync(url, accessToken, client_id).thenApply(jsonResponse -> {
+                            SdpResponseCache.put(url, client_id, generation, jsonResponse);
+                            return jsonResponse;
+                        });
+                    });
+                });
+    }
 
-        Request request = new Request.Builder()
+    /**
+     * Sends the GET request of {@link #invokeGetTkn} without the cache.
+     */
+    private static JSONObject fetch(String url, String accessToken, String client_id) {
+        Request request = buildRequest(url, accessToken);
+
+        try {
+            return RateController.forUpstream("sdp", client_id).execute(0, () -> {
+                try (Response output = HttpClientProvider.getClient().newCall(request).execute()) {
+                    return readResponse(output);
+                }
+            }, SDKConnectorService::reportOutcome);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            return exceptionResponse(e);
+        }
+    }
+
+    /**
+     * Sends the GET request of {@link #invokeGetTknAsync} without the cache.
+     */
+    private static CompletableFuture<JSONObject> fetchAsync(String url, String accessToken, String client_id) {
+        return RateController.forUpstream("sdp", client_id)
+                .executeAsync(0, () -> HttpClientProvider.executeAsync(HttpClientProvider.getClient(),
+                        buildRequest(url, accessToken), SDKConnectorService::readResponse), SDKConnectorService::reportOutcome)
+                .exceptionally(e -> exceptionResponse(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e));
+    }
+
+    /**
+     * Sends a GET request like {@link #invokeGetTkn}, but streams the elements of a list in the payload to the
+     * consumer instead of building the whole payload in memory: each element of the array field (e.g. "requests"
+     * in a list of requests) is passed to the consumer as soon as it has been read. Use it for large lists.
+     * Streamed responses are not cached.
+     *
+     * @param url           The URL to which the GET request will be sent.
+     * @param code          The authorization code required for OAuth token generation.
+     * @param client_id     The client ID for OAuth token generation.
+     * @param client_secret The client secret for OAuth token generation.
+     * @param arrayField    The name of the top-level array of the payload whose elements are streamed.
+     * @param consumer      Receives each element of the array, in order (normally JSONObjects).
+     * @return              A JSONObject like the one returned by {@link #invokeGetTkn}, whose "data" holds every
+     *                      top-level field of the payload except the streamed array (e.g. "list_info").
+     * @throws Exception    If an error occurs during token generation.
+     */
+    public static JSONObject invokeGetTknStreaming(String url, String code, String client_id, String client_secret,
+                                                   String arrayField, Consumer<Object> consumer) throws Exception {
+        Request request = buildRequest(url, generateTkn(code, client_id, client_secret).getString("access_token"));
+
+        try {
+            return RateController.forUpstream("sdp", client_id).execute(0, () -> {
+                try (Response output = HttpClientProvider.getClient().newCall(request).execute()) {
+                    if (!output.isSuccessful()) {
+                        return errorResponse(output);
+                    }
+                    JSONObject jsonResponse = new JSONObject();
+                    jsonResponse.put("statusCode", output.code());
+                    jsonResponse.put("status", "success");
+                    jsonResponse.put("data", JsonStreams.forEachElement(output.body().byteStream(), arrayField, consumer));
+                    return jsonResponse;
+                }
+            }, SDKConnectorService::reportOutcome);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            return exceptionResponse(e);
+        }
+    }
+
+    /**
+     * Lists every record of a ServiceDesk Plus list endpoint page by page, prefetching the next pages while the
+     * caller processes the current one. See {@link SdpListIterator}.
+     *
+     * @param url           The URL of the list endpoint (e.g. "https://sdp.example.com/api/v3/requests").
+     * @param code          The authorization code required for OAuth token generation.
+     * @param client_id     The client ID for OAuth token generation.
+     * @param client_secret The client secret for OAuth token generation.
+     * @return              An iterator over the records, to be closed if it is not read to the end.
+     */
+    public static SdpListIterator listAll(String url, String code, String client_id, String client_secret) {
+        return new SdpListIterator(url, code, client_id, client_secret, -1);
+    }
+
+    /**
+     * Lists the records of a ServiceDesk Plus list endpoint modified at or after the given time, oldest change
+     * first, for incremental syncs. Pass {@link SdpListIterator#getHighWaterMark()} of the previous sync as the
+     * start of the next one.
+     *
+     * @param url           The URL of the list endpoint (e.g. "https://sdp.example.com/api/v3/requests").
+     * @param code          The authorization code required for OAuth token generation.
+     * @param client_id     The client ID for OAuth token generation.
+     * @param client_secret The client secret for OAuth token generation.
+     * @param sinceMillis   The modification time to start from, in epoch milliseconds.
+     * @return              An iterator over the modified records, to be closed if it is not read to the end.
+     */
+    public static SdpListIterator listModifiedSince(String url, String code, String client_id, String client_secret, long sinceMillis) {
+        return new SdpListIterator(url, code, client_id, client_secret, Math.max(0, sinceMillis));
+    }
+
+    private static Request buildRequest(String url, String accessToken) {
+        return new Request.Builder()
                 .url(url)
                 .method("GET", null)
                 .header("Accept", "application/vnd.manageengine.sdp.v3+json")
                 .header("Content-Type", "application/x-www-form-urlencoded")
-                .header("Authorization", "Zoho-oauthtoken " + generateTkn(code, client_id, client_secret).getString("access_token"))
+                .header("Authorization", "Zoho-oauthtoken " + accessToken)
                 .build();
+    }
 
+    private static JSONObject readResponse(Response output) throws IOException {
+        if (output.isSuccessful()) {
+            JSONObject jsonResponse = new JSONObject();
+            jsonResponse.put("status", "success");
+            jsonResponse.put("statusCode", output.code());
+            // Parsed from the byte stream, without first copying the whole payload into a String
+            jsonResponse.put("data", JsonStreams.readJson(output.body().byteStream()));
+            return jsonResponse;
+        }
+        return errorResponse(output);
+    }
+
+    private static JSONObject errorResponse(Response output) {
         JSONObject jsonResponse = new JSONObject();
+        jsonResponse.put("status", "error");
+        jsonResponse.put("statusCode", output.code());
+        jsonResponse.put("message", "Error response from server: " + output.code());
+        if (output.header("Retry-After") != null) {
+            jsonResponse.put("retryAfter", output.header("Retry-After"));
+        }
+        return jsonResponse;
+    }
 
-        try {
-            Response output = client.newCall(request).execute();
-
-            if (output.isSuccessful()) {
-                jsonResponse.put("status", "success");
-                jsonResponse.put("statusCode", output.code());
-                jsonResponse.put("data", new JSONObject(output.body().string()));
-            } else {
-                jsonResponse.put("status", "error");
-                jsonResponse.put("statusCode", output.code());
-                jsonResponse.put("message", "Error response from server: " + output.code());
-            }
-        } catch (Exception e) {
-            jsonResponse.put("status", "exception");
-            jsonResponse.put("message", "Exception while making the API request: " + e.getMessage());
+    /**
+     * Reports the end of a call to its {@link RateController} permit: HTTP 429 slows the calls of the client ID
+     * down, server errors and exceptions count as failures, and any other answer as a success.
+     */
+    private static void reportOutcome(RateController.Permit permit, JSONObject result, Throwable error) {
+        int statusCode = result != null ? result.optInt("statusCode") : 0;
+        if (statusCode == 429) {
+            permit.onThrottled(RateController.parseRetryAfter(result.optString("retryAfter", null)));
+        } else if (error != null || statusCode >= 500) {
+            permit.onFailure();
+        } else {
+            permit.onSuccess(-1);
         }
+    }
 
+    private static JSONObject exceptionResponse(Throwable e) {
+        JSONObject jsonResponse = new JSONObject();
+        jsonResponse.put("status", "exception");
+        jsonResponse.put("message", "Exception while making the API request: " + e.getMessage());
         return jsonResponse;
     }
 
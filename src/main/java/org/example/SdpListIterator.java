@@ -0,0 +1,394 @@
+package org.example;
+
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static org.example.TokenService.generateTkn;
+
+/**
+ * This class iterates over every record of a ServiceDesk Plus list endpoint (requests, problems, changes, assets,
+ * ...), fetching the pages described by {@code list_info} as it goes. Create it with
+ * {@link SDKConnectorService#listAll} or {@link SDKConnectorService#listModifiedSince}.
+ *
+ * The next pages are fetched in the background while the caller processes the current one, and at most
+ * {@code sdp.prefetchPages} pages (default 2) are fetched ahead, so memory stays bounded to a few pages of
+ * {@code sdp.pageSize} records (default 100, the maximum allowed by SDP) whatever the size of the list.
+ * Each page is parsed with {@link JsonStreams#forEachElement}, without holding the raw document.
+ *
+ * A full listing pages by offset, sorted by id, and fetches several pages at once. An incremental sync sorts by
+ * {@code last_updated_time} then id and pages with a cursor on both (the records modified after the last time
+ * seen, or at that time with a greater id), so records modified while the sync runs cannot shift the pages and
+ * be skipped, and any number of records sharing a modification time are read exactly once; each page is
+ * requested as soon as the previous one has arrived. After the sync,
+ * {@link #getHighWaterMark()} is the value to pass as the start of the next one.
+ *
+ * The iterator must be closed (or the stream of {@link #stream()}) if it is not read to the end, to cancel the
+ * pages being fetched.
+ */
+public class SdpListIterator implements Iterator<JSONObject>, AutoCloseable {
+
+    private static final int PAGE_SIZE = Math.max(1, Math.min(100, Integer.getInteger("sdp.pageSize", 100)));
+    private static final int PREFETCH_PAGES = Math.max(1, Integer.getInteger("sdp.prefetchPages", 2));
+
+    private static final String MODIFIED_FIELD = "last_updated_time";
+
+    /**
+     * One page of records and whether SDP has more after it.
+     */
+    private static class Page {
+        final List<JSONObject> records = new ArrayList<>();
+        boolean hasMoreRows;
+        JSONObject listInfo;
+    }
+
+    private final String url;
+    private final String arrayField;
+    private final String code;
+    private final String clientId;
+    private final String clientSecret;
+    private final boolean incremental;
+
+    // Pages requested and not yet consumed, in order
+    private final ArrayDeque<CompletableFuture<Page>> pending = new ArrayDeque<>();
+    private Iterator<JSONObject> current = new ArrayList<JSONObject>().iterator();
+    private boolean exhausted;
+    private boolean closed;
+
+    // Offset paging
+    private int nextStartIndex = 1;
+
+    // Cursor paging: the modification time and id of the last record returned
+    private long cursor;
+    private long cursorId = -1;
+    private boolean cursorRequestRunning;
+    private long highWaterMark;
+    private JSONObject listInfo;
+
+    /**
+     * Creates an iterator and starts fetching its first pages.
+     *
+     * @param url          The URL of the list endpoint (e.g. "https://sdp.example.com/api/v3/requests").
+     * @param code         The authorization code required for OAuth token generation.
+     * @param clientId     The client ID for OAuth token generation.
+     * @param clientSecret The client secret for OAuth token generation.
+     * @param sinceMillis  The modification time (epoch milliseconds) from which to list records, or -1 for all.
+     */
+    SdpListIterator(String url, String code, String clientId, String clientSecret, long sinceMillis) {
+        this.url = url;
+        this.arrayField = HttpUrl.get(url).pathSegments().get(HttpUrl.get(url).pathSize() - 1);
+        this.code = code;
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        this.incremental = sinceMillis >= 0;
+        this.cursor = Math.max(0, sinceMillis);
+        this.highWaterMark = cursor;
+        synchronized (this) {
+            fill();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            CompletableFuture<Page> next;
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                fill();
+                next = pending.poll();
+                if (next == null) {
+                    return false;
+                }
+            }
+            Page page = await(next);
+            synchronized (this) {
+                listInfo = page.listInfo;
+                if (!page.hasMoreRows) {
+                    exhausted = true;
+                }
+                fill();
+            }
+            current = page.records.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public JSONObject next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        JSONObject record = current.next();
+        if (incremental) {
+            synchronized (this) {
+                highWaterMark = Math.max(highWaterMark, modifiedTime(record, highWaterMark));
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Returns the records as a sequential stream. Closing the stream closes the iterator.
+     *
+     * @return A stream of the records.
+     */
+    public Stream<JSONObject> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(this::close);
+    }
+
+    /**
+     * Returns the latest modification time among the records returned so far, or the start of the sync if none
+     * was returned. Once the iterator has been read to the end, it is the start of the next incremental sync.
+     *
+     * @return The modification time in epoch milliseconds.
+     */
+    public synchronized long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Returns the {@code list_info} of the last page read.
+     *
+     * @return The list_info object, or null before the first page.
+     */
+    public synchronized JSONObject getListInfo() {
+        return listInfo;
+    }
+
+    /**
+     * Stops the iteration and cancels the pages being fetched.
+     */
+    @Override
+    public void close() {
+        List<CompletableFuture<Page>> cancelled;
+        synchronized (this) {
+            closed = true;
+            cancelled = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (CompletableFuture<Page> page : cancelled) {
+            page.cancel(true);
+        }
+        current = new ArrayList<JSONObject>().iterator();
+    }
+
+    /**
+     * Requests pages until {@code sdp.prefetchPages} are pending. With cursor paging a page can only be requested
+     * once the previous one has arrived, so at most one request is in flight and the next one is issued from
+     * its completion. Called with the lock held.
+     */
+    private void fill() {
+        while (!closed && !exhausted && pending.size() < PREFETCH_PAGES) {
+            if (incremental) {
+                if (cursorRequestRunning) {
+                    return;
+                }
+                cursorRequestRunning = true;
+                // The page is filtered before it completes, so the reader never sees the records it drops
+                CompletableFuture<Page> page = fetch(cursorQuery()).thenApply(result -> {
+                    synchronized (this) {
+                        advanceCursor(result);
+                    }
+                    return result;
+                });
+                pending.add(page);
+                page.whenComplete((result, error) -> {
+                    synchronized (this) {
+                        cursorRequestRunning = false;
+                        if (result != null) {
+                            fill();
+                        } else {
+                            // The error is reported when the page is read
+                            exhausted = true;
+                        }
+                    }
+                });
+            } else {
+                CompletableFuture<Page> page = fetch(offsetQuery(nextStartIndex));
+                nextStartIndex += PAGE_SIZE;
+                pending.add(page);
+                page.whenComplete((result, error) -> {
+                    if (result != null && !result.hasMoreRows) {
+                        synchronized (this) {
+                            exhausted = true;
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Drops the records of a page that are not after the cursor (returned already, e.g. if SDP ignored part of
+     * the criteria) and moves the cursor to the last record kept. Called with the lock held, before the page is
+     * handed to the reader.
+     *
+     * @throws UncheckedIOException If SDP has more rows but none of the page is after the cursor: the cursor could
+     *                              not move, and the same page would be requested forever.
+     */
+    private void advanceCursor(Page page) {
+        page.records.removeIf(record -> {
+            long modified = modifiedTime(record, cursor);
+            return modified < cursor || modified == cursor && recordId(record) <= cursorId;
+        });
+        if (page.records.isEmpty() && page.hasMoreRows) {
+            throw new UncheckedIOException(new IOException("No record after the cursor (" + cursor + ", " + cursorId
+                    + ") in a page with more rows; the search_criteria seem to be ignored by " + url));
+        }
+        for (JSONObject record : page.records) {
+            long modified = modifiedTime(record, cursor);
+            long id = recordId(record);
+            if (modified > cursor || modified == cursor && id > cursorId) {
+                cursor = modified;
+                cursorId = id;
+            }
+        }
+        if (!page.hasMoreRows) {
+            exhausted = true;
+        }
+    }
+
+    private JSONObject offsetQuery(int startIndex) {
+        JSONObject listInfo = new JSONObject();
+        listInfo.put("row_count", PAGE_SIZE);
+        listInfo.put("start_index", startIndex);
+        listInfo.put("sort_field", "id");
+        listInfo.put("sort_order", "asc");
+        return new JSONObject().put("list_info", listInfo);
+    }
+
+    /**
+     * Builds the query of the first page after the cursor: the records modified after the cursor time, or at
+     * that time with an id greater than the cursor id, sorted by modification time then id. The page always
+     * starts at index 1, so records that move while the sync runs cannot make it skip any.
+     */
+    private JSONObject cursorQuery() {
+        JSONArray criteria = new JSONArray();
+        if (cursorId < 0) {
+            criteria.put(criterion(MODIFIED_FIELD, "greater or equal", cursor));
+        } else {
+            criteria.put(criterion(MODIFIED_FIELD, "greater than", cursor));
+            criteria.put(criterion(MODIFIED_FIELD, "is", cursor)
+                    .put("logical_operator", "OR")
+                    .put("children", new JSONArray().put(criterion("id", "greater than", cursorId)
+                            .put("logical_operator", "AND"))));
+        }
+
+        JSONObject listInfo = new JSONObject();
+        listInfo.put("row_count", PAGE_SIZE);
+        listInfo.put("start_index", 1);
+        listInfo.put("sort_fields", new JSONArray()
+                .put(new JSONObject().put("field", MODIFIED_FIELD).put("order", "asc"))
+                .put(new JSONObject().put("field", "id").put("order", "asc")));
+        listInfo.put("search_criteria", criteria);
+        return new JSONObject().put("list_info", listInfo);
+    }
+
+    private static JSONObject criterion(String field, String condition, long value) {
+        JSONObject criterion = new JSONObject();
+        criterion.put("field", field);
+        criterion.put("condition", condition);
+        criterion.put("value", String.valueOf(value));
+        return criterion;
+    }
+
+    private CompletableFuture<Page> fetch(JSONObject inputData) {
+        return AsyncTasks.supply(() -> generateTkn(code, clientId, clientSecret).getString("access_token"))
+                .thenCompose(accessToken -> RateController.forUpstream("sdp", clientId).executeAsync(0, () ->
+                        HttpClientProvider.executeAsync(HttpClientProvider.getClient(),
+                        buildRequest(inputData, accessToken), response -> {
+                            if (response.code() == 429) {
+                                throw new RateController.ThrottledException("Too many requests for URL: " + url,
+                                        RateController.parseRetryAfter(response.header("Retry-After")));
+                            }
+                            if (!response.isSuccessful()) {
+                                throw new IOException("Error response from server: " + response.code() + " for URL: " + url);
+                            }
+                            Page page = new Page();
+                            JSONObject rest = JsonStreams.forEachElement(response.body().byteStream(), arrayField, record -> {
+                                if (record instanceof JSONObject) {
+                                    page.records.add((JSONObject) record);
+                                }
+                            });
+                            page.listInfo = rest.optJSONObject("list_info");
+                            page.hasMoreRows = page.listInfo != null
+                                    ? page.listInfo.optBoolean("has_more_rows", false)
+                                    : page.records.size() >= PAGE_SIZE;
+                            return page;
+                        })));
+    }
+
+    private Request buildRequest(JSONObject inputData, String accessToken) {
+        HttpUrl pageUrl = HttpUrl.get(url).newBuilder()
+                .setQueryParameter("input_data", inputData.toString())
+                .build();
+        return new Request.Builder()
+                .url(pageUrl)
+                .get()
+                .header("Accept", "application/vnd.manageengine.sdp.v3+json")
+                .header("Authorization", "Zoho-oauthtoken " + accessToken)
+                .build();
+    }
+
+    /**
+     * Returns the last modification time of a record (SDP returns it as {"value": "epoch millis", ...}).
+     */
+    private static long modifiedTime(JSONObject record, long defaultValue) {
+        JSONObject time = record.optJSONObject(MODIFIED_FIELD);
+        if (time == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(time.optString("value", "").trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the id of a record (SDP ids are numeric, sent as strings), or -1 if it has none.
+     */
+    private static long recordId(JSONObject record) {
+        try {
+            return Long.parseLong(record.optString("id", "").trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private Page await(CompletableFuture<Page> page) {
+        try {
+            return page.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new CancellationException("Interrupted while waiting for a page of " + url);
+        } catch (ExecutionException e) {
+            close();
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new UncheckedIOException((IOException) cause);
+            }
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package org.example;
+
+import okhttp3.HttpUrl;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * This class caches the successful GET responses of {@link SDKConnectorService#invokeGetTkn}, keyed by URL and
+ * client ID, so dashboards that read the same requests, technicians or assets many times per minute are served
+ * from memory instead of spending a round trip and SDP API quota on each read.
+ *
+ * Every entry goes through three states:
+ * <ul>
+ *     <li>fresh, for the TTL of its endpoint: it is returned as is;</li>
+ *     <li>stale, for {@code sdp.cache.staleMs} more (default 5 minutes): it is still returned, and the first such
+ *     read starts a background refresh that replaces it (stale-while-revalidate);</li>
+ *     <li>expired: it is dropped and the next read goes to SDP.</li>
+ * </ul>
+ * The endpoint of a URL is the path segment after the API version, e.g. "requests" for
+ * {@code /api/v3/requests/123/notes}. Its TTL is {@code sdp.cache.ttl.<endpoint>} if set, otherwise
+ * {@code sdp.cache.ttlMs} (default 60 seconds); a TTL of 0 disables caching for that endpoint. The cache holds at
+ * most {@code sdp.cache.maxEntries} entries (default 1000) and evicts the least recently used one when full.
+ * It is disabled with {@code sdp.cache.enabled=false}.
+ *
+ * After a write, or when SDP sends a webhook for a change, call {@link #invalidateRecord} (the record and the
+ * lists of its endpoint), {@link #invalidateEndpoint}, {@link #invalidate} or {@link #invalidateAll}. A response
+ * fetched while an invalidation happens is not stored, so an invalidation is never undone by a request that was
+ * already running.
+ */
+public class SdpResponseCache {
+
+    private static final boolean enabled = Boolean.parseBoolean(System.getProperty("sdp.cache.enabled", "true"));
+    private static final long defaultTtlMillis = Long.getLong("sdp.cache.ttlMs", 60_000L);
+    private static final long staleMillis = Long.getLong("sdp.cache.staleMs", 5 * 60_000L);
+    private static final int maxEntries = Integer.getInteger("sdp.cache.maxEntries", 1000);
+
+    private static final Map<String, Long> endpointTtls = new ConcurrentHashMap<>();
+
+    // Access-ordered, so iteration starts at the least recently used entry
+    private static final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Incremented by every invalidation; a response is stored only if none happened while it was fetched
+    private static final AtomicLong generation = new AtomicLong();
+
+    private static final LongAdder freshHits = new LongAdder();
+    private static final LongAdder staleHits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder refreshes = new LongAdder();
+    private static final LongAdder invalidations = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    /**
+     * A cached response, with the endpoint and record it belongs to for the invalidations.
+     */
+    private static class CachedResponse {
+        final String url;
+        final String endpoint;
+        final String recordId;
+        final JSONObject response;
+        final long freshUntil;
+        final long expirationTime;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        CachedResponse(String url, String endpoint, String recordId, JSONObject response, long ttlMillis) {
+            long now = System.currentTimeMillis();
+            this.url = url;
+            this.endpoint = endpoint;
+            this.recordId = recordId;
+            this.response = response;
+            this.freshUntil = now + ttlMillis;
+            this.expirationTime = freshUntil + staleMillis;
+        }
+    }
+
+    /**
+     * Indicates whether the cache is enabled ({@code sdp.cache.enabled}).
+     *
+     * @return True if responses are cached and looked up, otherwise false.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets the TTL of an endpoint, overriding {@code sdp.cache.ttl.<endpoint>} and {@code sdp.cache.ttlMs}.
+     * Entries already cached keep their TTL.
+     *
+     * @param endpoint  The endpoint, e.g. "technicians".
+     * @param ttlMillis How long its responses are fresh, in milliseconds; 0 stops caching them.
+     */
+    public static void setTtl(String endpoint, long ttlMillis) {
+        endpointTtls.put(endpoint, ttlMillis);
+    }
+
+    /**
+     * Returns the current invalidation generation, to be passed to {@link #put} with the response of a request
+     * started now.
+     *
+     * @return The generation.
+     */
+    public static long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Returns a copy of the cached response of a URL for a client ID, or null if there is none or it expired.
+     * If the response is stale, it is still returned and the first stale read starts the refresh.
+     *
+     * @param url       The URL of the GET request.
+     * @param client_id The client ID the request is made for.
+     * @param refresh   Fetches the response again, without the cache; called at most once per stale entry.
+     * @return          The cached JSONObject, or null.
+     */
+    public static JSONObject get(String url, String client_id, Supplier<CompletableFuture<JSONObject>> refresh) {
+        if (!enabled) {
+            return null;
+        }
+        String key = key(url, client_id);
+        long now = System.currentTimeMillis();
+        CachedResponse cached;
+        synchronized (entries) {
+            cached = entries.get(key);
+            if (cached != null && now >= cached.expirationTime) {
+                entries.remove(key);
+                cached = null;
+            }
+        }
+        if (cached == null) {
+            misses.increment();
+            return null;
+        }
+        if (now < cached.freshUntil) {
+            freshHits.increment();
+        } else {
+            staleHits.increment();
+            if (cached.refreshing.compareAndSet(false, true)) {
+                startRefresh(url, client_id, cached, refresh);
+            }
+        }
+        return copy(cached.response);
+    }
+
+    /**
+     * Stores a response if it is a success, its endpoint is cached and no invalidation happened since the
+     * request started. The least recently used entry is evicted if the cache is full.
+     *
+     * @param url        The URL of the GET request.
+     * @param client_id  The client ID the request was made for.
+     * @param generation The value of {@link #generation()} when the request started.
+     * @param response   The response returned by {@link SDKConnectorService#invokeGetTkn}.
+     */
+    public static void put(String url, String client_id, long generation, JSONObject response) {
+        if (!enabled || !"success".equals(response.optString("status"))) {
+            return;
+        }
+        List<String> segments = pathSegments(url);
+        int endpointIndex = endpointIndex(segments);
+        String endpoint = endpointIndex >= 0 ? segments.get(endpointIndex) : "";
+        long ttlMillis = ttlOf(endpoint);
+        if (ttlMillis <= 0) {
+            return;
+        }
+        String recordId = endpointIndex >= 0 && endpointIndex + 1 < segments.size() ? segments.get(endpointIndex + 1) : null;
+        CachedResponse cached = new CachedResponse(url, endpoint, recordId, copy(response), ttlMillis);
+        synchronized (entries) {
+            if (SdpResponseCache.generation.get() != generation) {
+                return;
+            }
+            entries.put(key(url, client_id), cached);
+            Iterator<CachedResponse> eldest = entries.values().iterator();
+            while (entries.size() > maxEntries && eldest.hasNext()) {
+                eldest.next();
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Removes the cached responses of a URL, for every client ID.
+     *
+     * @param url The URL, exactly as it was requested.
+     * @return    The number of responses removed.
+     */
+    public static int invalidate(String url) {
+        return removeIf(cached -> cached.url.equals(url));
+    }
+
+    /**
+     * Removes the cached responses of a record (e.g. after a request was updated, or on its webhook event):
+     * the record itself and its sub-resources, and the lists of its endpoint, which may contain it.
+     *
+     * @param endpoint The endpoint of the record, e.g. "requests".
+     * @param recordId The ID of the record.
+     * @return         The number of responses removed.
+     */
+    public static int invalidateRecord(String endpoint, String recordId) {
+        return removeIf(cached -> cached.endpoint.equals(endpoint)
+                && (cached.recordId == null || cached.recordId.equals(recordId)));
+    }
+
+    /**
+     * Removes every cached response of an endpoint.
+     *
+     * @param endpoint The endpoint, e.g. "assets".
+     * @return         The number of responses removed.
+     */
+    public static int invalidateEndpoint(String endpoint) {
+        return removeIf(cached -> cached.endpoint.equals(endpoint));
+    }
+
+    /**
+     * Removes every cached response. The counters are kept.
+     *
+     * @return The number of responses removed.
+     */
+    public static int invalidateAll() {
+        return removeIf(cached -> true);
+    }
+
+    /**
+     * Returns the hit and miss counters and the size of the cache.
+     *
+     * @return A JSONObject with the fresh and stale hits, misses, background refreshes, invalidated and evicted
+     *         responses, and the number of entries.
+     */
+    public static JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("freshHits", freshHits.sum());
+        stats.put("staleHits", staleHits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("refreshes", refreshes.sum());
+        stats.put("invalidations", invalidations.sum());
+        stats.put("evictions", evictions.sum());
+        synchronized (entries) {
+            stats.put("size", entries.size());
+        }
+        return stats;
+    }
+
+    private static void startRefresh(String url, String client_id, CachedResponse cached,
+                                     Supplier<CompletableFuture<JSONObject>> refresh) {
+        refreshes.increment();
+        long startedAt = generation.get();
+        CompletableFuture<JSONObject> future;
+        try {
+            future = refresh.get();
+        } catch (RuntimeException e) {
+            cached.refreshing.set(false);
+            return;
+        }
+        // A failed refresh leaves the stale entry in place; the next stale read tries again
+        future.whenComplete((response, error) -> {
+            if (response != null) {
+                put(url, client_id, startedAt, response);
+            }
+            cached.refreshing.set(false);
+        });
+    }
+
+    private static int removeIf(Predicate<CachedResponse> matches) {
+        int removed = 0;
+        synchronized (entries) {
+            generation.incrementAndGet();
+            Iterator<CachedResponse> values = entries.values().iterator();
+            while (values.hasNext()) {
+                if (matches.test(values.next())) {
+                    values.remove();
+                    removed++;
+                }
+            }
+        }
+        invalidations.add(removed);
+        return removed;
+    }
+
+    private static long ttlOf(String endpoint) {
+        Long ttl = endpointTtls.get(endpoint);
+        if (ttl == null) {
+            ttl = Long.getLong("sdp.cache.ttl." + endpoint, defaultTtlMillis);
+            endpointTtls.putIfAbsent(endpoint, ttl);
+        }
+        return ttl;
+    }
+
+    private static List<String> pathSegments(String url) {
+        HttpUrl parsed = HttpUrl.parse(url);
+        return parsed != null ? parsed.pathSegments() : Collections.emptyList();
+    }
+
+    /**
+     * Finds the endpoint in the path: the segment after "api" and its version (/api/v3/requests), otherwise the
+     * first segment.
+     */
+    private static int endpointIndex(List<String> segments) {
+        int api = segments.indexOf("api");
+        if (api >= 0 && api + 2 < segments.size()) {
+            return api + 2;
+        }
+        return segments.isEmpty() || segments.get(0).isEmpty() ? -1 : 0;
+    }
+
+    private static String key(String url, String client_id) {
+        return client_id + '\u0000' + url;
+    }
+
+    /**
+     * Copies a response node by node, so callers can modify what they get without the cost of serializing
+     * and parsing it again. Strings, numbers and booleans are immutable and shared.
+     */
+    private static JSONObject copy(JSONObject json) {
+        JSONObject copy = new JSONObject();
+        for (String key : json.keySet()) {
+            copy.put(key, copyValue(json.get(key)));
+        }
+        return copy;
+    }
+
+    private static Object copyValue(Object value) {
+        if (value instanceof JSONObject) {
+            return copy((JSONObject) value);
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            JSONArray copy = new JSONArray();
+            for (int i = 0; i < array.length(); i++) {
+                copy.put(copyValue(array.get(i)));
+            }
+            return copy;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,248 @@
+package org.example;
+
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * This class coalesces identical concurrent calls: while a call for a key is running, every other caller with the
+ * same key waits for it and receives its result (or its exception) instead of making the same remote call again.
+ * Once the call completes, the next caller starts a new one; results are not cached.
+ *
+ * Keys should be canonical hashes of everything the result depends on (see {@link Hashes#sha256Hex}).
+ * Every caller, including the one that made the call, receives its own copy of the result made with the copier,
+ * so callers can modify what they get.
+ *
+ * A call started with {@link #executeAsync} is cancelled when every caller waiting for it has cancelled its
+ * future; as long as one caller still waits, it keeps running.
+ *
+ * Each instance has a name and counts the calls made and the calls saved by coalescing; the counters of all
+ * instances are available through {@link #getAllStats()}.
+ *
+ * @param <T> The type of the result.
+ */
+public class SingleFlight<T> {
+
+    private static final Map<String, SingleFlight<?>> instances = new ConcurrentHashMap<>();
+
+    private final UnaryOperator<T> copier;
+    private final Map<String, Flight<T>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Creates a single-flight group and registers it for {@link #getAllStats()}.
+     *
+     * @param name   The name of the group in the statistics (e.g. "chat").
+     * @param copier Makes the copy of the result given to each caller; use {@code t -> t} for immutable results.
+     */
+    public SingleFlight(String name, UnaryOperator<T> copier) {
+        this.copier = copier;
+        instances.put(name, this);
+    }
+
+    /**
+     * A running call and the callers waiting for it.
+     */
+    private static class Flight<T> {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        private CompletableFuture<T> call;
+        private int waiters = 1;
+        private boolean abandoned;
+
+        /**
+         * Adds a caller, unless every previous caller already cancelled and the call is being cancelled.
+         */
+        synchronized boolean join() {
+            if (abandoned) {
+                return false;
+            }
+            waiters++;
+            return true;
+        }
+
+        /**
+         * Removes a caller that cancelled, and returns true if it was the last one and the call must be cancelled.
+         */
+        synchronized boolean leave() {
+            if (--waiters == 0 && !result.isDone()) {
+                abandoned = true;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void setCall(CompletableFuture<T> call) {
+            this.call = call;
+        }
+
+        synchronized CompletableFuture<T> getCall() {
+            return call;
+        }
+    }
+
+    /**
+     * Copies a JSONObject, for groups whose results are JSONObjects.
+     *
+     * @param json The JSONObject to copy.
+     * @return     An independent copy.
+     */
+    public static JSONObject copyJson(JSONObject json) {
+        return json == null ? null : new JSONObject(json.toString());
+    }
+
+    /**
+     * Runs a blocking call, or waits for the identical call already running.
+     *
+     * @param key  The canonical key of the call.
+     * @param call The call to run if none is running for the key.
+     * @return     A copy of the result of the call.
+     * @throws Exception The exception thrown by the call.
+     */
+    public T execute(String key, Callable<T> call) throws Exception {
+        while (true) {
+            Flight<T> created = new Flight<>();
+            Flight<T> running = inFlight.putIfAbsent(key, created);
+            if (running == null) {
+                executions.increment();
+                try {
+                    T result = call.call();
+                    created.result.complete(result);
+                    return copier.apply(result);
+                } catch (Throwable e) {
+                    created.result.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    inFlight.remove(key, created);
+                }
+            }
+            // A blocking caller never leaves, so the call it joins is never cancelled
+            if (running.join()) {
+                coalesced.increment();
+                try {
+                    return copier.apply(running.result.get());
+                } catch (ExecutionException e) {
+                    throw unwrap(e.getCause());
+                }
+            }
+            inFlight.remove(key, running);
+        }
+    }
+
+    /**
+     * Starts an asynchronous call, or joins the identical call already running. Cancelling the returned future
+     * cancels the shared call only if no other caller is still waiting for it.
+     *
+     * @param key  The canonical key of the call.
+     * @param call Starts the call if none is running for the key.
+     * @return     A future completed with a copy of the result of the call.
+     */
+    public CompletableFuture<T> executeAsync(String key, Supplier<CompletableFuture<T>> call) {
+        Flight<T> flight;
+        while (true) {
+            Flight<T> created = new Flight<>();
+            Flight<T> running = inFlight.putIfAbsent(key, created);
+            if (running == null) {
+                executions.increment();
+                start(key, created, call);
+                flight = created;
+                break;
+            }
+            if (running.join()) {
+                coalesced.increment();
+                flight = running;
+                break;
+            }
+            // Every caller of that call cancelled; start a new one
+            inFlight.remove(key, running);
+        }
+
+        CompletableFuture<T> mine = flight.result.thenApply(copier);
+        mine.whenComplete((result, error) -> {
+            if (mine.isCancelled() && flight.leave()) {
+                inFlight.remove(key, flight);
+                flight.getCall().cancel(true);
+            }
+        });
+        return mine;
+    }
+
+    private void start(String key, Flight<T> flight, Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<T> started;
+        try {
+            started = call.get();
+        } catch (RuntimeException e) {
+            started = new CompletableFuture<>();
+            started.completeExceptionally(e);
+        }
+        flight.setCall(started);
+        started.whenComplete((result, error) -> {
+            inFlight.remove(key, flight);
+            if (error != null) {
+                flight.result.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error);
+            } else {
+                flight.result.complete(result);
+            }
+        });
+    }
+
+    /**
+     * Counts a call made by a caller that coordinates its own sharing (e.g. a shared stream).
+     */
+    void recordExecution() {
+        executions.increment();
+    }
+
+    /**
+     * Counts a call saved by a caller that coordinates its own sharing (e.g. a shared stream).
+     */
+    void recordCoalesced() {
+        coalesced.increment();
+    }
+
+    /**
+     * Returns the counters of this group.
+     *
+     * @return A JSONObject with the calls made ("executions"), the calls saved by coalescing ("coalesced"),
+     *         the share of requests that were coalesced ("savedRatio") and the calls running now ("inFlight").
+     */
+    public JSONObject getStats() {
+        long made = executions.sum();
+        long saved = coalesced.sum();
+        JSONObject stats = new JSONObject();
+        stats.put("executions", made);
+        stats.put("coalesced", saved);
+        stats.put("savedRatio", made + saved > 0 ? (double) saved / (made + saved) : 0.0);
+        stats.put("inFlight", inFlight.size());
+        return stats;
+    }
+
+    /**
+     * Returns the counters of every single-flight group, by name.
+     *
+     * @return A JSONObject with the statistics of each group.
+     */
+    public static JSONObject getAllStats() {
+        JSONObject stats = new JSONObject();
+        for (Map.Entry<String, SingleFlight<?>> entry : instances.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().getStats());
+        }
+        return stats;
+    }
+
+    private static Exception unwrap(Throwable cause) {
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+    }
+}
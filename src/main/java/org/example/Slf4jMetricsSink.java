@@ -0,0 +1,41 @@
+package org.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This sink writes every measured call to the "org.example.metrics" SLF4J logger as one line of key=value pairs,
+ * e.g. {@code stage=openai.search durationMs=812.4 outcome=200}, which log pipelines can parse without a custom
+ * format. Calls slower than the threshold or not ending in "ok", "empty" or a 2xx status are logged at INFO, the
+ * others at DEBUG.
+ *
+ * It is registered when {@code metrics.log.enabled} is true, with the threshold {@code metrics.log.slowMs}
+ * (default 5000), or it can be registered explicitly with {@link Metrics#addSink}.
+ */
+public class Slf4jMetricsSink implements MetricsSink {
+
+    private static final Logger log = LoggerFactory.getLogger("org.example.metrics");
+
+    private final long slowNanos;
+
+    /**
+     * Creates the sink.
+     *
+     * @param slowMillis The duration from which a successful call is logged at INFO, in milliseconds.
+     */
+    public Slf4jMetricsSink(long slowMillis) {
+        this.slowNanos = slowMillis * 1_000_000L;
+    }
+
+    @Override
+    public void record(String stage, long durationNanos, String outcome) {
+        boolean success = outcome.equals("ok") || outcome.equals("empty") || outcome.startsWith("2");
+        if (durationNanos >= slowNanos || !success) {
+            if (log.isInfoEnabled()) {
+                log.info("stage={} durationMs={} outcome={}", stage, durationNanos / 100_000 / 10.0, outcome);
+            }
+        } else if (log.isDebugEnabled()) {
+            log.debug("stage={} durationMs={} outcome={}", stage, durationNanos / 100_000 / 10.0, outcome);
+        }
+    }
+}
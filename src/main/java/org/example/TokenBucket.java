@@ -0,0 +1,84 @@
+package org.example;
+
+/**
+ * This class is a token bucket that limits a rate (requests per minute, LLM tokens per minute, ...) while allowing
+ * bursts up to its capacity.
+ *
+ * Callers reserve permits with {@link #reserve(double)} and wait the time it returns before going ahead. The
+ * balance may go negative: a caller that finds the bucket empty takes the permits on credit and waits until they
+ * have been refilled, and every later caller waits behind it. Callers are therefore served in the order they
+ * arrived, a large reservation cannot be starved by small ones, and nobody fails because of the limit.
+ */
+public class TokenBucket {
+
+    private final double capacity;
+    private final double permitsPerNano;
+
+    private double balance;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param permitsPerMinute The sustained rate, in permits per minute.
+     * @param capacity         The largest burst, in permits.
+     */
+    public TokenBucket(double permitsPerMinute, double capacity) {
+        if (permitsPerMinute <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Invalid token bucket: rate=" + permitsPerMinute + ", capacity=" + capacity);
+        }
+        this.capacity = capacity;
+        this.permitsPerNano = permitsPerMinute / 60e9;
+        this.balance = capacity;
+    }
+
+    /**
+     * Takes permits from the bucket.
+     *
+     * @param permits The number of permits (e.g. 1 request, or the estimated tokens of a completion).
+     * @return        How long the caller must wait before going ahead, in milliseconds (0 if it can go now).
+     */
+    public synchronized long reserve(double permits) {
+        refill();
+        balance -= permits;
+        return balance >= 0 ? 0 : (long) Math.ceil(-balance / permitsPerNano / 1e6);
+    }
+
+    /**
+     * Gives back permits that were reserved but not used (e.g. when a completion used fewer tokens than estimated),
+     * or takes more when it used more.
+     *
+     * @param permits The permits to give back; negative to take more.
+     */
+    public synchronized void refund(double permits) {
+        refill();
+        balance = Math.min(capacity, balance + permits);
+    }
+
+    /**
+     * Empties the bucket so that nothing is allowed during the given time, e.g. after the upstream answered
+     * HTTP 429 with a Retry-After header.
+     *
+     * @param millis How long to pause, in milliseconds.
+     */
+    public synchronized void pause(long millis) {
+        refill();
+        balance = Math.min(balance, -millis * 1e6 * permitsPerNano);
+    }
+
+    /**
+     * Returns the permits currently available; negative while callers are waiting for permits taken on credit.
+     *
+     * @return The balance of the bucket.
+     */
+    public synchronized double getBalance() {
+        refill();
+        return balance;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        balance = Math.min(capacity, balance + (now - lastRefill) * permitsPerNano);
+        lastRefill = now;
+    }
+}
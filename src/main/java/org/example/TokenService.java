@@ -1,15 +1,24 @@
 package org.example;
 
+import okhttp3.FormBody;
+import okhttp3.Request;
+import okhttp3.Response;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.HashMap;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * This class is responsible for managing OAuth tokens using Zoho's OAuth API.
@@ -19,34 +28,74 @@ import java.util.Map;
  * The class supports both generating tokens using an authorization code and refreshing tokens using
  * a refresh token. It stores tokens in memory, but this can be replaced with persistent storage
  * (e.g., Redis) if needed.
+ *
+ * All state is safe for concurrent use: at most one request to Zoho is in flight per client_id, and
+ * every caller that needs a token while that request runs waits for and shares its result. Once a
+ * token is cached, a background scheduler renews it {@link #getRefreshMargin() a margin} before it
+ * expires, so callers of {@link #generateTkn} normally get the cached token without any network call.
  */
 public class TokenService {
 
-    private static final String TOKEN_URL = "https://accounts.zoho.com/oauth/v2/token";
+    // Zoho accounts server (zoho.accountsUrl), e.g. https://accounts.zoho.eu for the EU data center
+    private static final String TOKEN_URL = System.getProperty("zoho.accountsUrl", "https://accounts.zoho.com")
+            .replaceAll("/+$", "") + "/oauth/v2/token";
     private static final String REDIRECT_URI = "https://www.zoho.com";
 
+    // The fields read from the answers of the token endpoint
+    private static final String[] TOKEN_FIELDS = {
+            "access_token", "refresh_token", "expires_in", "api_domain", "token_type", "error"
+    };
+
+    // Delay before retrying a background renewal that failed while the current token is still valid
+    private static final long RENEWAL_RETRY_MILLIS = 30_000L;
+    // Shortest delay before a background renewal, for tokens that live less than the refresh margin
+    private static final long MIN_RENEWAL_DELAY_MILLIS = 5_000L;
+
     // In-memory cache to store tokens (could be replaced with a more persistent storage like Redis)
-    private static Map<String, TokenInfo> tokenCache = new HashMap<>();
+    private static final Map<String, TokenInfo> tokenCache = new ConcurrentHashMap<>();
+
+    // Measurements of the token requests
+    private static final Metrics.Stage generateStage = Metrics.stage("zoho.generateTkn");
+    private static final Metrics.Stage refreshStage = Metrics.stage("zoho.refreshAccessToken");
+
+    // Token requests currently running against Zoho, one per client_id and secret, shared by all waiting callers
+    private static final Map<String, CompletableFuture<JSONObject>> inFlight = new ConcurrentHashMap<>();
+
+    // Scheduled background renewals, one per client_id
+    private static final Map<String, ScheduledFuture<?>> renewals = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService renewalScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "zoho-token-renewal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // How long before expiration a token is renewed in the background (milliseconds)
+    private static volatile long refreshMargin = Long.getLong("zoho.token.refreshMarginMs", 5 * 60_000L);
 
     /**
      * Class to store token information and expiration time.
      * It holds both the access token and refresh token, as well as the expiration time for the access token.
+     * The client secret is kept so the token can be renewed in the background.
      */
     static class TokenInfo {
-        String accessToken;
-        String refreshToken;
-        long expirationTime;
+        final String accessToken;
+        final String refreshToken;
+        final String clientSecret;
+        final long expirationTime;
 
         /**
          * Constructor to create an instance of TokenInfo.
          *
          * @param accessToken    The OAuth access token.
          * @param refreshToken   The OAuth refresh token.
+         * @param clientSecret   The client secret used to renew the access token.
          * @param expirationTime The expiration time (in milliseconds) of the access token.
          */
-        TokenInfo(String accessToken, String refreshToken, long expirationTime) {
+        TokenInfo(String accessToken, String refreshToken, String clientSecret, long expirationTime) {
             this.accessToken = accessToken;
             this.refreshToken = refreshToken;
+            this.clientSecret = clientSecret;
             this.expirationTime = expirationTime;
         }
 
@@ -58,6 +107,40 @@ public class TokenService {
         boolean isAccessTokenValid() {
             return System.currentTimeMillis() < expirationTime;
         }
+
+        /**
+         * Checks whether a client secret is the one the token was obtained with, in constant time.
+         *
+         * @param clientSecret The client secret given by a caller.
+         * @return             True if it matches, otherwise false.
+         */
+        boolean matches(String clientSecret) {
+            return clientSecret != null && MessageDigest.isEqual(
+                    this.clientSecret.getBytes(StandardCharsets.UTF_8), clientSecret.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Returns how long before its expiration a cached token is renewed in the background.
+     *
+     * @return The renewal margin in milliseconds.
+     */
+    public static long getRefreshMargin() {
+        return refreshMargin;
+    }
+
+    /**
+     * Sets how long before its expiration a cached token is renewed in the background.
+     * The new margin applies to renewals scheduled after this call.
+     * Defaults to the {@code zoho.token.refreshMarginMs} system property, or five minutes.
+     *
+     * @param marginMillis The renewal margin in milliseconds.
+     */
+    public static void setRefreshMargin(long marginMillis) {
+        if (marginMillis < 0) {
+            throw new IllegalArgumentException("The refresh margin cannot be negative: " + marginMillis);
+        }
+        refreshMargin = marginMillis;
     }
 
     /**
@@ -66,7 +149,9 @@ public class TokenService {
      * and returns a JSONObject containing the access token or an error message if the request fails.
      *
      * If a valid token exists in the cache, it will be reused. If the token is expired, the refresh token will be
-     * used to obtain a new access token.
+     * used to obtain a new access token. Concurrent callers for the same client ID share a single request to Zoho.
+     * A cached token is only returned to callers with the client secret it was obtained with; other callers go to
+     * Zoho with their own credentials, so a client ID alone never gives access to a token.
      *
      * @param code          The authorization code required for generating the OAuth token.
      * @param client_id     The client ID for OAuth token generation.
@@ -74,46 +159,80 @@ public class TokenService {
      * @return              A JSONObject containing the OAuth access token or an error message in case of failure.
      */
     public static JSONObject generateTkn(String code, String client_id, String client_secret) {
-        try {
-            // Check if there is a valid token in the cache
-            if (tokenCache.containsKey(client_id)) {
-                TokenInfo tokenInfo = tokenCache.get(client_id);
-                if (tokenInfo.isAccessTokenValid()) {
-                    JSONObject tokenResponse = new JSONObject();
-                    tokenResponse.put("access_token", tokenInfo.accessToken);
-                    tokenResponse.put("refresh_token", tokenInfo.refreshToken);
-                    return tokenResponse;
-                } else {
-                    // Access token has expired, refresh the token
-                    return refreshAccessToken(client_id, client_secret, tokenInfo.refreshToken);
-                }
+        return measure(generateStage, () -> getOrRequestToken(code, client_id, client_secret));
+    }
+
+    private static JSONObject getOrRequestToken(String code, String client_id, String client_secret) {
+        // Check if there is a valid token in the cache
+        TokenInfo tokenInfo = tokenCache.get(client_id);
+        if (tokenInfo != null && tokenInfo.matches(client_secret)) {
+            if (tokenInfo.isAccessTokenValid()) {
+                JSONObject tokenResponse = new JSONObject();
+                tokenResponse.put("access_token", tokenInfo.accessToken);
+                tokenResponse.put("refresh_token", tokenInfo.refreshToken);
+                return tokenResponse;
+            } else {
+                // Access token has expired, refresh the token
+                return refreshAccessToken(client_id, client_secret, tokenInfo.refreshToken);
             }
+        }
 
-            URL url = new URL(TOKEN_URL);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            conn.setDoOutput(true);
-
-            String data = "code=" + code
-                    + "&grant_type=authorization_code"
-                    + "&client_id=" + client_id
-                    + "&client_secret=" + client_secret
-                    + "&redirect_uri=" + REDIRECT_URI;
-
-            OutputStream os = conn.getOutputStream();
-            byte[] input = data.getBytes("utf-8");
-            os.write(input, 0, input.length);
-
-            BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream(), "utf-8"));
-            StringBuilder response = new StringBuilder();
-            String responseLine = null;
-            while ((responseLine = br.readLine()) != null) {
-                response.append(responseLine.trim());
+        return singleFlight(client_id, client_secret, () -> {
+            // Another caller may have cached a token while this one was waiting to start the request
+            TokenInfo cached = tokenCache.get(client_id);
+            if (cached != null && cached.matches(client_secret) && cached.isAccessTokenValid()) {
+                JSONObject tokenResponse = new JSONObject();
+                tokenResponse.put("access_token", cached.accessToken);
+                tokenResponse.put("refresh_token", cached.refreshToken);
+                return tokenResponse;
             }
+            return requestAuthorizationToken(code, client_id, client_secret);
+        });
+    }
+
+    /**
+     * Refreshes the access token using the refresh token when the access token has expired.
+     * The method sends a POST request to Zoho's OAuth API and returns the new access token.
+     * If a refresh for the same client ID is already running, the caller waits for it and gets its result.
+     *
+     * @param client_id     The client ID for OAuth token generation.
+     * @param client_secret The client secret for OAuth token generation.
+     * @param refresh_token The refresh token to use for refreshing the access token.
+     * @return              A JSONObject containing the new access token or an error message in case of failure.
+     */
+    public static JSONObject refreshAccessToken(String client_id, String client_secret, String refresh_token) {
+        return measure(refreshStage, () -> singleFlight(client_id, client_secret, () -> requestRefreshedToken(client_id, client_secret, refresh_token)));
+    }
 
-            String jsonResponseStr = response.toString().trim();
-            JSONObject jsonResponse = new JSONObject(jsonResponseStr);
+    /**
+     * Records the duration and outcome ("ok", "error" or "exception") of a token request in its {@link Metrics} stage.
+     */
+    private static JSONObject measure(Metrics.Stage stage, Supplier<JSONObject> tokenRequest) {
+        long startedAt = stage.start();
+        String outcome = "exception";
+        try {
+            JSONObject result = tokenRequest.get();
+            outcome = result.has("error") ? "error" : "ok";
+            return result;
+        } finally {
+            stage.end(startedAt, outcome);
+        }
+    }
+
+    /**
+     * Exchanges an authorization code for a new access and refresh token pair and caches it.
+     */
+    private static JSONObject requestAuthorizationToken(String code, String client_id, String client_secret) {
+        try {
+            FormBody data = new FormBody.Builder()
+                    .add("code", code)
+                    .add("grant_type", "authorization_code")
+                    .add("client_id", client_id)
+                    .add("client_secret", client_secret)
+                    .add("redirect_uri", REDIRECT_URI)
+                    .build();
+
+            JSONObject jsonResponse = postTokenRequest(client_id, data);
 
             // Cache the new access and refresh tokens
             String accessToken = jsonResponse.getString("access_token");
@@ -121,7 +240,7 @@ public class TokenService {
             long expiresIn = jsonResponse.getLong("expires_in") * 1000; // Convert seconds to milliseconds
             long expirationTime = System.currentTimeMillis() + expiresIn;
 
-            tokenCache.put(client_id, new TokenInfo(accessToken, refreshToken, expirationTime));
+            storeToken(client_id, new TokenInfo(accessToken, refreshToken, client_secret, expirationTime));
 
             return jsonResponse;
 
@@ -133,40 +252,18 @@ public class TokenService {
     }
 
     /**
-     * Refreshes the access token using the refresh token when the access token has expired.
-     * The method sends a POST request to Zoho's OAuth API and returns the new access token.
-     *
-     * @param client_id     The client ID for OAuth token generation.
-     * @param client_secret The client secret for OAuth token generation.
-     * @param refresh_token The refresh token to use for refreshing the access token.
-     * @return              A JSONObject containing the new access token or an error message in case of failure.
+     * Obtains a new access token with the given refresh token and caches it.
      */
-    public static JSONObject refreshAccessToken(String client_id, String client_secret, String refresh_token) {
+    private static JSONObject requestRefreshedToken(String client_id, String client_secret, String refresh_token) {
         try {
-            URL url = new URL(TOKEN_URL);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            conn.setDoOutput(true);
-
-            String data = "refresh_token=" + refresh_token
-                    + "&grant_type=refresh_token"
-                    + "&client_id=" + client_id
-                    + "&client_secret=" + client_secret;
-
-            OutputStream os = conn.getOutputStream();
-            byte[] input = data.getBytes("utf-8");
-            os.write(input, 0, input.length);
-
-            BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream(), "utf-8"));
-            StringBuilder response = new StringBuilder();
-            String responseLine = null;
-            while ((responseLine = br.readLine()) != null) {
-                response.append(responseLine.trim());
-            }
+            FormBody data = new FormBody.Builder()
+                    .add("refresh_token", refresh_token)
+                    .add("grant_type", "refresh_token")
+                    .add("client_id", client_id)
+                    .add("client_secret", client_secret)
+                    .build();
 
-            String jsonResponseStr = response.toString().trim();
-            JSONObject jsonResponse = new JSONObject(jsonResponseStr);
+            JSONObject jsonResponse = postTokenRequest(client_id, data);
 
             // Cache the new access token
             String accessToken = jsonResponse.getString("access_token");
@@ -174,7 +271,7 @@ public class TokenService {
             long expirationTime = System.currentTimeMillis() + expiresIn;
 
             // Update the cache with the new access token
-            tokenCache.put(client_id, new TokenInfo(accessToken, refresh_token, expirationTime));
+            storeToken(client_id, new TokenInfo(accessToken, refresh_token, client_secret, expirationTime));
 
             return jsonResponse;
 
@@ -185,6 +282,117 @@ public class TokenService {
         }
     }
 
+    /**
+     * Posts a form to Zoho's token endpoint through the shared HTTP client and reads the token fields of the
+     * JSON answer straight from the response stream. The request waits for the "zoho" {@link RateController} of
+     * the client ID, since Zoho allows only a few token requests per minute.
+     *
+     * @throws IOException If the request fails, is interrupted while waiting, or Zoho answers with a
+     *                     non-successful status code.
+     */
+    private static JSONObject postTokenRequest(String client_id, FormBody data) throws IOException {
+        Request request = new Request.Builder()
+                .url(TOKEN_URL)
+                .post(data)
+                .build();
+
+        try {
+            return RateController.forUpstream("zoho", client_id).execute(0, () -> {
+                try (Response response = HttpClientProvider.getClient().newCall(request).execute()) {
+                    if (response.code() == 429) {
+                        throw new RateController.ThrottledException("Too many token requests for URL: " + TOKEN_URL,
+                                RateController.parseRetryAfter(response.header("Retry-After")));
+                    }
+                    if (!response.isSuccessful()) {
+                        throw new IOException("Server returned HTTP response code: " + response.code() + " for URL: " + TOKEN_URL);
+                    }
+                    return JsonStreams.readFields(response.body().byteStream(), TOKEN_FIELDS);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to request a token from " + TOKEN_URL);
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Runs the given token request unless one is already running for the client ID and secret, in which case
+     * the caller waits for the running request and receives the same result.
+     */
+    private static JSONObject singleFlight(String client_id, String client_secret, Callable<JSONObject> tokenRequest) {
+        String key = client_id + '\u0000' + Hashes.sha256Hex(String.valueOf(client_secret));
+        CompletableFuture<JSONObject> request = new CompletableFuture<>();
+        CompletableFuture<JSONObject> running = inFlight.putIfAbsent(key, request);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+
+        try {
+            JSONObject result = tokenRequest.call();
+            request.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            request.completeExceptionally(e);
+            throw e;
+        } catch (Exception e) {
+            request.completeExceptionally(e);
+            throw new CompletionException(e);
+        } finally {
+            inFlight.remove(key, request);
+        }
+    }
+
+    /**
+     * Caches a token and schedules its renewal {@link #refreshMargin} before it expires. A token that lives less
+     * than twice the margin is renewed halfway through its lifetime instead, and never sooner than
+     * {@link #MIN_RENEWAL_DELAY_MILLIS}, so short-lived tokens do not make the renewal loop back-to-back.
+     */
+    private static void storeToken(String client_id, TokenInfo tokenInfo) {
+        tokenCache.put(client_id, tokenInfo);
+        long lifetime = tokenInfo.expirationTime - System.currentTimeMillis();
+        long delay = Math.max(lifetime - refreshMargin, lifetime / 2);
+        scheduleRenewal(client_id, tokenInfo, Math.max(MIN_RENEWAL_DELAY_MILLIS, delay));
+    }
+
+    private static void scheduleRenewal(String client_id, TokenInfo tokenInfo, long delayMillis) {
+        ScheduledFuture<?> renewal = renewalScheduler.schedule(
+                () -> renew(client_id, tokenInfo), delayMillis, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> previous = renewals.put(client_id, renewal);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    /**
+     * Background renewal task. It only refreshes if the token it was scheduled for is still the cached one,
+     * and retries later if Zoho could not be reached while that token remains valid.
+     */
+    private static void renew(String client_id, TokenInfo tokenInfo) {
+        if (tokenCache.get(client_id) != tokenInfo) {
+            return;
+        }
+        try {
+            JSONObject response = refreshAccessToken(client_id, tokenInfo.clientSecret, tokenInfo.refreshToken);
+            if (!response.has("error")) {
+                return;
+            }
+        } catch (RuntimeException e) {
+            // Fall through and retry while the current token is still usable
+        }
+        long remaining = tokenInfo.expirationTime - System.currentTimeMillis();
+        if (remaining > 0 && tokenCache.get(client_id) == tokenInfo) {
+            scheduleRenewal(client_id, tokenInfo, Math.min(RENEWAL_RETRY_MILLIS, remaining));
+        }
+    }
+
     /**
      * Main method for testing the TokenService class.
      * It generates an OAuth token using the authorization code and prints the token details.
@@ -0,0 +1,23 @@
+package org.example;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+
+import java.util.List;
+
+/**
+ * An embedding store that can add entries under ids chosen by the caller, replacing the entries that already have
+ * them. {@link EmbeddingStore} only gained this method in langchain4j 0.35; see {@link EmbeddingStores#addAll}.
+ */
+public interface UpsertEmbeddingStore extends EmbeddingStore<TextSegment> {
+
+    /**
+     * Adds entries with the given ids, replacing the entries that already have them.
+     *
+     * @param ids          The entry ids, one per embedding.
+     * @param embeddings   The embeddings to add.
+     * @param textSegments The text segments stored with the embeddings, or null.
+     */
+    void addAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> textSegments);
+}
@@ -0,0 +1,66 @@
+package org.example;
+
+/**
+ * This class provides the vector arithmetic shared by the local vector index, the semantic response cache and the
+ * retrieval ranker, which compare embeddings by the dot product of their unit vectors (their cosine similarity).
+ */
+public class Vectors {
+
+    private Vectors() {
+    }
+
+    /**
+     * Returns the dot product of two vectors of the same length.
+     *
+     * @param a The first vector.
+     * @param b The second vector.
+     * @return  The dot product.
+     */
+    public static float dot(float[] a, float[] b) {
+        return dot(a, 0, b, 0, a.length);
+    }
+
+    /**
+     * Returns the dot product of two ranges of the same length, e.g. of vectors stored one after another in a
+     * single array. It uses four independent accumulators, which lets the JIT compile it to SIMD instructions.
+     *
+     * @param a       The array holding the first vector.
+     * @param aOffset The index of the first vector in its array.
+     * @param b       The array holding the second vector.
+     * @param bOffset The index of the second vector in its array.
+     * @param length  The number of components.
+     * @return        The dot product.
+     */
+    public static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < length; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Returns a copy of a vector scaled to length 1, so the dot product of two such copies is their cosine
+     * similarity.
+     *
+     * @param vector The vector.
+     * @return       A new unit vector, or a zero vector if the given one is zero.
+     */
+    public static float[] normalize(float[] vector) {
+        float norm = (float) Math.sqrt(dot(vector, vector));
+        float[] unit = new float[vector.length];
+        if (norm > 0) {
+            for (int i = 0; i < vector.length; i++) {
+                unit[i] = vector[i] / norm;
+            }
+        }
+        return unit;
+    }
+}
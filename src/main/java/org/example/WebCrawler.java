@@ -0,0 +1,377 @@
+package org.example;
+
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * This class crawls websites (e.g. a help center) with {@link WebScraperService#fetchContent(String, boolean)}
+ * and hands every page to a {@link PageListener}, such as {@link PineconeIngestionService#ingestPage}.
+ *
+ * Pages are fetched in parallel by a pool of worker threads, while each host is crawled politely: at most
+ * {@code crawler.perHostConcurrency} requests run against the same host at once, and each request to a host starts
+ * at least {@code crawler.crawlDelayMs} (or the robots.txt Crawl-delay, if larger) after the previous one started
+ * and after the previous one finished, whichever slot sent it. The robots.txt
+ * of every host is read before its first page and disallowed pages are skipped. Seen URLs are remembered in a
+ * {@link BloomFilter}, so memory does not grow with the number of links found.
+ *
+ * Settings are read from system properties: {@code crawler.threads} (default 64), {@code crawler.perHostConcurrency}
+ * (default 2), {@code crawler.crawlDelayMs} (default 1000), {@code crawler.maxPages} (default 10000),
+ * {@code crawler.maxDepth} (default 5), {@code crawler.sameHostOnly} (only follow links to the hosts of the seed
+ * URLs, default true) and {@code crawler.expectedUrls} (Bloom filter size, default 1000000). The User-Agent is
+ * {@code scraper.userAgent}; its product token is matched against robots.txt.
+ *
+ * An instance performs a single crawl.
+ */
+public class WebCrawler {
+
+    private static final long ROBOTS_MAX_BYTES = 512 * 1024;
+    private static final Pattern SKIPPED_EXTENSIONS = Pattern.compile(
+            ".*\\.(pdf|jpe?g|png|gif|svg|webp|ico|css|js|zip|gz|tar|mp3|mp4|avi|mov|woff2?|ttf|eot|xml|json|rss)$");
+
+    private final int threads = Integer.getInteger("crawler.threads", 64);
+    private final int perHostConcurrency = Integer.getInteger("crawler.perHostConcurrency", 2);
+    private final long crawlDelayMillis = Long.getLong("crawler.crawlDelayMs", 1000L);
+    private final int maxPages = Integer.getInteger("crawler.maxPages", 10_000);
+    private final int maxDepth = Integer.getInteger("crawler.maxDepth", 5);
+    private final boolean sameHostOnly = Boolean.parseBoolean(System.getProperty("crawler.sameHostOnly", "true"));
+    private final String userAgent = System.getProperty("scraper.userAgent", "okhttp");
+
+    private final BloomFilter seen = new BloomFilter(Long.getLong("crawler.expectedUrls", 1_000_000L), 0.01);
+    private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+    private final DelayQueue<Slot> readySlots = new DelayQueue<>();
+    private final Set<String> seedHosts = new HashSet<>();
+
+    // URLs queued or being fetched; the crawl ends when it drops to zero
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger acceptedUrls = new AtomicInteger();
+    private final AtomicLong fetchedPages = new AtomicLong();
+    private final AtomicLong failedPages = new AtomicLong();
+    private final AtomicLong disallowedPages = new AtomicLong();
+    private volatile boolean stopped;
+    private volatile String lastError;
+
+    /**
+     * Receives the pages of a crawl. It is called from several worker threads at once, and a slow listener
+     * slows the crawl down, which bounds the number of pages in memory.
+     */
+    public interface PageListener {
+
+        /**
+         * Called with every page fetched successfully.
+         *
+         * @param page The JSONObject returned by {@link WebScraperService#fetchContent}, plus its "depth".
+         * @throws Exception If the page could not be handled; the error is recorded and the crawl continues.
+         */
+        void onPage(JSONObject page) throws Exception;
+    }
+
+    /**
+     * A URL waiting in the frontier, with its distance in links from a seed URL.
+     */
+    private static class CrawlUrl {
+        final HttpUrl url;
+        final int depth;
+
+        CrawlUrl(HttpUrl url, int depth) {
+            this.url = url;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * The frontier and politeness state of one host (scheme, host and port).
+     */
+    private static class Host {
+        final String origin;
+        final ArrayDeque<CrawlUrl> queue = new ArrayDeque<>();
+        final Object robotsLock = new Object();
+        volatile RobotsTxt robots;
+        int idleSlots;
+        long delayMillis;
+        // The earliest time the next request may start, shared by all the slots of the host
+        long nextFetchTime;
+
+        Host(String origin, int slots, long delayMillis) {
+            this.origin = origin;
+            this.idleSlots = slots;
+            this.delayMillis = delayMillis;
+        }
+    }
+
+    /**
+     * Permission to send one request to a host, which becomes available once the crawl delay has passed.
+     */
+    private static class Slot implements Delayed {
+        final Host host;
+        final long readyAt;
+
+        Slot(Host host, long readyAt) {
+            this.host = host;
+            this.readyAt = readyAt;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(readyAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(readyAt, ((Slot) other).readyAt);
+        }
+    }
+
+    /**
+     * Crawls from the seed URLs and blocks until there are no more pages to fetch, the page limit is reached,
+     * or {@link #stop()} is called.
+     *
+     * @param seeds    The URLs to start from.
+     * @param listener Receives every page fetched.
+     * @return         The statistics of the crawl, as returned by {@link #getStats()}.
+     * @throws InterruptedException If the thread is interrupted while waiting for the crawl to finish.
+     */
+    public JSONObject crawl(List<String> seeds, PageListener listener) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        for (String seed : seeds) {
+            HttpUrl url = HttpUrl.parse(seed);
+            if (url != null) {
+                seedHosts.add(url.host());
+            }
+        }
+        for (String seed : seeds) {
+            enqueue(seed, 0);
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.execute(() -> work(listener));
+        }
+        workers.shutdown();
+        try {
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Wait for the workers, which stop once the frontier is empty
+            }
+        } catch (InterruptedException e) {
+            stop();
+            workers.shutdownNow();
+            throw e;
+        }
+
+        JSONObject stats = getStats();
+        long elapsed = System.currentTimeMillis() - start;
+        stats.put("elapsedMs", elapsed);
+        stats.put("pagesPerMinute", elapsed > 0 ? fetchedPages.get() * 60_000 / elapsed : 0);
+        return stats;
+    }
+
+    /**
+     * Stops the crawl: pages being fetched are finished, the rest of the frontier is dropped.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Returns the progress of the crawl.
+     *
+     * @return A JSONObject with the number of URLs queued, pages fetched, failed and disallowed by robots.txt,
+     *         the number of hosts, and the last error, if any.
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("queuedUrls", Math.min(acceptedUrls.get(), maxPages));
+        stats.put("pendingUrls", pending.get());
+        stats.put("fetchedPages", fetchedPages.get());
+        stats.put("failedPages", failedPages.get());
+        stats.put("disallowedPages", disallowedPages.get());
+        stats.put("hosts", hosts.size());
+        if (lastError != null) {
+            stats.put("lastError", lastError);
+        }
+        return stats;
+    }
+
+    private void work(PageListener listener) {
+        while (!stopped && pending.get() > 0) {
+            Slot slot;
+            try {
+                slot = readySlots.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (slot == null) {
+                continue;
+            }
+
+            Host host = slot.host;
+            CrawlUrl next;
+            synchronized (host) {
+                long now = System.currentTimeMillis();
+                if (now < host.nextFetchTime) {
+                    // Another slot of the host sent a request meanwhile; wait for the delay after it
+                    readySlots.add(new Slot(host, host.nextFetchTime));
+                    continue;
+                }
+                next = host.queue.poll();
+                if (next == null) {
+                    host.idleSlots++;
+                    continue;
+                }
+                host.nextFetchTime = now + host.delayMillis;
+            }
+
+            try {
+                visit(host, next, listener);
+            } finally {
+                synchronized (host) {
+                    host.nextFetchTime = Math.max(host.nextFetchTime, System.currentTimeMillis() + host.delayMillis);
+                    if (host.queue.isEmpty()) {
+                        host.idleSlots++;
+                    } else {
+                        readySlots.add(new Slot(host, host.nextFetchTime));
+                    }
+                }
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    private void visit(Host host, CrawlUrl next, PageListener listener) {
+        RobotsTxt robots = getRobots(host);
+        String path = next.url.encodedPath() + (next.url.encodedQuery() != null ? "?" + next.url.encodedQuery() : "");
+        if (!robots.isAllowed(path)) {
+            disallowedPages.incrementAndGet();
+            return;
+        }
+
+        JSONObject page;
+        try {
+            page = WebScraperService.fetchContent(next.url.toString(), true);
+        } catch (Exception e) {
+            failedPages.incrementAndGet();
+            lastError = "Could not fetch " + next.url + ": " + e.getMessage();
+            return;
+        }
+        if (!page.has("content")) {
+            failedPages.incrementAndGet();
+            lastError = "Could not fetch " + next.url + ": HTTP " + page.optInt("responseCode");
+            return;
+        }
+        fetchedPages.incrementAndGet();
+
+        // A redirect target is marked as seen so it is not fetched again under its own URL
+        String finalUrl = page.optString("finalUrl", null);
+        if (finalUrl != null) {
+            HttpUrl redirected = normalize(finalUrl);
+            if (redirected != null) {
+                seen.add(redirected.toString());
+            }
+        }
+
+        JSONArray links = (JSONArray) page.remove("links");
+        String contentType = page.optString("contentType", "text/html");
+        if (links != null && next.depth < maxDepth && contentType.contains("html")) {
+            for (int i = 0; i < links.length(); i++) {
+                enqueue(links.getString(i), next.depth + 1);
+            }
+        }
+
+        page.put("depth", next.depth);
+        try {
+            listener.onPage(page);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stop();
+        } catch (Exception e) {
+            lastError = "Could not handle " + next.url + ": " + e.getMessage();
+        }
+    }
+
+    private void enqueue(String link, int depth) {
+        HttpUrl url = normalize(link);
+        if (url == null || stopped
+                || sameHostOnly && !seedHosts.contains(url.host())
+                || SKIPPED_EXTENSIONS.matcher(url.encodedPath().toLowerCase(Locale.ROOT)).matches()
+                || !seen.add(url.toString())
+                || acceptedUrls.incrementAndGet() > maxPages) {
+            return;
+        }
+        pending.incrementAndGet();
+
+        String origin = url.scheme() + "://" + url.host() + ":" + url.port();
+        Host host = hosts.computeIfAbsent(origin, key -> new Host(key, perHostConcurrency, crawlDelayMillis));
+        synchronized (host) {
+            host.queue.add(new CrawlUrl(url, depth));
+            if (host.idleSlots > 0) {
+                host.idleSlots--;
+                readySlots.add(new Slot(host, Math.max(System.currentTimeMillis(), host.nextFetchTime)));
+            }
+        }
+    }
+
+    /**
+     * Reads the robots.txt of a host once. A missing file (4xx) allows everything; a file that cannot be read
+     * (5xx or network error) disallows everything, so a struggling host is left alone.
+     */
+    private RobotsTxt getRobots(Host host) {
+        RobotsTxt robots = host.robots;
+        if (robots != null) {
+            return robots;
+        }
+        synchronized (host.robotsLock) {
+            if (host.robots != null) {
+                return host.robots;
+            }
+            Request request = new Request.Builder()
+                    .url(host.origin + "/robots.txt")
+                    .header("User-Agent", userAgent)
+                    .get()
+                    .build();
+            try (Response response = HttpClientProvider.getClient().newCall(request).execute()) {
+                if (response.isSuccessful()) {
+                    robots = RobotsTxt.parse(response.peekBody(ROBOTS_MAX_BYTES).string(), userAgent.split("[/ ]")[0]);
+                } else if (response.code() >= 400 && response.code() < 500) {
+                    robots = RobotsTxt.ALLOW_ALL;
+                } else {
+                    robots = RobotsTxt.DISALLOW_ALL;
+                }
+            } catch (IOException e) {
+                lastError = "Could not read " + host.origin + "/robots.txt: " + e.getMessage();
+                robots = RobotsTxt.DISALLOW_ALL;
+            }
+            synchronized (host) {
+                host.delayMillis = Math.max(crawlDelayMillis, robots.getCrawlDelayMillis());
+                host.nextFetchTime = Math.max(host.nextFetchTime, System.currentTimeMillis() + host.delayMillis);
+            }
+            host.robots = robots;
+            return robots;
+        }
+    }
+
+    private static HttpUrl normalize(String link) {
+        HttpUrl url = HttpUrl.parse(link);
+        if (url == null) {
+            return null;
+        }
+        return url.newBuilder().fragment(null).build();
+    }
+}
@@ -1,14 +1,26 @@
 package org.example;
 
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.json.JSONArray;
 import org.json.JSONObject;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * This class is responsible for scraping web content from a given URL.
@@ -17,55 +29,319 @@ import java.net.URL;
  */
 public class WebScraperService {
 
+    private static final Logger log = LoggerFactory.getLogger(WebScraperService.class);
+
+    // Pages larger than this are truncated (bytes, after decompression)
+    private static final long MAX_BODY_BYTES = Long.getLong("scraper.maxBodyBytes", 5L * 1024 * 1024);
+
+    // Fetches must complete within this time, including reading the whole body
+    private static final OkHttpClient scraperClient = HttpClientProvider.getClient().newBuilder()
+            .callTimeout(Long.getLong("scraper.timeoutMs", 20_000L), TimeUnit.MILLISECONDS)
+            .build();
+
+    // Sent as the User-Agent header when set, e.g. by WebCrawler
+    private static final String USER_AGENT = System.getProperty("scraper.userAgent");
+
+    // How long a cached page is used without revalidation when the server gives no max-age
+    private static final long CACHE_TTL_MILLIS = Long.getLong("scraper.cache.ttlMs", 10 * 60_000L);
+    private static final Pattern MAX_AGE = Pattern.compile("(?:^|,)\\s*(?:s-)?max-age\\s*=\\s*\"?(\\d+)");
+
+    // Identical fetches running at the same time share one request
+    private static final SingleFlight<JSONObject> scrapeFlight = new SingleFlight<>("scrape", SingleFlight::copyJson);
+
+    // Duration and outcome of the fetches, see Metrics
+    private static final Metrics.Stage fetchStage = Metrics.stage("scraper.fetchContent");
+
     /**
      * Fetches and parses the content of a web page by sending a GET request to the specified URL.
      * It extracts the main content, page title, and content length, and returns the data in a JSONObject.
      *
+     * The page is decompressed (gzip) and decoded with the charset from the Content-Type header or the page's
+     * {@code <meta charset>}, and its text is extracted while it is read by {@link HtmlTextExtractor}, which
+     * drops navigation and other boilerplate. At most {@code scraper.maxBodyBytes} bytes are read (default 5 MB),
+     * and the whole fetch must complete within {@code scraper.timeoutMs} (default 20 seconds).
+     *
      * @param urlString The URL of the web page to fetch and scrape content from.
      * @return          A JSONObject containing the page content, title, content length, and additional metadata.
      * @throws Exception If an error occurs during the HTTP request or content parsing.
      */
     public static JSONObject fetchContent(String urlString) throws Exception {
-        URL url = new URL(urlString);
-        HttpURLConnection con = (HttpURLConnection) url.openConnection();
-        con.setRequestMethod("GET");
+        return fetchContent(urlString, false);
+    }
+
+    /**
+     * Fetches and parses the content of a web page, like {@link #fetchContent(String)}, optionally adding the
+     * absolute URLs of its links as a "links" array. The final URL after redirects is returned as "finalUrl".
+     *
+     * Pages are cached by {@link PageCache}: a fresh page is returned from the cache without any request, and a
+     * stale one is revalidated with its ETag and Last-Modified validators, so an unchanged page (HTTP 304) is not
+     * downloaded or parsed again. The "cache" field of the result tells which case applied ("fresh",
+     * "revalidated" or "miss"). Freshness comes from the Cache-Control max-age of the response, or
+     * {@code scraper.cache.ttlMs} (default 10 minutes) without one; "no-store" responses are not cached.
+     * Concurrent fetches of the same page share a single request (see {@link SingleFlight}).
+     *
+     * @param urlString    The URL of the web page to fetch and scrape content from.
+     * @param includeLinks True to include the links of the page in the response.
+     * @return             A JSONObject containing the page content, title, content length, and additional metadata.
+     * @throws Exception   If an error occurs during the HTTP request or content parsing.
+     */
+    public static JSONObject fetchContent(String urlString, boolean includeLinks) throws Exception {
+        return fetchStage.time(() -> scrapeFlight.execute(flightKey(urlString, includeLinks), () -> fetchPage(urlString, includeLinks)),
+                WebScraperService::outcomeOf);
+    }
+
+    private static JSONObject fetchPage(String urlString, boolean includeLinks) throws Exception {
+        PageCache cache = PageCache.getDefault();
+        PageCache.Entry cached = cache != null ? cache.lookup(urlString) : null;
+        if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+            JSONObject page = cache.read(cached, false);
+            if (page != null) {
+                return fromCache(page, "fresh", includeLinks);
+            }
+        }
+
+        try (Response response = scraperClient.newCall(buildRequest(urlString, cached)).execute()) {
+            JSONObject page = readPage(urlString, includeLinks, cache, cached, response);
+            if (page != null) {
+                return page;
+            }
+        }
+        // The cached page was replaced while it was being revalidated
+        return fetchPage(urlString, includeLinks);
+    }
+
+    /**
+     * Asynchronous version of {@link #fetchContent(String)}. The request waits in the HTTP dispatcher without
+     * holding a thread, and the page is parsed on a dispatcher thread when the response arrives.
+     *
+     * @param urlString The URL of the web page to fetch and scrape content from.
+     * @return          A future completed with the same JSONObject returned by {@link #fetchContent(String)}.
+     */
+    public static CompletableFuture<JSONObject> fetchContentAsync(String urlString) {
+        return fetchContentAsync(urlString, false);
+    }
+
+    /**
+     * Asynchronous version of {@link #fetchContent(String, boolean)}.
+     *
+     * @param urlString    The URL of the web page to fetch and scrape content from.
+     * @param includeLinks True to include the links of the page in the response.
+     * @return             A future completed with the same JSONObject returned by {@link #fetchContent(String, boolean)}.
+     */
+    public static CompletableFuture<JSONObject> fetchContentAsync(String urlString, boolean includeLinks) {
+        return fetchStage.timeAsync(() -> scrapeFlight.executeAsync(flightKey(urlString, includeLinks), () -> fetchPageAsync(urlString, includeLinks)),
+                WebScraperService::outcomeOf);
+    }
 
-        int responseCode = con.getResponseCode();
-        System.out.println("Response Code: " + responseCode);
+    private static CompletableFuture<JSONObject> fetchPageAsync(String urlString, boolean includeLinks) {
+        PageCache cache = PageCache.getDefault();
+        PageCache.Entry cached = cache != null ? cache.lookup(urlString) : null;
+        if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+            try {
+                JSONObject page = cache.read(cached, false);
+                if (page != null) {
+                    return CompletableFuture.completedFuture(fromCache(page, "fresh", includeLinks));
+                }
+            } catch (IOException e) {
+                CompletableFuture<JSONObject> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        }
+
+        return HttpClientProvider.executeAsync(scraperClient, buildRequest(urlString, cached),
+                        response -> readPage(urlString, includeLinks, cache, cached, response))
+                .thenCompose(page -> page != null
+                        ? CompletableFuture.completedFuture(page)
+                        : fetchPageAsync(urlString, includeLinks));
+    }
+
+    /**
+     * Returns the key under which identical fetches of a page are coalesced.
+     */
+    private static String flightKey(String urlString, boolean includeLinks) {
+        return (includeLinks ? "L|" : "-|") + urlString;
+    }
+
+    /**
+     * Builds the GET request of a page, made conditional with the validators of its cached version, if any.
+     */
+    private static Request buildRequest(String urlString, PageCache.Entry cached) {
+        Request.Builder requestBuilder = new Request.Builder()
+                .url(urlString)
+                .get();
+        if (USER_AGENT != null) {
+            requestBuilder.header("User-Agent", USER_AGENT);
+        }
+        if (cached != null && cached.etag != null) {
+            requestBuilder.header("If-None-Match", cached.etag);
+        }
+        if (cached != null && cached.lastModified != null) {
+            requestBuilder.header("If-Modified-Since", cached.lastModified);
+        }
+        return requestBuilder.build();
+    }
 
+    /**
+     * Reads the response to a page request: extracts the page and caches it, or returns the cached page if the
+     * server answered that it did not change. Returns null if the cached page was replaced in the meantime and
+     * the request must be sent again.
+     */
+    private static JSONObject readPage(String urlString, boolean includeLinks, PageCache cache, PageCache.Entry cached,
+                                       Response response) throws IOException {
         // Preparar el JSON de respuesta
         JSONObject jsonResponse = new JSONObject();
         jsonResponse.put("url", urlString);
+
+        int responseCode = response.code();
+        log.debug("Response code {} for {}", responseCode, urlString);
+        if (responseCode == 304 && cached != null) {
+            JSONObject page = cache.read(cached, true);
+            if (page == null) {
+                return null;
+            }
+            cache.refresh(cached, freshUntil(response));
+            return fromCache(page, "revalidated", includeLinks);
+        }
         jsonResponse.put("responseCode", responseCode);
+        jsonResponse.put("finalUrl", response.request().url().toString());
 
-        StringBuilder content = new StringBuilder();
+        ResponseBody body = response.body();
+        LimitedInputStream in = new LimitedInputStream(body.byteStream(), MAX_BODY_BYTES);
         if (responseCode == 200) {
-            BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                content.append(inputLine);
+            MediaType contentType = body.contentType();
+            if (contentType != null) {
+                jsonResponse.put("contentType", contentType.type() + "/" + contentType.subtype());
             }
-            in.close();
+            Charset headerCharset = contentType != null ? contentType.charset() : null;
+            HtmlTextExtractor.Result page = HtmlTextExtractor.extract(in,
+                    headerCharset != null ? headerCharset.name() : null, urlString);
 
-            Document doc = Jsoup.parse(content.toString());
+            jsonResponse.put("content", page.content);
+            jsonResponse.put("title", page.title);
+            jsonResponse.put("contentLength", in.getCount());
+            jsonResponse.put("charset", page.charset);
+            jsonResponse.put("truncated", in.isLimitReached());
+            jsonResponse.put("links", new JSONArray(page.links));
 
-            Element mainContent = doc.select("div.main-content").first();
-            if (mainContent != null) {
-                jsonResponse.put("content", mainContent.text());
-            } else {
-                jsonResponse.put("content", doc.body().text());
+            if (cache != null) {
+                cache.recordMiss();
+                String cacheControl = response.header("Cache-Control", "");
+                if (!cacheControl.toLowerCase(Locale.ROOT).contains("no-store")) {
+                    try {
+                        cache.put(urlString, response.header("ETag"), response.header("Last-Modified"),
+                                freshUntil(response), jsonResponse);
+                    } catch (IOException e) {
+                        log.warn("Could not cache {}: {}", urlString, e.getMessage());
+                    }
+                }
+                jsonResponse.put("cache", "miss");
+            }
+            if (!includeLinks) {
+                jsonResponse.remove("links");
             }
-            jsonResponse.put("title", doc.title());
-            jsonResponse.put("contentLength", content.length());
         } else {
-            BufferedReader errorReader = new BufferedReader(new InputStreamReader(con.getErrorStream()));
-            String errorResponse = errorReader.lines().reduce((a, b) -> a + b).get();
-            jsonResponse.put("error", errorResponse);
+            jsonResponse.put("error", new String(readAll(in), StandardCharsets.UTF_8));
         }
-
         return jsonResponse;
     }
 
+    /**
+     * Names the outcome of a fetch for {@link Metrics}: the HTTP status code of the page (200 for a cached one).
+     */
+    private static String outcomeOf(JSONObject page) {
+        return page.has("responseCode") ? String.valueOf(page.get("responseCode")) : "ok";
+    }
+
+    private static JSONObject fromCache(JSONObject page, String cacheStatus, boolean includeLinks) {
+        if (!includeLinks) {
+            page.remove("links");
+        }
+        page.put("cache", cacheStatus);
+        return page;
+    }
+
+    /**
+     * Returns until when a response can be used without revalidation: now plus its Cache-Control max-age,
+     * now if it requires revalidation ("no-cache"), or now plus the default TTL.
+     */
+    private static long freshUntil(Response response) {
+        long now = System.currentTimeMillis();
+        String cacheControl = response.header("Cache-Control", "").toLowerCase(Locale.ROOT);
+        if (cacheControl.contains("no-cache")) {
+            return now;
+        }
+        Matcher maxAge = MAX_AGE.matcher(cacheControl);
+        if (maxAge.find()) {
+            try {
+                return now + Long.parseLong(maxAge.group(1)) * 1000;
+            } catch (NumberFormatException e) {
+                return now;
+            }
+        }
+        return now + CACHE_TTL_MILLIS;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * An input stream that ends after a maximum number of bytes and counts the bytes read.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+        private long count;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (count >= limit) {
+                return -1;
+            }
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (count >= limit) {
+                return -1;
+            }
+            int read = super.read(buffer, offset, (int) Math.min(length, limit - count));
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        boolean isLimitReached() {
+            return count >= limit;
+        }
+    }
+
     /**
      * Main method for testing the WebScraperService. It scrapes content from a sample URL
      * and prints the main content of the page.